@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer.benchmark;
+
+import java.util.Map;
+
+import org.codelibs.fess.ingest.vectorizer.MicroBatcher;
+import org.codelibs.fess.ingest.vectorizer.Vectorizer;
+import org.codelibs.fess.ingest.vectorizer.VectorizingIngester;
+
+/**
+ * VectorizingIngester set up without Fess, whose process method is public.
+ */
+public class BenchmarkIngester extends VectorizingIngester {
+
+    public BenchmarkIngester(final Vectorizer vectorizer) {
+        this.vectorizer = vectorizer;
+    }
+
+    public BenchmarkIngester batching(final int batchSize, final long batchWait, final int batchThreads) {
+        if (batchSize > 1) {
+            batcher = new MicroBatcher<>("benchmark", batchSize, batchWait, batchThreads, vectorizer::vectorizeBatch);
+        }
+        return this;
+    }
+
+    @Override
+    public Map<String, Object> process(final Map<String, Object> target) {
+        return super.process(target);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates multilingual text with the characters that JSON escaping has to
+ * handle: quotes, backslashes, control characters and surrogate pairs.
+ */
+final class Documents {
+
+    private static final String[] WORDS = { "search", "index", "vector", "\"quoted\"", "C:\\path\\to\\file", "tab\there",
+            "line\nbreak", "全文検索", "ベクトル", "検索エンジン", "인덱스", "검색", "向量", "索引", "поиск", "индекс", "😀", "𠮷野家", "\u0001" };
+
+    private Documents() {
+    }
+
+    static String text(final int length, final long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder buf = new StringBuilder(length + 32);
+        while (buf.length() < length) {
+            buf.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return buf.toString();
+    }
+}
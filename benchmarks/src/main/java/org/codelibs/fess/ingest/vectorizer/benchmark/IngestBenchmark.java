@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.fess.ingest.vectorizer.Vectorizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@code VectorizingIngester.process} for one document end to end:
+ * building the request, the HTTP round trip to an in-process stub server,
+ * and decoding the response. The server shares the JVM, so its cost is
+ * included; it only copies a precomputed response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+
+    private static final String[] FIELDS = { "title", "content" };
+
+    @Param({ "384", "768" })
+    public int dimension;
+
+    @Param({ "1000", "10000" })
+    public int contentLength;
+
+    @Param({ "httpclient", "curl" })
+    public String transport;
+
+    private StubVectorizerServer server;
+
+    private BenchmarkIngester ingester;
+
+    private Map<String, Object> document;
+
+    @Setup
+    public void setup() throws IOException {
+        server = StubVectorizerServer.create().fields(FIELDS).dimension(dimension).fixedVectors(true).build();
+        ingester = new BenchmarkIngester(Vectorizer.create()//
+                .url(server.getUrl())//
+                .fields(FIELDS)//
+                .dimension(dimension)//
+                .transport(transport)//
+                .healthCheckInterval(0L)//
+                .build());
+        document = new HashMap<>();
+        document.put("title", Documents.text(50, 1L));
+        document.put("content", Documents.text(contentLength, 2L));
+        document.put("lang", "ja");
+    }
+
+    @TearDown
+    public void tearDown() {
+        ingester.destroy();
+        server.close();
+    }
+
+    @Benchmark
+    public Map<String, Object> process() {
+        return ingester.process(new HashMap<>(document));
+    }
+}
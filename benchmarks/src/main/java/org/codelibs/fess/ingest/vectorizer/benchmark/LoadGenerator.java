@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.codelibs.fess.ingest.vectorizer.LatencyHistogram;
+import org.codelibs.fess.ingest.vectorizer.Vectorizer;
+
+/**
+ * Pushes synthetic documents through {@code VectorizingIngester.process}
+ * from several threads at a target rate, and reports the sustained
+ * throughput and the latency percentiles. Each thread sends at fixed
+ * intervals, and a latency is measured from the time the document was due,
+ * so a stalled pipeline shows up in the tail instead of lowering the rate.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.codelibs.fess.ingest.vectorizer.benchmark.LoadGenerator \
+ *     --threads 8 --rate 200 --duration 60 --latency 20 --jitter 10 --error-rate 0.01
+ * </pre>
+ *
+ * Without {@code --url}, a {@link StubVectorizerServer} is started in process.
+ */
+public class LoadGenerator {
+
+    protected final Map<String, String> options;
+
+    protected final LatencyHistogram latencies = new LatencyHistogram();
+
+    protected final LongAdder completed = new LongAdder();
+
+    protected final LongAdder failed = new LongAdder();
+
+    public LoadGenerator(final Map<String, String> options) {
+        this.options = options;
+    }
+
+    protected String get(final String name, final String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        final int threads = Integer.parseInt(get("threads", "4"));
+        final double rate = Double.parseDouble(get("rate", "100"));
+        final long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(get("duration", "30")));
+        final long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(get("warmup", "5")));
+        final int dimension = Integer.parseInt(get("dimension", "768"));
+        final int contentLength = Integer.parseInt(get("content-length", "5000"));
+        final String[] fields = { "title", "content" };
+
+        StubVectorizerServer server = null;
+        String url = options.get("url");
+        if (url == null) {
+            server = StubVectorizerServer.create()//
+                    .fields(fields)//
+                    .dimension(dimension)//
+                    .latency(Long.parseLong(get("latency", "0")))//
+                    .jitter(Long.parseLong(get("jitter", "0")))//
+                    .errorRate(Double.parseDouble(get("error-rate", "0")))//
+                    .build();
+            url = server.getUrl();
+        }
+        final Vectorizer vectorizer = Vectorizer.create()//
+                .url(url)//
+                .fields(fields)//
+                .dimension(dimension)//
+                .transport(get("transport", "httpclient"))//
+                .maxInFlight(Integer.parseInt(get("max-in-flight", "32")))//
+                .build();
+        final BenchmarkIngester ingester = new BenchmarkIngester(vectorizer).batching(Integer.parseInt(get("batch-size", "1")),
+                Long.parseLong(get("batch-wait", "20")), Integer.parseInt(get("batch-threads", "1")));
+        try {
+            System.out.printf(Locale.ROOT, "url=%s, threads=%d, rate=%.1f docs/s, duration=%ds%n", url, threads, rate,
+                    TimeUnit.NANOSECONDS.toSeconds(duration));
+            // the documents of the warm-up phase are not recorded
+            final long startTime = System.nanoTime();
+            final long measureStart = startTime + warmup;
+            final long endTime = measureStart + duration;
+            final long interval = (long) (TimeUnit.SECONDS.toNanos(1L) * threads / rate);
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final int threadIndex = t;
+                final Thread thread = new Thread(() -> {
+                    try {
+                        generate(ingester, threadIndex, startTime + interval * threadIndex / threads, interval, measureStart, endTime,
+                                contentLength);
+                    } finally {
+                        done.countDown();
+                    }
+                }, "load-generator-" + t);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            done.await();
+            report(System.nanoTime() - measureStart, server);
+        } finally {
+            ingester.destroy();
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    protected void generate(final BenchmarkIngester ingester, final int threadIndex, final long firstTime, final long interval,
+            final long measureStart, final long endTime, final int contentLength) {
+        long due = firstTime;
+        long sequence = threadIndex * 1_000_000_000L;
+        while (due < endTime) {
+            final long now = System.nanoTime();
+            if (now < due) {
+                LockSupport.parkNanos(due - now);
+                continue;
+            }
+            final Map<String, Object> document = new HashMap<>();
+            document.put("title", Documents.text(50, sequence));
+            document.put("content", Documents.text(contentLength, sequence + 1L));
+            document.put("lang", sequence % 2 == 0 ? "en" : "ja");
+            sequence += 2L;
+            final Map<String, Object> result = ingester.process(document);
+            if (due >= measureStart) {
+                latencies.record(System.nanoTime() - due);
+                if (result.containsKey("content_" + document.get("lang") + "_vector")) {
+                    completed.increment();
+                } else {
+                    failed.increment();
+                }
+            }
+            due += interval;
+        }
+    }
+
+    protected void report(final long elapsedNanos, final StubVectorizerServer server) {
+        final double seconds = elapsedNanos / 1.0e9;
+        System.out.printf(Locale.ROOT, "documents: %d ok, %d failed in %.1fs%n", completed.sum(), failed.sum(), seconds);
+        System.out.printf(Locale.ROOT, "throughput: %.1f docs/s%n", completed.sum() / seconds);
+        System.out.printf(Locale.ROOT, "latency(ms): mean=%.2f, p50=%.2f, p90=%.2f, p99=%.2f, p99.9=%.2f, max=%.2f%n",
+                latencies.getMean() / 1.0e6, latencies.getPercentile(50.0) / 1.0e6, latencies.getPercentile(90.0) / 1.0e6,
+                latencies.getPercentile(99.0) / 1.0e6, latencies.getPercentile(99.9) / 1.0e6, latencies.getMax() / 1.0e6);
+        if (server != null) {
+            System.out.printf(Locale.ROOT, "server: %d requests, %d injected errors%n", server.getRequestCount(), server.getErrorCount());
+        }
+    }
+
+    /**
+     * @param args options as {@code --name value}
+     */
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Invalid option: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        new LoadGenerator(options).run();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.codelibs.fess.ingest.vectorizer.Vectorizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the /vectorize request body for a batch of documents
+ * with multilingual content. Throughput and, with {@code -prof gc},
+ * {@code gc.alloc.rate.norm} are reported per document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBuildBenchmark {
+
+    static final int BATCH_SIZE = 32;
+
+    private static final String[] FIELDS = { "title", "content" };
+
+    @Param({ "1000", "10000", "100000" })
+    public int contentLength;
+
+    private List<Map<String, Object>> inputs;
+
+    private RequestCapturingVectorizer vectorizer;
+
+    @Setup
+    public void setup() {
+        inputs = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            final Map<String, Object> input = new HashMap<>();
+            input.put("title", Documents.text(50, i));
+            input.put("content", Documents.text(contentLength, i + 1000L));
+            input.put("lang", i % 2 == 0 ? "en" : "ja");
+            inputs.add(input);
+        }
+        vectorizer = new RequestCapturingVectorizer(FIELDS, Set.of("en", "ja"));
+    }
+
+    /**
+     * The body as Vectorizer builds it, without the cache and the transport.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int vectorizer() {
+        vectorizer.vectorizeBatch(inputs);
+        return vectorizer.bodyLength;
+    }
+
+    /**
+     * Only StringBuilder and StringEscapeUtils.escapeJson, as a baseline.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public byte[] escapeJson() {
+        final StringBuilder buf = new StringBuilder(1000 * inputs.size());
+        buf.append("{\"data\":[");
+        for (int i = 0; i < inputs.size(); i++) {
+            final Map<String, Object> input = inputs.get(i);
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append('{');
+            for (final String field : FIELDS) {
+                buf.append('"').append(field).append("\":\"").append(StringEscapeUtils.escapeJson((String) input.get(field))).append("\",");
+            }
+            buf.append("\"lang\":\"").append(input.get("lang")).append("\"}");
+        }
+        return buf.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static class RequestCapturingVectorizer extends Vectorizer {
+
+        int bodyLength;
+
+        RequestCapturingVectorizer(final String[] fields, final Set<String> languages) {
+            this.fields = fields;
+            this.supportedLanguages = new HashSet<>(languages);
+            this.dimension = 768;
+        }
+
+        @Override
+        protected List<Map<String, float[]>> requestVectors(final byte[] body) {
+            bodyLength = body.length;
+            return null;
+        }
+    }
+}
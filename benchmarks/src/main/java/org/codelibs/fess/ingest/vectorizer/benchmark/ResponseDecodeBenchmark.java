@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.fess.ingest.vectorizer.VectorResponseDecoder;
+import org.opensearch.common.xcontent.DeprecationHandler;
+import org.opensearch.common.xcontent.NamedXContentRegistry;
+import org.opensearch.common.xcontent.XContentParser;
+import org.opensearch.common.xcontent.json.JsonXContent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the streaming response decoder with parsing the response into a
+ * Map/List tree and copying boxed numbers into float arrays.
+ * Run with {@code -prof gc} to see the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseDecodeBenchmark {
+
+    private static final String[] FIELDS = { "title", "content" };
+
+    @Param({ "1", "32", "128" })
+    public int batchSize;
+
+    @Param({ "384", "768" })
+    public int dimension;
+
+    private byte[] response;
+
+    private VectorResponseDecoder decoder;
+
+    @Setup
+    public void setup() {
+        response = createResponse(batchSize, dimension, FIELDS, new Random(1)).getBytes(StandardCharsets.UTF_8);
+        decoder = new VectorResponseDecoder(FIELDS, dimension);
+    }
+
+    static String createResponse(final int batchSize, final int dimension, final String[] fields, final Random random) {
+        final StringBuilder buf = new StringBuilder(batchSize * dimension * fields.length * 12);
+        buf.append("{\"results\":[");
+        for (int i = 0; i < batchSize; i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append('{');
+            for (int j = 0; j < fields.length; j++) {
+                if (j > 0) {
+                    buf.append(',');
+                }
+                buf.append('"').append(fields[j]).append("\":[");
+                for (int k = 0; k < dimension; k++) {
+                    if (k > 0) {
+                        buf.append(',');
+                    }
+                    buf.append((float) (random.nextGaussian() * 0.05));
+                }
+                buf.append(']');
+            }
+            buf.append('}');
+        }
+        buf.append("]}");
+        return buf.toString();
+    }
+
+    @Benchmark
+    public List<Map<String, float[]>> streaming() throws IOException {
+        return decoder.decode(new ByteArrayInputStream(response));
+    }
+
+    @Benchmark
+    public List<Map<String, float[]>> tree() throws IOException {
+        final Map<String, Object> contentMap;
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.IGNORE_DEPRECATIONS, new ByteArrayInputStream(response))) {
+            contentMap = parser.map();
+        }
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> results = (List<Map<String, Object>>) contentMap.get("results");
+        final List<Map<String, float[]>> outputs = new ArrayList<>(results.size());
+        for (final Map<String, Object> result : results) {
+            final Map<String, float[]> output = new HashMap<>(FIELDS.length);
+            for (final String field : FIELDS) {
+                @SuppressWarnings("unchecked")
+                final List<Number> values = (List<Number>) result.get(field);
+                final float[] data = new float[values.size()];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = values.get(i).floatValue();
+                }
+                output.put(field, data);
+            }
+            outputs.add(output);
+        }
+        return outputs;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codelibs.fess.ingest.vectorizer.ContentHash;
+import org.opensearch.common.xcontent.DeprecationHandler;
+import org.opensearch.common.xcontent.NamedXContentRegistry;
+import org.opensearch.common.xcontent.XContentParser;
+import org.opensearch.common.xcontent.json.JsonXContent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for fess-text-vectorizer, implementing {@code /},
+ * {@code /ping} and {@code /vectorize}. Each text gets a unit vector derived
+ * from its hash, so the same text always gets the same vector. Latency,
+ * jitter and errors can be injected; which requests fail is determined by
+ * the seed, so runs are reproducible.
+ */
+public class StubVectorizerServer implements AutoCloseable {
+
+    protected static final byte[] LANG = "\"lang\":\"".getBytes(StandardCharsets.UTF_8);
+
+    static {
+        // without it, the headers and the body of a response wait for a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    protected final String[] fields;
+
+    protected final String[] languages;
+
+    protected final int dimension;
+
+    protected final long latency;
+
+    protected final long jitter;
+
+    protected final double errorRate;
+
+    protected final int errorStatus;
+
+    protected final long seed;
+
+    protected final boolean fixedVectors;
+
+    protected final AtomicLong requestCount = new AtomicLong();
+
+    protected final AtomicLong errorCount = new AtomicLong();
+
+    protected final Map<Integer, byte[]> fixedResponses = new ConcurrentHashMap<>();
+
+    protected final HttpServer server;
+
+    protected final ExecutorService executor;
+
+    protected StubVectorizerServer(final Builder builder) throws IOException {
+        fields = builder.fields;
+        languages = builder.languages;
+        dimension = builder.dimension;
+        latency = builder.latency;
+        jitter = builder.jitter;
+        errorRate = builder.errorRate;
+        errorStatus = builder.errorStatus;
+        seed = builder.seed;
+        fixedVectors = builder.fixedVectors;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", builder.port), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "stub-vectorizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    protected void handle(final HttpExchange exchange) throws IOException {
+        final byte[] request = exchange.getRequestBody().readAllBytes();
+        final String path = exchange.getRequestURI().getPath();
+        int status = 200;
+        byte[] response;
+        if ("/vectorize".equals(path)) {
+            final long count = requestCount.incrementAndGet();
+            final SplittableRandom random = new SplittableRandom(seed ^ count * 0x9e3779b97f4a7c15L);
+            sleep(latency + (jitter > 0L ? random.nextLong(jitter + 1L) : 0L));
+            if (errorRate > 0.0 && random.nextDouble() < errorRate) {
+                errorCount.incrementAndGet();
+                status = errorStatus;
+                response = "{\"error\":\"injected\"}".getBytes(StandardCharsets.UTF_8);
+            } else if (fixedVectors) {
+                response = fixedResponses.computeIfAbsent(countInputs(request), this::createFixedResponse);
+            } else {
+                response = createResponse(request);
+            }
+        } else if ("/ping".equals(path)) {
+            response = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+        } else {
+            final String info = "{\"model\":\"stub\",\"languages\":[\"" + String.join("\",\"", languages) + "\"]}";
+            response = info.getBytes(StandardCharsets.UTF_8);
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    protected static void sleep(final long millis) {
+        if (millis > 0L) {
+            try {
+                Thread.sleep(millis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    protected byte[] createResponse(final byte[] request) throws IOException {
+        final Map<String, Object> body;
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.IGNORE_DEPRECATIONS, new ByteArrayInputStream(request))) {
+            body = parser.map();
+        }
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> data = (List<Map<String, Object>>) body.get("data");
+        final StringBuilder buf = new StringBuilder(data.size() * fields.length * dimension * 12);
+        buf.append("{\"results\":[");
+        for (int i = 0; i < data.size(); i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append('{');
+            boolean first = true;
+            for (final Map.Entry<String, Object> entry : data.get(i).entrySet()) {
+                if ("lang".equals(entry.getKey())) {
+                    continue;
+                }
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                buf.append('"').append(entry.getKey()).append("\":");
+                appendVector(buf, ContentHash.of(entry.getValue().toString()).getLow());
+            }
+            buf.append('}');
+        }
+        return buf.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected void appendVector(final StringBuilder buf, final long hash) {
+        final SplittableRandom random = new SplittableRandom(hash);
+        final double[] values = new double[dimension];
+        double norm = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            values[i] = random.nextGaussian();
+            norm += values[i] * values[i];
+        }
+        norm = Math.sqrt(norm);
+        buf.append('[');
+        for (int i = 0; i < dimension; i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append((float) (values[i] / norm));
+        }
+        buf.append(']');
+    }
+
+    // quotes in values are escaped, so "lang":" only appears once per input
+    protected static int countInputs(final byte[] request) {
+        int count = 0;
+        for (int i = 0; i <= request.length - LANG.length; i++) {
+            int j = 0;
+            while (j < LANG.length && request[i + j] == LANG[j]) {
+                j++;
+            }
+            if (j == LANG.length) {
+                count++;
+                i += j - 1;
+            }
+        }
+        return count;
+    }
+
+    protected byte[] createFixedResponse(final int count) {
+        final StringBuilder vector = new StringBuilder(dimension * 12);
+        appendVector(vector, seed);
+        final StringBuilder buf = new StringBuilder();
+        buf.append("{\"results\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append('{');
+            for (int j = 0; j < fields.length; j++) {
+                if (j > 0) {
+                    buf.append(',');
+                }
+                buf.append('"').append(fields[j]).append("\":").append(vector);
+            }
+            buf.append('}');
+        }
+        return buf.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static Builder create() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private String[] fields = { "title", "content" };
+        private String[] languages = { "en", "ja" };
+        private int dimension = 768;
+        private int port = 0;
+        private long latency = 0L;
+        private long jitter = 0L;
+        private double errorRate = 0.0;
+        private int errorStatus = 503;
+        private long seed = 1L;
+        private boolean fixedVectors = false;
+
+        protected Builder() {
+            // nothing
+        }
+
+        public Builder fields(final String... fields) {
+            this.fields = fields;
+            return this;
+        }
+
+        public Builder languages(final String... languages) {
+            this.languages = languages;
+            return this;
+        }
+
+        public Builder dimension(final int dimension) {
+            this.dimension = dimension;
+            return this;
+        }
+
+        /**
+         * @param port 0 for an ephemeral port
+         */
+        public Builder port(final int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder latency(final long latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * @param jitter the upper bound of a uniform random delay added to the latency
+         */
+        public Builder jitter(final long jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * @param errorRate the ratio of /vectorize requests that fail with the error status
+         */
+        public Builder errorRate(final double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        public Builder errorStatus(final int errorStatus) {
+            this.errorStatus = errorStatus;
+            return this;
+        }
+
+        public Builder seed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @param fixedVectors true to return one precomputed vector for every text, which skips parsing the request
+         */
+        public Builder fixedVectors(final boolean fixedVectors) {
+            this.fixedVectors = fixedVectors;
+            return this;
+        }
+
+        public StubVectorizerServer build() throws IOException {
+            return new StubVectorizerServer(this);
+        }
+    }
+}
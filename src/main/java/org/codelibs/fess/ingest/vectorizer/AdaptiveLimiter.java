@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrency limit of the vectorizer that follows its observed latency
+ * (AIMD): the limit grows by one per limit of fast responses, and shrinks by
+ * the backoff ratio when a response is slower than the target or fails, at
+ * most once per target latency so that a burst of slow responses counts once.
+ */
+public class AdaptiveLimiter {
+
+    protected final int minLimit;
+
+    protected final int maxLimit;
+
+    protected final long targetLatencyNanos;
+
+    protected final double backoff;
+
+    protected final AtomicInteger inFlight = new AtomicInteger();
+
+    protected final LongAdder rejected = new LongAdder();
+
+    protected volatile double limit;
+
+    protected long decreasedAt;
+
+    public AdaptiveLimiter(final int initialLimit, final int minLimit, final int maxLimit, final long targetLatencyMillis,
+            final double backoff) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.backoff = backoff;
+        limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        decreasedAt = currentTimeNanos() - targetLatencyNanos;
+    }
+
+    /**
+     * @return true if a request can be sent, which must be followed by {@link #release(long, boolean)}
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latencyNanos the time from the acquisition to the response
+     * @param success false if the request failed
+     */
+    public void release(final long latencyNanos, final boolean success) {
+        final int current = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (!success || latencyNanos > targetLatencyNanos) {
+                final long now = currentTimeNanos();
+                if (now - decreasedAt >= targetLatencyNanos) {
+                    limit = Math.max(minLimit, limit * backoff);
+                    decreasedAt = now;
+                }
+            } else if (current * 2 >= limit) {
+                // only a limit in use is raised, so that it does not drift up while the load is low
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+    }
+
+    protected long currentTimeNanos() {
+        return System.nanoTime();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveLimiter [limit=" + getLimit() + ", min=" + minLimit + ", max=" + maxLimit + ", targetLatency="
+                + TimeUnit.NANOSECONDS.toMillis(targetLatencyNanos) + "ms, backoff=" + backoff + "]";
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoder for the binary vector response format. All values are little-endian:
+ *
+ * <pre>
+ * magic       4 bytes  "FVEC"
+ * version     u8       1
+ * dtype       u8       1 = float32, 2 = float16
+ * reserved    u16
+ * count       u32      number of results
+ * fieldCount  u32
+ * dimension   u32
+ * fields      fieldCount x (u16 length + UTF-8 name)
+ * presence    count x fieldCount bytes, 1 if the vector exists
+ * vectors     dimension values for each present vector, result by result
+ * </pre>
+ */
+public class BinaryVectorDecoder {
+
+    public static final String CONTENT_TYPE = "application/x-fess-vectors";
+
+    public static final byte[] MAGIC = { 'F', 'V', 'E', 'C' };
+
+    public static final int VERSION = 1;
+
+    public static final int FLOAT32 = 1;
+
+    public static final int FLOAT16 = 2;
+
+    protected final String[] fields;
+
+    public BinaryVectorDecoder(final String[] fields) {
+        this.fields = fields;
+    }
+
+    public static boolean isBinary(final byte[] head, final int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String toDataType(final int dtype) {
+        return dtype == FLOAT16 ? "float16" : "float32";
+    }
+
+    /**
+     * Decodes the response while it is read, so that only a single vector of
+     * it is buffered at a time.
+     */
+    public List<Map<String, float[]>> decode(final InputStream in) throws IOException {
+        try {
+            final ByteBuffer header = read(in, MAGIC.length + 16);
+            for (final byte b : MAGIC) {
+                if (header.get() != b) {
+                    throw new IOException("Invalid magic number.");
+                }
+            }
+            final int version = header.get() & 0xff;
+            if (version != VERSION) {
+                throw new IOException("Unsupported version: " + version);
+            }
+            final int dtype = header.get() & 0xff;
+            if (dtype != FLOAT32 && dtype != FLOAT16) {
+                throw new IOException("Unsupported data type: " + dtype);
+            }
+            header.getShort();
+            final int count = header.getInt();
+            final int fieldCount = header.getInt();
+            final int dimension = header.getInt();
+            if (count < 0 || fieldCount < 0 || dimension < 0) {
+                throw new IOException("Invalid header: count=" + count + ", fields=" + fieldCount + ", dimension=" + dimension);
+            }
+
+            final String[] names = new String[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                final ByteBuffer name = read(in, read(in, Short.BYTES).getShort() & 0xffff);
+                final String value = new String(name.array(), StandardCharsets.UTF_8);
+                for (final String field : fields) {
+                    if (field.equals(value)) {
+                        names[i] = field;
+                        break;
+                    }
+                }
+            }
+
+            // not allocated by the header in advance, which is not trusted before the data is read
+            final byte[] presence = in.readNBytes(Math.multiplyExact(count, fieldCount));
+            if (presence.length < count * fieldCount) {
+                throw new EOFException("The binary response is truncated.");
+            }
+            final ByteBuffer block = ByteBuffer.allocate(Math.multiplyExact(dimension, dtype == FLOAT16 ? Short.BYTES : Float.BYTES))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            final List<Map<String, float[]>> results = new ArrayList<>(presence.length / Math.max(fieldCount, 1));
+            for (int i = 0; i < count; i++) {
+                final Map<String, float[]> result = new HashMap<>(fieldCount * 2);
+                for (int j = 0; j < fieldCount; j++) {
+                    if (presence[i * fieldCount + j] == 0) {
+                        continue;
+                    }
+                    readFully(in, block.array());
+                    if (names[j] != null) {
+                        final float[] vector = new float[dimension];
+                        if (dtype == FLOAT32) {
+                            final FloatBuffer floats = block.asFloatBuffer();
+                            floats.get(vector);
+                        } else {
+                            final ShortBuffer shorts = block.asShortBuffer();
+                            for (int k = 0; k < dimension; k++) {
+                                vector[k] = HalfFloat.toFloat(shorts.get(k));
+                            }
+                        }
+                        result.put(names[j], vector);
+                    }
+                }
+                results.add(result);
+            }
+            return results;
+        } catch (final RuntimeException e) {
+            throw new IOException("Invalid binary response.", e);
+        }
+    }
+
+    protected static ByteBuffer read(final InputStream in, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        readFully(in, bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    protected static void readFully(final InputStream in, final byte[] bytes) throws IOException {
+        if (in.readNBytes(bytes, 0, bytes.length) < bytes.length) {
+            throw new EOFException("The binary response is truncated.");
+        }
+    }
+}
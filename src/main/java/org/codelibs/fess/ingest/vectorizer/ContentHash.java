@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+/**
+ * 128-bit MurmurHash3 (x64 variant) of the UTF-16 code units of a text.
+ * Characters are hashed in place, so no byte array is created for the text.
+ */
+public final class ContentHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long high;
+
+    private final long low;
+
+    public ContentHash(final long high, final long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public static ContentHash of(final CharSequence text) {
+        return of(text, 0, text.length(), 0L);
+    }
+
+    public static ContentHash of(final CharSequence text, final int start, final int end, final long seed) {
+        long h1 = seed;
+        long h2 = seed;
+        int pos = start;
+        // 8 chars = 16 bytes per block
+        for (; pos + 8 <= end; pos += 8) {
+            long k1 = pack(text, pos);
+            long k2 = pack(text, pos + 4);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0L;
+        long k2 = 0L;
+        final int remaining = end - pos;
+        for (int i = remaining - 1; i >= 4; i--) {
+            k2 = (k2 << 16) | text.charAt(pos + i);
+        }
+        for (int i = Math.min(remaining, 4) - 1; i >= 0; i--) {
+            k1 = (k1 << 16) | text.charAt(pos + i);
+        }
+        if (remaining > 4) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if (remaining > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        final long length = (end - start) * 2L;
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new ContentHash(h1, h2);
+    }
+
+    private static long pack(final CharSequence text, final int pos) {
+        return text.charAt(pos) | ((long) text.charAt(pos + 1) << 16) | ((long) text.charAt(pos + 2) << 32)
+                | ((long) text.charAt(pos + 3) << 48);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public String toHex() {
+        return String.format("%016x%016x", high, low);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ContentHash)) {
+            return false;
+        }
+        final ContentHash other = (ContentHash) obj;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
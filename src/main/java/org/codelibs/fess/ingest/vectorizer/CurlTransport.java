@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.codelibs.curl.Curl;
+import org.codelibs.curl.CurlRequest;
+import org.codelibs.curl.CurlResponse;
+
+/**
+ * Transport based on {@link Curl}, which opens a new request for each call.
+ * Response headers are not available.
+ */
+public class CurlTransport implements VectorizerTransport {
+
+    @Override
+    public Response get(final String url, final Map<String, String> headers) throws IOException {
+        final CurlRequest request = Curl.get(url);
+        headers.forEach(request::header);
+        return new CurlTransportResponse(request.execute());
+    }
+
+    @Override
+    public Response post(final String url, final Map<String, String> headers, final byte[] body) throws IOException {
+        final CurlRequest request = Curl.post(url);
+        headers.forEach(request::header);
+        return new CurlTransportResponse(request.body(new String(body, StandardCharsets.UTF_8)).execute());
+    }
+
+    protected static class CurlTransportResponse implements Response {
+        protected final CurlResponse response;
+
+        protected CurlTransportResponse(final CurlResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getHttpStatusCode() {
+            return response.getHttpStatusCode();
+        }
+
+        @Override
+        public String getHeader(final String name) {
+            return null;
+        }
+
+        @Override
+        public InputStream getContentAsStream() throws IOException {
+            return response.getContentAsStream();
+        }
+
+        @Override
+        public String getContentAsString() {
+            return response.getContentAsString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable FIFO of documents waiting to be vectorized, stored as append-only
+ * log segments and a checkpoint of the last processed position. Entries
+ * after the checkpoint are read again after a restart, so processing must
+ * be idempotent. A partially written record at the tail of the log is
+ * truncated on startup.
+ */
+public class DeferredQueue implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DeferredQueue.class);
+
+    protected static final String SEGMENT_PREFIX = "queue-";
+
+    protected static final String SEGMENT_SUFFIX = ".log";
+
+    protected static final String CHECKPOINT_FILE = "checkpoint";
+
+    // length and crc32
+    protected static final int RECORD_HEADER_SIZE = 8;
+
+    protected static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    // a position is a segment id in the upper bits and an offset in the lower bits
+    protected static final int OFFSET_BITS = 40;
+
+    protected final Path path;
+
+    protected final long segmentSize;
+
+    protected final TreeMap<Long, Path> segments = new TreeMap<>();
+
+    protected FileChannel writeChannel;
+
+    protected long writeSegment;
+
+    protected long writeOffset;
+
+    protected FileChannel readChannel;
+
+    protected long readSegment;
+
+    protected long readOffset;
+
+    protected long checkpoint;
+
+    protected long pendingCount;
+
+    public DeferredQueue(final Path path, final long segmentSize) {
+        this.path = path;
+        this.segmentSize = Math.min(Math.max(segmentSize, MAX_RECORD_SIZE), 1L << OFFSET_BITS);
+        try {
+            Files.createDirectories(path);
+            open();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to open " + path, e);
+        }
+    }
+
+    protected void open() throws IOException {
+        try (Stream<Path> stream = Files.list(path)) {
+            stream.forEach(file -> {
+                final String name = file.getFileName().toString();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                }
+            });
+        }
+        final Path checkpointFile = path.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpointFile)) {
+            checkpoint = Long.parseLong(Files.readString(checkpointFile, StandardCharsets.UTF_8).trim());
+        } else if (!segments.isEmpty()) {
+            checkpoint = toPosition(segments.firstKey(), 0L);
+        }
+        // segments before the checkpoint are done
+        while (!segments.isEmpty() && segments.firstKey() < toSegment(checkpoint)) {
+            Files.deleteIfExists(segments.pollFirstEntry().getValue());
+        }
+
+        if (segments.isEmpty()) {
+            // starts a new segment so that the old checkpoint offset does not skip new entries
+            writeSegment = checkpoint > 0L ? toSegment(checkpoint) + 1 : 0L;
+            createWriteSegment();
+        } else {
+            writeSegment = segments.lastKey();
+            writeChannel = FileChannel.open(segments.get(writeSegment), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            writeOffset = scanValidLength(writeChannel);
+            if (writeOffset < writeChannel.size()) {
+                logger.warn("Truncated a broken record at {} in {}", writeOffset, segments.get(writeSegment));
+                writeChannel.truncate(writeOffset);
+            }
+            writeChannel.position(writeOffset);
+        }
+
+        readSegment = toSegment(checkpoint);
+        readOffset = toOffset(checkpoint);
+        if (!segments.containsKey(readSegment)) {
+            readSegment = segments.firstKey();
+            readOffset = 0L;
+        }
+        readChannel = FileChannel.open(segments.get(readSegment), StandardOpenOption.READ);
+        pendingCount = countPending();
+        if (pendingCount > 0) {
+            logger.info("Deferred queue has {} pending entries in {}", pendingCount, path);
+        }
+    }
+
+    protected long countPending() throws IOException {
+        long count = 0;
+        for (final Long id : segments.tailMap(readSegment, true).keySet()) {
+            try (FileChannel channel = FileChannel.open(segments.get(id), StandardOpenOption.READ)) {
+                long offset = id == readSegment ? readOffset : 0L;
+                final long limit = id == writeSegment ? writeOffset : channel.size();
+                while (offset < limit) {
+                    final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                    channel.read(header, offset);
+                    offset += RECORD_HEADER_SIZE + header.getInt(0);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the length of the leading, complete and uncorrupted records
+     */
+    protected long scanValidLength(final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long offset = 0L;
+        while (offset + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, offset);
+            final int length = header.getInt(0);
+            if (length <= 0 || length > MAX_RECORD_SIZE || offset + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            final ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, offset + RECORD_HEADER_SIZE);
+            final CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    protected void createWriteSegment() throws IOException {
+        final Path file = path.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, writeSegment, SEGMENT_SUFFIX));
+        writeChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeChannel.truncate(0L);
+        writeOffset = 0L;
+        segments.put(writeSegment, file);
+    }
+
+    public synchronized void add(final Entry entry) {
+        final byte[] id = entry.docId.getBytes(StandardCharsets.UTF_8);
+        final byte[] lang = entry.lang.getBytes(StandardCharsets.UTF_8);
+        final int length = 8 + 4 + 16 + 2 + lang.length + 2 + id.length;
+        if (length > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Document ID is too long: " + entry.docId);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(entry.timestamp);
+        buffer.putInt(entry.attempts);
+        buffer.putLong(entry.hash.getHigh());
+        buffer.putLong(entry.hash.getLow());
+        buffer.putShort((short) lang.length);
+        buffer.put(lang);
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_SIZE, length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        try {
+            if (writeOffset + buffer.remaining() > segmentSize) {
+                writeChannel.force(false);
+                writeChannel.close();
+                writeSegment++;
+                createWriteSegment();
+            }
+            while (buffer.hasRemaining()) {
+                writeOffset += writeChannel.write(buffer);
+            }
+            pendingCount++;
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to write to " + path, e);
+        }
+    }
+
+    /**
+     * Reads the next entries without removing them. They are removed by
+     * {@link #commit(long)} with the position of the last processed entry.
+     */
+    public synchronized List<Entry> poll(final int max) {
+        final List<Entry> entries = new ArrayList<>(Math.min(max, 1024));
+        try {
+            while (entries.size() < max) {
+                final long limit = readSegment == writeSegment ? writeOffset : readChannel.size();
+                if (readOffset >= limit) {
+                    if (readSegment == writeSegment) {
+                        break;
+                    }
+                    readChannel.close();
+                    readSegment = segments.higherKey(readSegment);
+                    readOffset = 0L;
+                    readChannel = FileChannel.open(segments.get(readSegment), StandardOpenOption.READ);
+                    continue;
+                }
+                final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                readChannel.read(header, readOffset);
+                final int length = header.getInt(0);
+                final ByteBuffer buffer = ByteBuffer.allocate(length);
+                readChannel.read(buffer, readOffset + RECORD_HEADER_SIZE);
+                buffer.flip();
+                readOffset += RECORD_HEADER_SIZE + length;
+                final long timestamp = buffer.getLong();
+                final int attempts = buffer.getInt();
+                final ContentHash hash = new ContentHash(buffer.getLong(), buffer.getLong());
+                final String lang = readString(buffer);
+                final String docId = readString(buffer);
+                final Entry entry = new Entry(docId, lang, hash, timestamp, attempts);
+                entry.position = toPosition(readSegment, readOffset);
+                entries.add(entry);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to read from " + path, e);
+        }
+        pendingCount -= entries.size();
+        return entries;
+    }
+
+    protected static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Forces the appended entries to the disk.
+     */
+    public synchronized void sync() {
+        try {
+            writeChannel.force(false);
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to sync " + path, e);
+        }
+    }
+
+    /**
+     * Records that all entries up to the position are processed, and deletes
+     * the segments that are no longer needed.
+     */
+    public synchronized void commit(final long position) {
+        if (position <= checkpoint) {
+            return;
+        }
+        try {
+            final Path tempFile = path.resolve(CHECKPOINT_FILE + ".tmp");
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(Long.toString(position).getBytes(StandardCharsets.UTF_8)));
+                channel.force(true);
+            }
+            Files.move(tempFile, path.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpoint = position;
+            final long segment = toSegment(position);
+            while (segments.firstKey() < segment && segments.firstKey() < readSegment) {
+                Files.deleteIfExists(segments.pollFirstEntry().getValue());
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to write a checkpoint to " + path, e);
+        }
+    }
+
+    protected static long toPosition(final long segment, final long offset) {
+        return segment << OFFSET_BITS | offset;
+    }
+
+    protected static long toSegment(final long position) {
+        return position >>> OFFSET_BITS;
+    }
+
+    protected static long toOffset(final long position) {
+        return position & (1L << OFFSET_BITS) - 1;
+    }
+
+    /**
+     * @return the number of entries that are not polled yet
+     */
+    public synchronized long size() {
+        return pendingCount;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            writeChannel.force(false);
+            writeChannel.close();
+            readChannel.close();
+        } catch (final IOException e) {
+            logger.warn("Failed to close {}", path, e);
+        }
+    }
+
+    public static class Entry {
+        protected final String docId;
+
+        protected final String lang;
+
+        protected final ContentHash hash;
+
+        protected final long timestamp;
+
+        protected final int attempts;
+
+        protected long position;
+
+        public Entry(final String docId, final String lang, final ContentHash hash, final long timestamp, final int attempts) {
+            this.docId = docId;
+            this.lang = lang;
+            this.hash = hash;
+            this.timestamp = timestamp;
+            this.attempts = attempts;
+        }
+
+        public String getDocId() {
+            return docId;
+        }
+
+        public String getLang() {
+            return lang;
+        }
+
+        public ContentHash getHash() {
+            return hash;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return the position after this entry, to be passed to {@link DeferredQueue#commit(long)}
+         */
+        public long getPosition() {
+            return position;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.codelibs.core.lang.StringUtil;
+import org.codelibs.fess.es.client.SearchEngineClient;
+import org.codelibs.fess.mylasta.direction.FessConfig;
+import org.codelibs.fess.util.ComponentUtil;
+import org.codelibs.fess.util.DocumentUtil;
+import org.opensearch.action.bulk.BulkItemResponse;
+import org.opensearch.action.bulk.BulkRequestBuilder;
+import org.opensearch.action.bulk.BulkResponse;
+import org.opensearch.action.update.UpdateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Vectorizes documents after they are indexed. The ingester only records the
+ * document ID and a hash of its text in a {@link DeferredQueue}; a background
+ * worker reads the documents back in large batches, vectorizes them and
+ * writes the vectors with bulk partial updates. A document whose text no
+ * longer matches the hash is skipped, because a newer entry follows it.
+ */
+public class DeferredVectorizer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DeferredVectorizer.class);
+
+    protected final VectorizingIngester ingester;
+
+    protected final DeferredQueue queue;
+
+    protected final int batchSize;
+
+    protected final int threads;
+
+    protected final long delay;
+
+    protected final int maxRetries;
+
+    protected long pollInterval = 1000L;
+
+    protected ExecutorService executor;
+
+    protected Thread worker;
+
+    protected volatile boolean running;
+
+    /**
+     * @param delay milliseconds to wait after a document is queued, so that it is indexed and visible
+     */
+    public DeferredVectorizer(final VectorizingIngester ingester, final DeferredQueue queue, final int batchSize, final int threads,
+            final long delay, final int maxRetries) {
+        this.ingester = ingester;
+        this.queue = queue;
+        this.batchSize = Math.max(1, batchSize);
+        this.threads = Math.max(1, threads);
+        this.delay = delay;
+        this.maxRetries = maxRetries;
+    }
+
+    public void start() {
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "vectorizer-deferred-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        worker = new Thread(this::run, "vectorizer-deferred-worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @return false if the document cannot be deferred, e.g. it has no ID or text
+     */
+    public boolean enqueue(final Map<String, Object> target, final String lang) {
+        final String docId = DocumentUtil.getValue(target, ComponentUtil.getFessConfig().getIndexFieldId(), String.class);
+        if (StringUtil.isBlank(docId)) {
+            return false;
+        }
+        final ContentHash hash = hash(target);
+        if (hash == null) {
+            return true;
+        }
+        queue.add(new DeferredQueue.Entry(docId, lang, hash, System.currentTimeMillis(), 0));
+        return true;
+    }
+
+    /**
+     * @return the hash of the texts to vectorize, or null if there is no text
+     */
+    protected ContentHash hash(final Map<String, Object> target) {
+        final StringBuilder buf = new StringBuilder(1000);
+        boolean empty = true;
+        for (final String field : ingester.vectorizer.getFields()) {
+            final String value = DocumentUtil.getValue(target, field, String.class);
+            if (StringUtil.isNotEmpty(value)) {
+                empty = false;
+                buf.append(value);
+            }
+            buf.append('\u0000');
+        }
+        return empty ? null : ContentHash.of(buf);
+    }
+
+    protected void run() {
+        while (running) {
+            try {
+                queue.sync();
+                final List<DeferredQueue.Entry> entries = queue.poll(batchSize);
+                if (entries.isEmpty()) {
+                    Thread.sleep(pollInterval);
+                    continue;
+                }
+                final long wait = entries.get(entries.size() - 1).getTimestamp() + delay - System.currentTimeMillis();
+                if (wait > 0L) {
+                    Thread.sleep(wait);
+                }
+                try {
+                    process(entries);
+                } catch (final Exception e) {
+                    // queued again, because the commit skips past the entries
+                    logger.warn("Failed to process {} deferred entries.", entries.size(), e);
+                    retry(entries);
+                }
+                queue.commit(entries.get(entries.size() - 1).getPosition());
+            } catch (final InterruptedException e) {
+                // polled entries are not committed, so they are processed again after restart
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final Exception e) {
+                // entries that are not committed are processed again after restart
+                logger.warn("Failed to process the deferred queue.", e);
+                try {
+                    Thread.sleep(pollInterval);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Vectorizes the documents of the entries and updates them. Entries that
+     * fail are queued again until they reach the maximum number of retries.
+     *
+     * @return the number of updated documents
+     */
+    protected int process(final List<DeferredQueue.Entry> entries) {
+        // the last entry of a document wins
+        final Map<String, DeferredQueue.Entry> entryMap = new LinkedHashMap<>();
+        entries.forEach(entry -> entryMap.put(entry.getDocId(), entry));
+
+        final Map<String, Map<String, Object>> docs;
+        try {
+            docs = fetchDocuments(new ArrayList<>(entryMap.keySet()));
+        } catch (final Exception e) {
+            logger.warn("Failed to fetch {} documents.", entryMap.size(), e);
+            retry(entryMap.values());
+            return 0;
+        }
+
+        final List<String> ids = new ArrayList<>(docs.size());
+        final List<Map<String, Object>> targets = new ArrayList<>(docs.size());
+        final List<String> langs = new ArrayList<>(docs.size());
+        final List<DeferredQueue.Entry> missing = new ArrayList<>();
+        for (final DeferredQueue.Entry entry : entryMap.values()) {
+            final Map<String, Object> doc = docs.get(entry.getDocId());
+            if (doc == null) {
+                missing.add(entry);
+            } else if (entry.getHash().equals(hash(doc))) {
+                ids.add(entry.getDocId());
+                targets.add(doc);
+                langs.add(entry.getLang());
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("Skipped a changed document: {}", entry.getDocId());
+            }
+        }
+        retry(missing);
+
+        final List<Map<String, Object>> results;
+        try {
+            results = vectorize(targets, langs);
+        } catch (final Exception e) {
+            logger.warn("Failed to vectorize {} documents.", targets.size(), e);
+            retry(ids.stream().map(entryMap::get).collect(Collectors.toList()));
+            return 0;
+        }
+        final Map<String, Map<String, Object>> updates = new LinkedHashMap<>();
+        final List<DeferredQueue.Entry> failed = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            final Map<String, Object> vectors = results.get(i);
+            if (vectors.isEmpty()) {
+                failed.add(entryMap.get(ids.get(i)));
+                continue;
+            }
+            final Map<String, Object> update = new HashMap<>();
+            ingester.putVectors(update, vectors, langs.get(i));
+            ingester.putFingerprints(update, targets.get(i), vectors.keySet(), langs.get(i));
+            updates.put(ids.get(i), update);
+        }
+        int updated = 0;
+        if (!updates.isEmpty()) {
+            final Set<String> failedIds;
+            try {
+                failedIds = updateDocuments(updates);
+            } catch (final Exception e) {
+                logger.warn("Failed to update {} documents.", updates.size(), e);
+                updates.keySet().forEach(id -> failed.add(entryMap.get(id)));
+                retry(failed);
+                return 0;
+            }
+            failedIds.forEach(id -> failed.add(entryMap.get(id)));
+            updated = updates.size() - failedIds.size();
+        }
+        retry(failed);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Processed deferred entries: entries={}, updated={}, retried={}, pending={}", entries.size(), updated,
+                    missing.size() + failed.size(), queue.size());
+        }
+        return updated;
+    }
+
+    /**
+     * Vectorizes the documents in slices on the worker threads.
+     */
+    protected List<Map<String, Object>> vectorize(final List<Map<String, Object>> targets, final List<String> langs) {
+        if (targets.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final int sliceSize = (targets.size() + threads - 1) / threads;
+        final List<CompletableFuture<List<Map<String, Object>>>> futures = new ArrayList<>(threads);
+        for (int start = 0; start < targets.size(); start += sliceSize) {
+            final int end = Math.min(start + sliceSize, targets.size());
+            final List<Map<String, Object>> slice = targets.subList(start, end);
+            final List<String> sliceLangs = langs.subList(start, end);
+            futures.add(CompletableFuture.supplyAsync(() -> ingester.vectorizeFields(slice, sliceLangs), executor));
+        }
+        final List<Map<String, Object>> results = new ArrayList<>(targets.size());
+        futures.forEach(future -> results.addAll(future.join()));
+        return results;
+    }
+
+    protected void retry(final Iterable<DeferredQueue.Entry> entries) {
+        for (final DeferredQueue.Entry entry : entries) {
+            if (entry.getAttempts() < maxRetries) {
+                queue.add(new DeferredQueue.Entry(entry.getDocId(), entry.getLang(), entry.getHash(), System.currentTimeMillis(),
+                        entry.getAttempts() + 1));
+            } else {
+                logger.warn("Gave up vectorizing {} after {} attempts.", entry.getDocId(), entry.getAttempts() + 1);
+            }
+        }
+    }
+
+    /**
+     * @return the sources of the found documents by ID
+     */
+    protected Map<String, Map<String, Object>> fetchDocuments(final List<String> ids) {
+        final List<String> includes = new ArrayList<>(Arrays.asList(ingester.vectorizer.getFields()));
+        includes.add("lang");
+        return ingester.getDocuments(ids, includes.toArray(n -> new String[n]));
+    }
+
+    /**
+     * @return the IDs of the documents that failed to be updated
+     */
+    protected Set<String> updateDocuments(final Map<String, Map<String, Object>> updates) {
+        final FessConfig fessConfig = ComponentUtil.getFessConfig();
+        final SearchEngineClient client = ComponentUtil.getSearchEngineClient();
+        final String index = fessConfig.getIndexDocumentUpdateIndex();
+        final BulkRequestBuilder builder = client.prepareBulk();
+        updates.forEach((id, doc) -> builder.add(new UpdateRequest(index, id).doc(doc)));
+        final BulkResponse response = builder.execute().actionGet();
+        if (!response.hasFailures()) {
+            return Collections.emptySet();
+        }
+        logger.warn("Failed to update documents: {}", response.buildFailureMessage());
+        final Set<String> failedIds = new HashSet<>();
+        for (final BulkItemResponse item : response.getItems()) {
+            if (item.isFailed()) {
+                failedIds.add(item.getId());
+            }
+        }
+        return failedIds;
+    }
+
+    public DeferredQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(10000L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        queue.close();
+    }
+}
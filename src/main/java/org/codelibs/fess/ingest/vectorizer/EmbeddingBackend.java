@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * In-process alternative to the vectorizing server. {@link Vectorizer} sends
+ * the texts to the backend instead of {@code /vectorize}, and still applies
+ * the cache and the projection. Backends are found by the name of their
+ * {@link Provider}, registered with {@link ServiceLoader}.
+ */
+public interface EmbeddingBackend extends AutoCloseable {
+
+    /**
+     * @return the languages to create vector fields for
+     */
+    Set<String> getLanguages();
+
+    String getModelId();
+
+    /**
+     * @param texts texts by field name for each input
+     * @param langs the language of each input
+     * @return vectors by field name for each input, or null if the backend failed
+     */
+    List<Map<String, float[]>> vectorize(List<Map<String, String>> texts, List<String> langs);
+
+    default boolean isActive() {
+        return true;
+    }
+
+    @Override
+    default void close() {
+        // nothing
+    }
+
+    interface Provider {
+
+        String getName();
+
+        /**
+         * @param dimension the dimension of the vectors
+         * @param settings the value of a backend setting by name, or null
+         */
+        EmbeddingBackend create(int dimension, Function<String, String> settings);
+    }
+
+    /**
+     * @throws IllegalArgumentException if no provider has the name
+     */
+    static EmbeddingBackend load(final String name, final int dimension, final Function<String, String> settings) {
+        for (final Provider provider : ServiceLoader.load(Provider.class, EmbeddingBackend.class.getClassLoader())) {
+            if (provider.getName().equals(name)) {
+                return provider.create(dimension, settings);
+            }
+        }
+        throw new IllegalArgumentException("Unknown embedding backend: " + name);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of vectors keyed by field, language, model and text hash.
+ * Vectors are packed into fixed-size float slots of one or more (direct)
+ * buffers, so cached entries do not create float arrays on the heap.
+ */
+public class EmbeddingCache {
+
+    public enum Policy {
+        LRU, TINYLFU
+    }
+
+    private static final int MAX_SLAB_BYTES = 1 << 30;
+
+    protected final int slotSize;
+
+    protected final int capacity;
+
+    protected final int slotsPerSlab;
+
+    protected final FloatBuffer[] slabs;
+
+    protected final int[] freeSlots;
+
+    protected int freeCount;
+
+    protected final LinkedHashMap<Key, Entry> entries;
+
+    protected final FrequencySketch sketch;
+
+    protected final LongAdder hitCount = new LongAdder();
+
+    protected final LongAdder missCount = new LongAdder();
+
+    protected final LongAdder evictionCount = new LongAdder();
+
+    protected final LongAdder rejectionCount = new LongAdder();
+
+    public EmbeddingCache(final long maxBytes, final int dimension, final boolean offHeap, final Policy policy) {
+        if (dimension < 1) {
+            throw new IllegalArgumentException("dimension must be positive: " + dimension);
+        }
+        slotSize = dimension;
+        final long slotBytes = dimension * (long) Float.BYTES;
+        capacity = (int) Math.min(Integer.MAX_VALUE - 8, maxBytes / slotBytes);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("maxBytes is too small for a vector: " + maxBytes);
+        }
+        slotsPerSlab = (int) Math.max(1, Math.min(capacity, MAX_SLAB_BYTES / slotBytes));
+        slabs = new FloatBuffer[(capacity + slotsPerSlab - 1) / slotsPerSlab];
+        for (int i = 0; i < slabs.length; i++) {
+            final int slots = Math.min(slotsPerSlab, capacity - i * slotsPerSlab);
+            final int bytes = (int) (slots * slotBytes);
+            final ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+            slabs[i] = buffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+        entries = new LinkedHashMap<>(Math.min(capacity, 1 << 16), 0.75f, true);
+        sketch = policy == Policy.TINYLFU ? new FrequencySketch(capacity) : null;
+    }
+
+    public float[] get(final Key key) {
+        final float[] vector;
+        synchronized (this) {
+            if (sketch != null) {
+                sketch.increment(key.hashCode());
+            }
+            final Entry entry = entries.get(key);
+            if (entry == null) {
+                vector = null;
+            } else {
+                vector = new float[entry.length];
+                slab(entry.slot).get(offset(entry.slot), vector);
+            }
+        }
+        if (vector == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return vector;
+    }
+
+    public void put(final Key key, final float[] vector) {
+        if (vector.length > slotSize) {
+            rejectionCount.increment();
+            return;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                if (freeCount == 0 && !evict(key)) {
+                    rejectionCount.increment();
+                    return;
+                }
+                entry = new Entry(freeSlots[--freeCount]);
+                entries.put(key, entry);
+            }
+            entry.length = vector.length;
+            slab(entry.slot).put(offset(entry.slot), vector);
+        }
+    }
+
+    protected boolean evict(final Key candidate) {
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return false;
+        }
+        final Map.Entry<Key, Entry> victim = iterator.next();
+        if (sketch != null && sketch.frequency(candidate.hashCode()) <= sketch.frequency(victim.getKey().hashCode())) {
+            return false;
+        }
+        iterator.remove();
+        freeSlots[freeCount++] = victim.getValue().slot;
+        evictionCount.increment();
+        return true;
+    }
+
+    protected FloatBuffer slab(final int slot) {
+        return slabs[slot / slotsPerSlab];
+    }
+
+    protected int offset(final int slot) {
+        return (slot % slotsPerSlab) * slotSize;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long getRejectionCount() {
+        return rejectionCount.sum();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "EmbeddingCache [size=" + size() + ", capacity=" + capacity + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    protected static class Entry {
+        protected final int slot;
+
+        protected int length;
+
+        protected Entry(final int slot) {
+            this.slot = slot;
+        }
+    }
+
+    public static class Key {
+        protected final String field;
+
+        protected final String lang;
+
+        protected final String model;
+
+        protected final ContentHash hash;
+
+        public Key(final String field, final String lang, final String model, final ContentHash hash) {
+            this.field = field;
+            this.lang = lang;
+            this.model = model;
+            this.hash = hash;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getLang() {
+            return lang;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public ContentHash getHash() {
+            return hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * hash.hashCode() + field.hashCode()) + lang.hashCode()) + Objects.hashCode(model);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hash.equals(other.hash) && field.equals(other.field) && lang.equals(other.lang) && Objects.equals(model, other.model);
+        }
+
+        @Override
+        public String toString() {
+            return field + ":" + lang + ":" + model + ":" + hash;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4-bit counters used by the TinyLFU admission.
+     * Counters are halved periodically so that old popularity fades out.
+     */
+    protected static class FrequencySketch {
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        protected final long[] table;
+
+        protected final int mask;
+
+        protected final int sampleSize;
+
+        protected int additions;
+
+        protected FrequencySketch(final int capacity) {
+            final int size = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 24)) - 1) << 1;
+            table = new long[size];
+            mask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        protected int frequency(final int hashCode) {
+            final int hash = spread(hashCode);
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                final int index = indexOf(hash, i);
+                final int offset = counterOffset(hash, i);
+                frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+            }
+            return frequency;
+        }
+
+        protected void increment(final int hashCode) {
+            final int hash = spread(hashCode);
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                final int index = indexOf(hash, i);
+                final int offset = counterOffset(hash, i);
+                if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int indexOf(final int hash, final int i) {
+            long h = (hash + i * 0x9e3779b97f4a7c15L) * 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 32;
+            return (int) h & mask;
+        }
+
+        private static int counterOffset(final int hash, final int i) {
+            return (((hash >>> (i * 8)) & 3) << 2) + (i << 4);
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent vector store made of append-only, memory-mapped segment files.
+ * Each record has a fixed width: a 128-bit key, the vector length and
+ * {@code dimension} float32 values. An in-memory open-addressing index maps
+ * keys to record locations and is rebuilt from the segments on startup.
+ */
+public class EmbeddingStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingStore.class);
+
+    protected static final int MAGIC = 0x46565354; // FVST
+
+    protected static final int VERSION = 1;
+
+    protected static final int HEADER_SIZE = 64;
+
+    protected static final int RECORD_HEADER_SIZE = 20;
+
+    protected static final String SEGMENT_PREFIX = "segment-";
+
+    protected static final String SEGMENT_SUFFIX = ".dat";
+
+    protected final Path path;
+
+    protected final int dimension;
+
+    protected final int recordSize;
+
+    protected final int recordsPerSegment;
+
+    protected final long maxSize;
+
+    protected final double compactionThreshold;
+
+    protected final List<Segment> segments = new ArrayList<>();
+
+    protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    protected Index index = new Index(1024);
+
+    protected long nextSegmentId;
+
+    protected final LongAdder hitCount = new LongAdder();
+
+    protected final LongAdder missCount = new LongAdder();
+
+    public EmbeddingStore(final Path path, final int dimension, final long segmentSize, final long maxSize, final double compactionThreshold) {
+        this.path = path;
+        this.dimension = dimension;
+        recordSize = RECORD_HEADER_SIZE + dimension * Float.BYTES;
+        final long size = Math.min(segmentSize, Integer.MAX_VALUE);
+        recordsPerSegment = (int) ((size - HEADER_SIZE) / recordSize);
+        if (recordsPerSegment < 1) {
+            throw new IllegalArgumentException("segmentSize is too small: " + segmentSize);
+        }
+        this.maxSize = maxSize;
+        this.compactionThreshold = compactionThreshold;
+        try {
+            Files.createDirectories(path);
+            open();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to open " + path, e);
+        }
+    }
+
+    protected void open() throws IOException {
+        final List<Path> files;
+        try (Stream<Path> stream = Files.list(path)) {
+            files = stream.filter(p -> {
+                final String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+        for (final Path file : files) {
+            final String name = file.getFileName().toString();
+            final long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            final Segment segment = new Segment(id, file);
+            if (segment.load()) {
+                segments.add(segment);
+            } else {
+                logger.warn("Skipped incompatible segment: {}", file);
+                segment.close();
+            }
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+        rebuildIndex();
+        logger.info("Loaded {} vectors from {} segments in {}", index.size, segments.size(), path);
+    }
+
+    public float[] get(final EmbeddingCache.Key key) {
+        final ContentHash hash = toHash(key);
+        lock.readLock().lock();
+        try {
+            final long location = index.get(hash.getHigh(), hash.getLow());
+            if (location != -1L) {
+                final Segment segment = findSegment(location >>> 32);
+                if (segment != null) {
+                    hitCount.increment();
+                    return segment.read((int) location);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        missCount.increment();
+        return null;
+    }
+
+    public void put(final EmbeddingCache.Key key, final float[] vector) {
+        if (vector.length > dimension) {
+            return;
+        }
+        final ContentHash hash = toHash(key);
+        lock.writeLock().lock();
+        try {
+            append(hash.getHigh(), hash.getLow(), vector);
+        } catch (final IOException e) {
+            logger.warn("Failed to store a vector in {}", path, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    protected void append(final long high, final long low, final float[] vector) throws IOException {
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || active.count >= recordsPerSegment) {
+            createSegment();
+            enforceMaxSize();
+            compact();
+            active = segments.get(segments.size() - 1);
+            if (active.count >= recordsPerSegment) {
+                active = createSegment();
+            }
+        }
+        final int record = active.write(high, low, vector);
+        final long previous = index.put(high, low, (active.id << 32) | record);
+        active.liveCount++;
+        if (previous != -1L) {
+            final Segment old = findSegment(previous >>> 32);
+            if (old != null) {
+                old.liveCount--;
+            }
+        }
+    }
+
+    protected Segment createSegment() throws IOException {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).flush();
+        }
+        final Path file = path.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, nextSegmentId, SEGMENT_SUFFIX));
+        final Segment segment = new Segment(nextSegmentId++, file);
+        segment.create();
+        segments.add(segment);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Created {}", file);
+        }
+        return segment;
+    }
+
+    /**
+     * Drops the oldest segments while the store is larger than maxSize.
+     */
+    protected void enforceMaxSize() throws IOException {
+        boolean dropped = false;
+        while (segments.size() > 1 && getDiskSize() > maxSize) {
+            final Segment oldest = segments.remove(0);
+            logger.info("Dropping {} to keep the store under {} bytes.", oldest.file, maxSize);
+            oldest.delete();
+            dropped = true;
+        }
+        if (dropped) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Rewrites live records of sealed segments whose live ratio fell below
+     * the threshold into the active segment, and removes those segments.
+     */
+    protected void compact() throws IOException {
+        final List<Segment> targets = new ArrayList<>();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            final Segment segment = segments.get(i);
+            if (segment.count > 0 && segment.liveCount < segment.count * compactionThreshold) {
+                targets.add(segment);
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        final float[] buf = new float[dimension];
+        for (final Segment segment : targets) {
+            logger.info("Compacting {}: live={}/{}", segment.file, segment.liveCount, segment.count);
+            for (int i = 0; i < segment.count; i++) {
+                final long high = segment.buffer.getLong(segment.position(i));
+                final long low = segment.buffer.getLong(segment.position(i) + 8);
+                if (index.get(high, low) == ((segment.id << 32) | i)) {
+                    final int length = segment.buffer.getInt(segment.position(i) + 16);
+                    segment.floats.get((segment.position(i) + RECORD_HEADER_SIZE) / Float.BYTES, buf, 0, length);
+                    Segment active = segments.get(segments.size() - 1);
+                    if (active.count >= recordsPerSegment) {
+                        active = createSegment();
+                    }
+                    final int record = active.write(high, low, length == dimension ? buf : Arrays.copyOf(buf, length));
+                    index.put(high, low, (active.id << 32) | record);
+                    active.liveCount++;
+                }
+            }
+            segments.remove(segment);
+            segment.delete();
+        }
+    }
+
+    protected void rebuildIndex() {
+        long total = 0L;
+        for (final Segment segment : segments) {
+            total += segment.count;
+        }
+        final Index newIndex = new Index((int) Math.min(1 << 30, Math.max(1024L, total * 2)));
+        for (final Segment segment : segments) {
+            segment.liveCount = 0;
+        }
+        for (final Segment segment : segments) {
+            for (int i = 0; i < segment.count; i++) {
+                final int position = segment.position(i);
+                final long previous = newIndex.put(segment.buffer.getLong(position), segment.buffer.getLong(position + 8), (segment.id << 32) | i);
+                segment.liveCount++;
+                if (previous != -1L) {
+                    final Segment old = findSegment(previous >>> 32);
+                    if (old != null) {
+                        old.liveCount--;
+                    }
+                }
+            }
+        }
+        index = newIndex;
+    }
+
+    protected Segment findSegment(final long id) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            final Segment segment = segments.get(i);
+            if (segment.id == id) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    protected static ContentHash toHash(final EmbeddingCache.Key key) {
+        final String prefix = key.getField() + '\u0000' + key.getLang() + '\u0000' + key.getModel();
+        final ContentHash hash = key.getHash();
+        final ContentHash prefixHash = ContentHash.of(prefix, 0, prefix.length(), hash.getHigh());
+        return new ContentHash(prefixHash.getHigh(), prefixHash.getLow() ^ hash.getLow());
+    }
+
+    public long getDiskSize() {
+        return segments.size() * (HEADER_SIZE + (long) recordsPerSegment * recordSize);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            if (!segments.isEmpty()) {
+                segments.get(segments.size() - 1).flush();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (final Segment segment : segments) {
+                segment.flush();
+                segment.close();
+            }
+            segments.clear();
+            index = new Index(16);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    protected class Segment {
+        protected final long id;
+
+        protected final Path file;
+
+        protected FileChannel channel;
+
+        protected MappedByteBuffer buffer;
+
+        protected FloatBuffer floats;
+
+        protected int count;
+
+        protected int liveCount;
+
+        protected Segment(final long id, final Path file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        protected void create() throws IOException {
+            map(StandardOpenOption.CREATE_NEW);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, dimension);
+            buffer.putInt(12, 0);
+        }
+
+        protected boolean load() throws IOException {
+            if (Files.size(file) != HEADER_SIZE + (long) recordsPerSegment * recordSize) {
+                return false;
+            }
+            map();
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != dimension) {
+                return false;
+            }
+            count = Math.min(buffer.getInt(12), recordsPerSegment);
+            return true;
+        }
+
+        protected void map(final StandardOpenOption... options) throws IOException {
+            final StandardOpenOption[] opts = Arrays.copyOf(options, options.length + 2);
+            opts[options.length] = StandardOpenOption.READ;
+            opts[options.length + 1] = StandardOpenOption.WRITE;
+            channel = FileChannel.open(file, opts);
+            buffer = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) recordsPerSegment * recordSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            floats = buffer.asFloatBuffer();
+        }
+
+        protected int position(final int record) {
+            return HEADER_SIZE + record * recordSize;
+        }
+
+        protected int write(final long high, final long low, final float[] vector) {
+            final int record = count;
+            final int position = position(record);
+            buffer.putLong(position, high);
+            buffer.putLong(position + 8, low);
+            buffer.putInt(position + 16, vector.length);
+            floats.put((position + RECORD_HEADER_SIZE) / Float.BYTES, vector);
+            count++;
+            // the record becomes visible after a restart only once the count is updated
+            buffer.putInt(12, count);
+            return record;
+        }
+
+        protected float[] read(final int record) {
+            final int position = position(record);
+            final float[] vector = new float[buffer.getInt(position + 16)];
+            floats.get((position + RECORD_HEADER_SIZE) / Float.BYTES, vector);
+            return vector;
+        }
+
+        protected void flush() {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+
+        protected void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException e) {
+                    logger.warn("Failed to close {}", file, e);
+                }
+            }
+        }
+
+        protected void delete() throws IOException {
+            close();
+            buffer = null;
+            floats = null;
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Open-addressing hash table from 128-bit keys to record locations.
+     */
+    protected static class Index {
+        protected long[] highs;
+
+        protected long[] lows;
+
+        protected long[] locations;
+
+        protected int size;
+
+        protected int mask;
+
+        protected Index(final int expected) {
+            final int capacity = Integer.highestOneBit(Math.max(16, expected) - 1) << 1;
+            highs = new long[capacity];
+            lows = new long[capacity];
+            locations = new long[capacity];
+            Arrays.fill(locations, -1L);
+            mask = capacity - 1;
+        }
+
+        protected long get(final long high, final long low) {
+            int slot = (int) (low ^ (low >>> 32)) & mask;
+            while (true) {
+                final long location = locations[slot];
+                if (location == -1L) {
+                    return -1L;
+                }
+                if (highs[slot] == high && lows[slot] == low) {
+                    return location;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        protected long put(final long high, final long low, final long location) {
+            if ((size + 1) * 10L > locations.length * 7L) {
+                resize();
+            }
+            int slot = (int) (low ^ (low >>> 32)) & mask;
+            while (true) {
+                final long current = locations[slot];
+                if (current == -1L) {
+                    highs[slot] = high;
+                    lows[slot] = low;
+                    locations[slot] = location;
+                    size++;
+                    return -1L;
+                }
+                if (highs[slot] == high && lows[slot] == low) {
+                    locations[slot] = location;
+                    return current;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        protected void resize() {
+            final long[] oldHighs = highs;
+            final long[] oldLows = lows;
+            final long[] oldLocations = locations;
+            final int capacity = oldLocations.length * 2;
+            highs = new long[capacity];
+            lows = new long[capacity];
+            locations = new long[capacity];
+            Arrays.fill(locations, -1L);
+            mask = capacity - 1;
+            size = 0;
+            for (int i = 0; i < oldLocations.length; i++) {
+                if (oldLocations[i] != -1L) {
+                    put(oldHighs[i], oldLows[i], oldLocations[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks a vectorizer endpoint for each request and checks the health of all
+ * endpoints in the background.
+ */
+public class EndpointBalancer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EndpointBalancer.class);
+
+    public enum Routing {
+        /** Fewest outstanding requests, ties broken by latency. */
+        LEAST_OUTSTANDING,
+        /** Lowest expected wait, i.e. latency times outstanding requests. */
+        LATENCY
+    }
+
+    protected final List<VectorizerEndpoint> endpoints;
+
+    protected final Routing routing;
+
+    protected final AtomicInteger offset = new AtomicInteger();
+
+    protected ScheduledExecutorService healthChecker;
+
+    public EndpointBalancer(final List<VectorizerEndpoint> endpoints, final Routing routing) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints.");
+        }
+        this.endpoints = endpoints;
+        this.routing = routing;
+    }
+
+    /**
+     * Starts checking the endpoints with the given check at a fixed interval.
+     * Healthy endpoints with outstanding requests are skipped, because their
+     * requests already report failures.
+     */
+    public void startHealthCheck(final long intervalMillis, final Predicate<VectorizerEndpoint> check) {
+        if (intervalMillis <= 0L || healthChecker != null) {
+            return;
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "vectorizer-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(() -> {
+            for (final VectorizerEndpoint endpoint : endpoints) {
+                if (endpoint.getState() == VectorizerEndpoint.State.CLOSED && endpoint.getOutstanding() > 0) {
+                    continue;
+                }
+                try {
+                    final VectorizerEndpoint.State before = endpoint.getState();
+                    endpoint.onHealthCheck(check.test(endpoint));
+                    if (before != endpoint.getState()) {
+                        logger.info("Vectorizer endpoint changed: {}", endpoint);
+                    }
+                } catch (final Exception e) {
+                    logger.warn("Failed to check {}", endpoint.getUrl(), e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Selects an endpoint and reserves a request slot on it. The caller must
+     * report the result to the endpoint.
+     *
+     * @param exclude endpoints that already failed for this request
+     * @return the endpoint, or null if no endpoint is available
+     */
+    public VectorizerEndpoint acquire(final Set<VectorizerEndpoint> exclude) {
+        final int size = endpoints.size();
+        // rotates the start so that ties are spread over the endpoints
+        final int start = Math.floorMod(offset.getAndIncrement(), size);
+        final boolean[] tried = new boolean[size];
+        for (int attempt = 0; attempt < size; attempt++) {
+            int best = -1;
+            double bestScore = Double.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                final int index = (start + i) % size;
+                final VectorizerEndpoint endpoint = endpoints.get(index);
+                if (tried[index] || exclude.contains(endpoint) || !endpoint.isAvailable()) {
+                    continue;
+                }
+                final double score = score(endpoint);
+                if (best == -1 || score < bestScore) {
+                    best = index;
+                    bestScore = score;
+                }
+            }
+            if (best == -1) {
+                return null;
+            }
+            tried[best] = true;
+            if (endpoints.get(best).tryAcquire()) {
+                return endpoints.get(best);
+            }
+            // another thread took the probe of a half-open endpoint
+        }
+        return null;
+    }
+
+    protected double score(final VectorizerEndpoint endpoint) {
+        final int outstanding = endpoint.getOutstanding();
+        final double latency = endpoint.getLatencyMillis();
+        if (endpoint.getState() != VectorizerEndpoint.State.CLOSED) {
+            // prefers healthy endpoints, and probes the others only when nothing else is left
+            return Double.MAX_VALUE / 2;
+        }
+        if (routing == Routing.LATENCY) {
+            return (outstanding + 1) * Math.max(latency, 1.0);
+        }
+        return outstanding + latency / (latency + 1000.0);
+    }
+
+    public List<VectorizerEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public boolean hasAvailableEndpoint() {
+        return endpoints.stream().anyMatch(VectorizerEndpoint::isAvailable);
+    }
+
+    @Override
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+    }
+}
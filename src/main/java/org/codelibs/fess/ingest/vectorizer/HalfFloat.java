@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+/**
+ * Conversions between float32 and IEEE 754 half precision (float16) values.
+ */
+public final class HalfFloat {
+
+    private HalfFloat() {
+        // nothing
+    }
+
+    public static float toFloat(final short half) {
+        final int h = half & 0xffff;
+        final int sign = (h & 0x8000) << 16;
+        final int exponent = (h >>> 10) & 0x1f;
+        int mantissa = h & 0x3ff;
+        if (exponent == 0x1f) {
+            // Inf or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent != 0) {
+            return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+        }
+        if (mantissa == 0) {
+            return Float.intBitsToFloat(sign);
+        }
+        // subnormal
+        int e = 113;
+        while ((mantissa & 0x400) == 0) {
+            mantissa <<= 1;
+            e--;
+        }
+        return Float.intBitsToFloat(sign | (e << 23) | ((mantissa & 0x3ff) << 13));
+    }
+
+    public static short fromFloat(final float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int exponent = (bits >>> 23) & 0xff;
+        final int mantissa = bits & 0x7fffff;
+        if (exponent == 0xff) {
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        final int e = exponent - 127 + 15;
+        if (e >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        if (e <= 0) {
+            if (e < -10) {
+                return (short) sign;
+            }
+            // subnormal with round to nearest even
+            final int m = mantissa | 0x800000;
+            final int shift = 14 - e;
+            int half = m >>> shift;
+            final int remainder = m & ((1 << shift) - 1);
+            final int midpoint = 1 << (shift - 1);
+            if (remainder > midpoint || (remainder == midpoint && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        // round to nearest even; a carry into the exponent is handled by the addition
+        int half = (e << 10) | (mantissa >>> 13);
+        final int remainder = mantissa & 0x1fff;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * Rounds the value to the nearest value representable in float16.
+     */
+    public static float round(final float value) {
+        return toFloat(fromFloat(value));
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.codelibs.core.lang.StringUtil;
+import org.codelibs.core.stream.StreamUtil;
+
+/**
+ * Pure-Java CPU backend: the lower-cased character n-grams and the words of a
+ * text are hashed, and each feature is added to a few dimensions with random
+ * signs, which is a sparse random projection of the hashed features. It needs
+ * no model and no I/O, and is good enough for short fields such as titles.
+ * The features are hashed while scanning the text into a per-thread scratch
+ * buffer, so only the result vector is allocated.
+ */
+public class HashingEmbeddingBackend implements EmbeddingBackend {
+
+    public static final String NAME = "hashing";
+
+    private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+
+    private static final long WORD_SALT = 0x5851f42d4c957f2dL;
+
+    protected final int dimension;
+
+    protected final Set<String> languages;
+
+    protected final int minGram;
+
+    protected final int maxGram;
+
+    protected final int density;
+
+    protected final long seed;
+
+    protected final float weight;
+
+    protected final ThreadLocal<Scratch> scratch;
+
+    public HashingEmbeddingBackend(final int dimension, final Set<String> languages, final int minGram, final int maxGram,
+            final int density, final long seed) {
+        if (minGram < 1 || maxGram < minGram) {
+            throw new IllegalArgumentException("Invalid n-gram range: " + minGram + "-" + maxGram);
+        }
+        this.dimension = dimension;
+        this.languages = languages;
+        this.minGram = minGram;
+        this.maxGram = maxGram;
+        this.density = Math.max(1, density);
+        this.seed = seed;
+        weight = (float) (1.0 / Math.sqrt(this.density));
+        scratch = ThreadLocal.withInitial(() -> new Scratch(dimension, maxGram));
+    }
+
+    @Override
+    public Set<String> getLanguages() {
+        return languages;
+    }
+
+    @Override
+    public String getModelId() {
+        return NAME + ":" + minGram + "-" + maxGram + ":" + density + ":" + seed;
+    }
+
+    @Override
+    public List<Map<String, float[]>> vectorize(final List<Map<String, String>> texts, final List<String> langs) {
+        final List<Map<String, float[]>> results = new ArrayList<>(texts.size());
+        for (final Map<String, String> input : texts) {
+            final Map<String, float[]> vectors = new HashMap<>(input.size() * 2);
+            input.forEach((field, text) -> {
+                final float[] vector = embed(text);
+                if (vector != null) {
+                    vectors.put(field, vector);
+                }
+            });
+            results.add(vectors);
+        }
+        return results;
+    }
+
+    /**
+     * @return the unit vector of the text, or null if the text has no features
+     */
+    public float[] embed(final CharSequence text) {
+        final Scratch current = scratch.get();
+        final float[] buffer = current.buffer;
+        final long[] grams = current.grams;
+        int size = 0;
+        long word = 0L;
+        int wordLength = 0;
+        boolean space = true;
+        int features = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                c = Character.toLowerCase(c);
+                word = mix(word ^ c);
+                wordLength++;
+                space = false;
+            } else {
+                if (wordLength > 0) {
+                    add(buffer, word ^ WORD_SALT);
+                    features++;
+                    word = 0L;
+                    wordLength = 0;
+                }
+                if (Character.isWhitespace(c)) {
+                    if (space) {
+                        continue;
+                    }
+                    c = ' ';
+                    space = true;
+                } else {
+                    space = false;
+                }
+            }
+            // extend the n-grams ending at the previous character with this one
+            for (int n = Math.min(size, maxGram - 1); n > 0; n--) {
+                grams[n] = mix(grams[n - 1] ^ (long) c << 16 ^ n);
+            }
+            grams[0] = mix(seed ^ c);
+            size++;
+            for (int n = minGram; n <= Math.min(size, maxGram); n++) {
+                add(buffer, grams[n - 1]);
+                features++;
+            }
+        }
+        if (wordLength > 0) {
+            add(buffer, word ^ WORD_SALT);
+            features++;
+        }
+        if (features == 0) {
+            return null;
+        }
+
+        double norm = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            norm += buffer[i] * buffer[i];
+        }
+        final float[] vector = new float[dimension];
+        if (norm > 0.0) {
+            final float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = buffer[i] * scale;
+            }
+        }
+        Arrays.fill(buffer, 0.0f);
+        return vector;
+    }
+
+    protected void add(final float[] buffer, final long feature) {
+        long h = feature;
+        for (int k = 0; k < density; k++) {
+            h = mix(h + GOLDEN);
+            // the high bits select the dimension, and the lowest bit the sign
+            final int index = (int) ((h >>> 32) * dimension >>> 32);
+            buffer[index] += (h & 1L) == 0L ? weight : -weight;
+        }
+    }
+
+    protected static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    protected static class Scratch {
+        protected final float[] buffer;
+
+        // hashes of the n-grams ending at the previous character, by length - 1
+        protected final long[] grams;
+
+        protected Scratch(final int dimension, final int maxGram) {
+            buffer = new float[dimension];
+            grams = new long[maxGram];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HashingEmbeddingBackend [dimension=" + dimension + ", languages=" + languages + ", ngram=" + minGram + "-" + maxGram
+                + ", density=" + density + "]";
+    }
+
+    public static class Provider implements EmbeddingBackend.Provider {
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public EmbeddingBackend create(final int dimension, final Function<String, String> settings) {
+            final String languages = settings.apply("languages");
+            return new HashingEmbeddingBackend(dimension, //
+                    StreamUtil.split(StringUtil.isBlank(languages) ? "en" : languages, ",")
+                            .get(stream -> stream.map(String::trim).filter(StringUtil::isNotEmpty).collect(Collectors.toSet())),
+                    getInt(settings, "ngram.min", 2), //
+                    getInt(settings, "ngram.max", 4), //
+                    getInt(settings, "density", 8), //
+                    getInt(settings, "seed", 1));
+        }
+
+        protected static int getInt(final Function<String, String> settings, final String name, final int defaultValue) {
+            final String value = settings.apply(name);
+            return StringUtil.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Transport based on {@link HttpClient}. Connections are kept alive and
+ * reused, and the number of in-flight requests per endpoint is bounded. The
+ * read timeout is the deadline of the whole response, including its body,
+ * and also bounds the wait for a free slot of an endpoint. The body is
+ * streamed to the caller, and the slot is held until the response is closed.
+ */
+public class HttpClientTransport implements VectorizerTransport {
+
+    protected final HttpClient client;
+
+    protected final Duration readTimeout;
+
+    protected final int maxInFlight;
+
+    protected final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+    public HttpClientTransport(final HttpClient.Version version, final long connectTimeout, final long readTimeout, final int maxInFlight) {
+        client = HttpClient.newBuilder()//
+                .version(version)//
+                .connectTimeout(Duration.ofMillis(connectTimeout))//
+                .followRedirects(HttpClient.Redirect.NORMAL)//
+                .build();
+        this.readTimeout = Duration.ofMillis(readTimeout);
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public Response get(final String url, final Map<String, String> headers) throws IOException {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url)).timeout(readTimeout).GET();
+        headers.forEach(builder::header);
+        return send(builder.build());
+    }
+
+    @Override
+    public Response post(final String url, final Map<String, String> headers, final byte[] body) throws IOException {
+        final HttpRequest.Builder builder =
+                HttpRequest.newBuilder(URI.create(url)).timeout(readTimeout).POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        headers.forEach(builder::header);
+        return send(builder.build());
+    }
+
+    protected Response send(final HttpRequest request) throws IOException {
+        final Semaphore semaphore = getPermits(request.uri());
+        final long timeout = readTimeout.toMillis();
+        final long deadline = System.nanoTime() + readTimeout.toNanos();
+        try {
+            if (semaphore != null && !semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new HttpTimeoutException(maxInFlight + " requests to " + request.uri() + " are in flight after " + timeout + "ms");
+            }
+            boolean responded = false;
+            try {
+                // HttpRequest.timeout only applies until the headers are received, so the body is read within the deadline too
+                final CompletableFuture<HttpResponse<InputStream>> future =
+                        client.sendAsync(request, info -> new BodyStream(request.uri(), deadline, timeout));
+                try {
+                    final HttpResponse<InputStream> response = future.get(timeout, TimeUnit.MILLISECONDS);
+                    responded = true;
+                    return new HttpClientResponse(response, semaphore);
+                } catch (final TimeoutException e) {
+                    future.cancel(true);
+                    throw new HttpTimeoutException("The response of " + request.uri() + " is not read in " + timeout + "ms");
+                } catch (final InterruptedException e) {
+                    future.cancel(true);
+                    throw e;
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Failed to access " + request.uri(), e.getCause());
+                }
+            } finally {
+                if (!responded && semaphore != null) {
+                    semaphore.release();
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException ioe = new InterruptedIOException("Interrupted while accessing " + request.uri());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    protected Semaphore getPermits(final URI uri) {
+        if (maxInFlight <= 0) {
+            return null;
+        }
+        return permits.computeIfAbsent(uri.getScheme() + "://" + uri.getAuthority(), k -> new Semaphore(maxInFlight));
+    }
+
+    public int getInFlight(final String endpoint) {
+        final Semaphore semaphore = getPermits(URI.create(endpoint));
+        return semaphore == null ? 0 : maxInFlight - semaphore.availablePermits();
+    }
+
+    /**
+     * The body as a stream of the received buffers. Unlike the stream of
+     * {@link HttpResponse.BodyHandlers#ofInputStream()}, a read waits until the
+     * deadline at most and stops when the thread is interrupted, e.g. by a
+     * cancelled request.
+     */
+    protected static class BodyStream extends InputStream implements HttpResponse.BodySubscriber<InputStream> {
+        protected static final List<ByteBuffer> END = Collections.unmodifiableList(new ArrayList<>());
+
+        protected final BlockingQueue<List<ByteBuffer>> queue = new LinkedBlockingQueue<>();
+
+        protected final URI uri;
+
+        protected final long deadline;
+
+        protected final long timeout;
+
+        protected volatile Flow.Subscription subscription;
+
+        protected volatile Throwable failure;
+
+        protected volatile boolean closed;
+
+        protected Iterator<ByteBuffer> buffers = Collections.emptyIterator();
+
+        protected ByteBuffer current;
+
+        protected boolean completed;
+
+        protected BodyStream(final URI uri, final long deadline, final long timeout) {
+            this.uri = uri;
+            this.deadline = deadline;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public CompletionStage<InputStream> getBody() {
+            return CompletableFuture.completedStage(this);
+        }
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (closed) {
+                subscription.cancel();
+            } else {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onNext(final List<ByteBuffer> item) {
+            queue.add(item);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            failure = throwable;
+            queue.add(END);
+        }
+
+        @Override
+        public void onComplete() {
+            queue.add(END);
+        }
+
+        /**
+         * @return the buffer with remaining bytes, or null at the end of the body
+         */
+        protected ByteBuffer current() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (buffers.hasNext()) {
+                    current = buffers.next();
+                    continue;
+                }
+                if (completed) {
+                    return null;
+                }
+                if (closed) {
+                    throw new IOException("The response of " + uri + " is closed.");
+                }
+                final List<ByteBuffer> item;
+                try {
+                    item = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    final InterruptedIOException ioe = new InterruptedIOException("Interrupted while reading " + uri);
+                    ioe.initCause(e);
+                    throw ioe;
+                }
+                if (item == null) {
+                    close();
+                    throw new HttpTimeoutException("The response of " + uri + " is not read in " + timeout + "ms");
+                }
+                if (item == END) {
+                    completed = true;
+                    if (failure instanceof IOException) {
+                        throw (IOException) failure;
+                    }
+                    if (failure != null) {
+                        throw new IOException("Failed to read the response of " + uri, failure);
+                    }
+                    return null;
+                }
+                buffers = item.iterator();
+                subscription.request(1);
+            }
+            return current;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final ByteBuffer buffer = current();
+            return buffer == null ? -1 : buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final ByteBuffer buffer = current();
+            if (buffer == null) {
+                return -1;
+            }
+            final int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final Flow.Subscription s = subscription;
+            if (s != null && !completed) {
+                s.cancel();
+            }
+        }
+    }
+
+    protected static class HttpClientResponse implements Response {
+        protected final HttpResponse<InputStream> response;
+
+        protected final Semaphore semaphore;
+
+        protected boolean closed;
+
+        protected HttpClientResponse(final HttpResponse<InputStream> response, final Semaphore semaphore) {
+            this.response = response;
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public int getHttpStatusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getHeader(final String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public InputStream getContentAsStream() {
+            return response.body();
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final InputStream body = response.body();
+            try {
+                if (!Thread.currentThread().isInterrupted()) {
+                    // a body read to the end returns the connection to the pool, e.g. after the last token of JSON
+                    body.transferTo(OutputStream.nullOutputStream());
+                }
+            } catch (final IOException e) {
+                // the connection is closed instead
+            } finally {
+                try {
+                    body.close();
+                } catch (final IOException e) {
+                    // nothing to do
+                }
+                if (semaphore != null) {
+                    semaphore.release();
+                }
+            }
+        }
+    }
+}
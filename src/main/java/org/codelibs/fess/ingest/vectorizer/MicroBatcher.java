@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups items submitted from many threads into batches bounded by size and
+ * wait time, and completes each caller's future with its own result.
+ */
+public class MicroBatcher<T, R> implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MicroBatcher.class);
+
+    protected final BlockingQueue<Request<T, R>> queue = new LinkedBlockingQueue<>();
+
+    protected final int maxBatchSize;
+
+    protected final long maxWaitNanos;
+
+    protected final Function<List<T>, List<R>> handler;
+
+    protected final Thread[] workers;
+
+    protected volatile boolean running = true;
+
+    public MicroBatcher(final String name, final int maxBatchSize, final long maxWaitMillis, final int threads,
+            final Function<List<T>, List<R>> handler) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxWaitMillis));
+        this.handler = handler;
+        workers = new Thread[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::run, name + "-batcher-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public CompletableFuture<R> submit(final T item) {
+        final Request<T, R> request = new Request<>(item);
+        if (!running) {
+            request.future.completeExceptionally(new IllegalStateException("Batcher is closed."));
+            return request.future;
+        }
+        queue.add(request);
+        if (!running && queue.remove(request)) {
+            request.future.completeExceptionally(new IllegalStateException("Batcher is closed."));
+        }
+        return request.future;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    protected void run() {
+        final List<Request<T, R>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                final Request<T, R> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                final long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        break;
+                    }
+                    final Request<T, R> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                execute(batch);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        Request<T, R> request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new IllegalStateException("Batcher is closed."));
+        }
+    }
+
+    protected void execute(final List<Request<T, R>> batch) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Processing {} items in {}.", batch.size(), Thread.currentThread().getName());
+        }
+        try {
+            final List<T> items = new ArrayList<>(batch.size());
+            for (final Request<T, R> request : batch) {
+                items.add(request.item);
+            }
+            final List<R> results = handler.apply(items);
+            if (results == null || results.size() != batch.size()) {
+                throw new IllegalStateException(
+                        "The number of results does not match: expected=" + batch.size() + ", actual=" + (results == null ? 0 : results.size()));
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(results.get(i));
+            }
+        } catch (final Exception e) {
+            for (final Request<T, R> request : batch) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (final Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    protected static class Request<T, R> {
+        protected final T item;
+
+        protected final CompletableFuture<R> future = new CompletableFuture<>();
+
+        protected Request(final T item) {
+            this.item = item;
+        }
+    }
+}
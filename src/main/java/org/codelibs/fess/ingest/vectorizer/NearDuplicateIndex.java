@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded index of the SimHash signatures of recently vectorized texts, used
+ * to reuse a vector for a near-identical text. A signature is split into
+ * {@code maxDistance + 1} bands, so any signature within the distance has at
+ * least one identical band, and only the entries sharing a band are compared.
+ * The oldest entries are evicted when the capacity is exceeded.
+ */
+public class NearDuplicateIndex {
+
+    protected static final int SHINGLE_SIZE = 4;
+
+    protected final int capacity;
+
+    protected final int maxDistance;
+
+    protected final int minLength;
+
+    protected final int bandBits;
+
+    protected final LinkedHashMap<Entry, Entry> entries = new LinkedHashMap<>();
+
+    protected final Map<Long, List<Entry>> bands = new HashMap<>();
+
+    protected final LongAdder lookupCount = new LongAdder();
+
+    protected final LongAdder hitCount = new LongAdder();
+
+    public NearDuplicateIndex(final int capacity, final int maxDistance, final int minLength) {
+        if (maxDistance < 0 || maxDistance > 15) {
+            throw new IllegalArgumentException("maxDistance should be between 0 and 15: " + maxDistance);
+        }
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.minLength = minLength;
+        bandBits = 64 / (maxDistance + 1);
+    }
+
+    /**
+     * Computes the SimHash of the lower-cased character shingles of the text,
+     * with runs of whitespace collapsed. Character shingles also work for
+     * languages without spaces between words.
+     */
+    public static long signature(final CharSequence text) {
+        final int[] counts = new int[64];
+        long shingle = 0L;
+        int size = 0;
+        boolean space = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (space) {
+                    continue;
+                }
+                space = true;
+                c = ' ';
+            } else {
+                space = false;
+                c = Character.toLowerCase(c);
+            }
+            shingle = shingle << 16 | c;
+            if (++size >= SHINGLE_SIZE) {
+                final long hash = mix(shingle);
+                for (int bit = 0; bit < 64; bit++) {
+                    counts[bit] += (int) (hash >>> bit & 1L) * 2 - 1;
+                }
+            }
+        }
+        if (size > 0 && size < SHINGLE_SIZE) {
+            final long hash = mix(shingle);
+            for (int bit = 0; bit < 64; bit++) {
+                counts[bit] += (int) (hash >>> bit & 1L) * 2 - 1;
+            }
+        }
+        long signature = 0L;
+        for (int bit = 0; bit < 64; bit++) {
+            if (counts[bit] > 0) {
+                signature |= 1L << bit;
+            }
+        }
+        return signature;
+    }
+
+    protected static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * @return true if the text is long enough for its signature to be reliable
+     */
+    public boolean accepts(final String text) {
+        return text != null && text.length() >= minLength;
+    }
+
+    /**
+     * @param scope the field and the language of the text
+     * @return the vector of the nearest entry within the distance, or null
+     */
+    public Object find(final String scope, final long signature) {
+        lookupCount.increment();
+        Entry nearest = null;
+        int nearestDistance = maxDistance + 1;
+        synchronized (this) {
+            for (int band = 0; band <= maxDistance; band++) {
+                final List<Entry> candidates = bands.get(bandKey(scope, signature, band));
+                if (candidates == null) {
+                    continue;
+                }
+                for (final Entry candidate : candidates) {
+                    final int distance = Long.bitCount(candidate.signature ^ signature);
+                    if (distance < nearestDistance && candidate.scope.equals(scope)) {
+                        nearest = candidate;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+            if (nearest == null) {
+                return null;
+            }
+            // refresh the entry so that frequently reused vectors stay
+            entries.remove(nearest);
+            entries.put(nearest, nearest);
+        }
+        hitCount.increment();
+        return nearest.vector;
+    }
+
+    public synchronized void add(final String scope, final long signature, final Object vector) {
+        final Entry entry = new Entry(scope, signature, vector);
+        final Entry old = entries.remove(entry);
+        if (old != null) {
+            removeBands(old);
+        }
+        entries.put(entry, entry);
+        for (int band = 0; band <= maxDistance; band++) {
+            bands.computeIfAbsent(bandKey(scope, signature, band), k -> new ArrayList<>(1)).add(entry);
+        }
+        final Iterator<Entry> iterator = entries.keySet().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            removeBands(eldest);
+        }
+    }
+
+    protected void removeBands(final Entry entry) {
+        for (int band = 0; band <= maxDistance; band++) {
+            final Long key = bandKey(entry.scope, entry.signature, band);
+            final List<Entry> list = bands.get(key);
+            if (list != null) {
+                list.remove(entry);
+                if (list.isEmpty()) {
+                    bands.remove(key);
+                }
+            }
+        }
+    }
+
+    protected long bandKey(final String scope, final long signature, final int band) {
+        final int shift = band * bandBits;
+        final int bits = band == maxDistance ? 64 - shift : bandBits;
+        final long value = bits == 64 ? signature : signature >>> shift & (1L << bits) - 1;
+        return mix(value ^ (long) band << 58 ^ (long) scope.hashCode() << 24);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getLookupCount() {
+        return lookupCount.sum();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return the ratio of the lookups that reused a vector
+     */
+    public double getReuseRate() {
+        final long lookups = lookupCount.sum();
+        return lookups == 0L ? 0.0 : (double) hitCount.sum() / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "NearDuplicateIndex [capacity=" + capacity + ", maxDistance=" + maxDistance + ", minLength=" + minLength + "]";
+    }
+
+    protected static class Entry {
+        protected final String scope;
+
+        protected final long signature;
+
+        protected final Object vector;
+
+        protected Entry(final String scope, final long signature, final Object vector) {
+            this.scope = scope;
+            this.signature = signature;
+            this.vector = vector;
+        }
+
+        @Override
+        public int hashCode() {
+            return scope.hashCode() * 31 + Long.hashCode(signature);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            final Entry other = (Entry) obj;
+            return signature == other.signature && scope.equals(other.scope);
+        }
+    }
+}
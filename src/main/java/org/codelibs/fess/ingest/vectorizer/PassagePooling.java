@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.List;
+
+/**
+ * Ways to combine the vectors of the passages of a field.
+ */
+public enum PassagePooling {
+    /** Element-wise mean of the passage vectors. */
+    MEAN,
+    /** Element-wise maximum of the passage vectors. */
+    MAX,
+    /** Keeps all passage vectors as a nested list. */
+    NESTED;
+
+    /**
+     * Combines the vectors into one. If all vectors are unit length, the
+     * result is normalized too.
+     */
+    public float[] pool(final List<float[]> vectors) {
+        if (vectors.isEmpty()) {
+            return null;
+        }
+        if (vectors.size() == 1) {
+            return vectors.get(0);
+        }
+        final int dimension = vectors.get(0).length;
+        final float[] result = new float[dimension];
+        boolean normalized = true;
+        if (this == MAX) {
+            System.arraycopy(vectors.get(0), 0, result, 0, dimension);
+        }
+        for (int i = 0; i < vectors.size(); i++) {
+            final float[] vector = vectors.get(i);
+            if (vector.length != dimension) {
+                throw new IllegalArgumentException("Dimensions do not match: " + dimension + " != " + vector.length);
+            }
+            normalized &= Math.abs(norm(vector) - 1.0) < 1.0e-3;
+            if (this == MAX) {
+                for (int j = 0; j < dimension; j++) {
+                    result[j] = Math.max(result[j], vector[j]);
+                }
+            } else {
+                for (int j = 0; j < dimension; j++) {
+                    result[j] += vector[j];
+                }
+            }
+        }
+        if (this != MAX) {
+            final float n = vectors.size();
+            for (int j = 0; j < dimension; j++) {
+                result[j] /= n;
+            }
+        }
+        if (normalized) {
+            final double norm = norm(result);
+            if (norm > 0.0) {
+                for (int j = 0; j < dimension; j++) {
+                    result[j] /= norm;
+                }
+            }
+        }
+        return result;
+    }
+
+    protected static double norm(final float[] vector) {
+        double sum = 0.0;
+        for (final float value : vector) {
+            sum += value * value;
+        }
+        return Math.sqrt(sum);
+    }
+}
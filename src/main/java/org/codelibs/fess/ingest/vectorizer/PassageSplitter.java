@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a long text into bounded, overlapping passages. Passages are
+ * produced lazily, so only the part of the text that is returned is copied,
+ * and nothing after the last allowed passage is read.
+ */
+public class PassageSplitter {
+
+    protected final int passageSize;
+
+    protected final int overlap;
+
+    protected final int maxPassages;
+
+    public PassageSplitter(final int passageSize, final int overlap, final int maxPassages) {
+        if (passageSize < 1) {
+            throw new IllegalArgumentException("passageSize must be positive: " + passageSize);
+        }
+        if (overlap < 0 || overlap >= passageSize) {
+            throw new IllegalArgumentException("overlap must be between 0 and passageSize: " + overlap);
+        }
+        this.passageSize = passageSize;
+        this.overlap = overlap;
+        this.maxPassages = maxPassages > 0 ? maxPassages : Integer.MAX_VALUE;
+    }
+
+    public int getPassageSize() {
+        return passageSize;
+    }
+
+    public int getMaxPassages() {
+        return maxPassages;
+    }
+
+    @Override
+    public String toString() {
+        return "PassageSplitter[passageSize=" + passageSize + ", overlap=" + overlap + ", maxPassages=" + maxPassages + "]";
+    }
+
+    public Iterable<String> split(final CharSequence text) {
+        return () -> new PassageIterator(text);
+    }
+
+    protected static boolean isBoundary(final char c) {
+        switch (c) {
+        case '.':
+        case '!':
+        case '?':
+        case ';':
+        case ',':
+        case '、':
+        case '。':
+        case '！':
+        case '，':
+        case '？':
+            return true;
+        default:
+            return Character.isWhitespace(c);
+        }
+    }
+
+    protected class PassageIterator implements Iterator<String> {
+        protected final CharSequence text;
+
+        protected int start;
+
+        protected int count;
+
+        protected PassageIterator(final CharSequence text) {
+            this.text = text;
+            start = skipWhitespace(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return count < maxPassages && start < text.length();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final int length = text.length();
+            int end = Math.min(start + passageSize, length);
+            if (end < length) {
+                // prefers a sentence or word boundary in the second half of the passage
+                for (int i = end - 1; i > start + passageSize / 2; i--) {
+                    if (isBoundary(text.charAt(i))) {
+                        end = i + 1;
+                        break;
+                    }
+                }
+            }
+            final String passage = text.subSequence(start, end).toString().trim();
+            count++;
+            if (end >= length) {
+                start = length;
+            } else {
+                start = nextStart(end);
+            }
+            return passage;
+        }
+
+        protected int nextStart(final int end) {
+            int next = Math.max(end - overlap, start + 1);
+            if (next < end && !isBoundary(text.charAt(next - 1))) {
+                // avoids starting in the middle of a word when a boundary is in the overlap
+                for (int i = next; i < end; i++) {
+                    if (isBoundary(text.charAt(i))) {
+                        next = i + 1;
+                        break;
+                    }
+                }
+            }
+            return skipWhitespace(next);
+        }
+
+        protected int skipWhitespace(int pos) {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            return pos;
+        }
+    }
+}
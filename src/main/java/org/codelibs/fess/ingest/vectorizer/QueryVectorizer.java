@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.text.Normalizer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.codelibs.core.lang.StringUtil;
+import org.codelibs.fess.util.ComponentUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Vectorizes search queries with the vectorizer of the ingester. Vectors are
+ * kept in an LRU cache by the normalized query, a second request is sent when
+ * the first one is slower than the p95 latency, and a query that is not
+ * vectorized within the timeout gets no vector instead of delaying the search.
+ */
+public class QueryVectorizer {
+    private static final Logger logger = LoggerFactory.getLogger(QueryVectorizer.class);
+
+    protected static final String PROPERTY_PREFIX = "semantic_search.vectorizer.query.";
+
+    protected static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    protected VectorizingIngester ingester;
+
+    protected String field = "content";
+
+    protected long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(1000L);
+
+    protected boolean hedging = true;
+
+    protected long minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    // latencies to collect before the p95 is trusted
+    protected long hedgeMinSamples = 100L;
+
+    protected Map<String, float[]> cache;
+
+    protected final LatencyHistogram latencies = new LatencyHistogram();
+
+    protected final LongAdder cacheHits = new LongAdder();
+
+    protected final LongAdder cacheMisses = new LongAdder();
+
+    protected final LongAdder hedges = new LongAdder();
+
+    protected final LongAdder timeouts = new LongAdder();
+
+    protected final VectorizerMetrics metrics = new VectorizerMetrics();
+
+    @PostConstruct
+    public void init() {
+        field = getProperty("field", field);
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(getProperty("timeout", "1000")));
+        hedging = Boolean.parseBoolean(getProperty("hedge.enabled", Boolean.TRUE.toString()));
+        minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(getProperty("hedge.min_delay", "10")));
+        hedgeMinSamples = Long.parseLong(getProperty("hedge.min_samples", "100"));
+        setCacheSize(Integer.parseInt(getProperty("cache.size", "10000")));
+
+        metrics.registerGauge("cache.hits", cacheHits::sum);
+        metrics.registerGauge("cache.misses", cacheMisses::sum);
+        metrics.registerGauge("hedges", hedges::sum);
+        metrics.registerGauge("timeouts", timeouts::sum);
+        metrics.registerGauge("latency.p95_ms", () -> TimeUnit.NANOSECONDS.toMillis(latencies.getPercentile(95)));
+        if (Boolean.parseBoolean(getProperty("metrics.jmx", Boolean.TRUE.toString()))) {
+            metrics.registerMBean("query");
+        }
+        logger.info("Query vectorizer: field={}, timeout={}ms, hedging={}", field, TimeUnit.NANOSECONDS.toMillis(timeoutNanos), hedging);
+    }
+
+    protected String getProperty(final String key, final String defaultValue) {
+        return ComponentUtil.getFessConfig().getSystemProperty(PROPERTY_PREFIX + key, defaultValue);
+    }
+
+    public void setCacheSize(final int cacheSize) {
+        if (cacheSize <= 0) {
+            cache = null;
+            return;
+        }
+        cache = Collections.synchronizedMap(new LinkedHashMap<>(Math.min(cacheSize, 1024), 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, float[]> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * @return the vector of the query, which must not be modified, or null if the language is not supported or the query times out
+     * @throws IllegalArgumentException if no vectorizer vectorizes the field
+     */
+    public float[] vectorize(final String query, final String lang) {
+        if (StringUtil.isBlank(query) || StringUtil.isBlank(lang)) {
+            return null;
+        }
+        final Vectorizer vectorizer = getVectorizer();
+        if (vectorizer == null) {
+            return null;
+        }
+        // the model gets the query as is, and only the cache key is normalized
+        final Map<String, Object> input = Map.of(field, query, "lang", lang);
+        if (vectorizer.getLanguage(input).isEmpty()) {
+            return null;
+        }
+        final Vectorizer fieldVectorizer = vectorizer.getVectorizer(field);
+        final String key = lang + "\n" + normalize(query);
+        if (cache != null) {
+            final float[] vector = cache.get(key);
+            if (vector != null) {
+                cacheHits.increment();
+                return vector;
+            }
+            cacheMisses.increment();
+        }
+
+        final float[] vector = request(fieldVectorizer, input);
+        if (vector != null && cache != null) {
+            cache.put(key, vector);
+        }
+        return vector;
+    }
+
+    protected float[] request(final Vectorizer vectorizer, final Map<String, Object> input) {
+        final long startTime = System.nanoTime();
+        final CompletableFuture<float[]> primary = send(vectorizer, input);
+        try {
+            final long hedgeDelay = getHedgeDelay();
+            if (hedgeDelay <= 0L || hedgeDelay >= timeoutNanos) {
+                return primary.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            try {
+                return primary.get(hedgeDelay, TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException e) {
+                hedges.increment();
+            }
+            final CompletableFuture<float[]> hedge = send(vectorizer, input);
+            // the first vector wins, and null only if both fail
+            final CompletableFuture<float[]> first = new CompletableFuture<>();
+            primary.thenAccept(v -> completeIfPresent(first, v));
+            hedge.thenAccept(v -> completeIfPresent(first, v));
+            CompletableFuture.allOf(primary, hedge).thenRun(() -> first.complete(null));
+            return first.get(timeoutNanos - (System.nanoTime() - startTime), TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException e) {
+            timeouts.increment();
+            if (logger.isDebugEnabled()) {
+                logger.debug("The query is not vectorized in {}ms.", TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            logger.warn("Failed to vectorize the query.", e.getCause());
+        }
+        return null;
+    }
+
+    private static void completeIfPresent(final CompletableFuture<float[]> future, final float[] vector) {
+        if (vector != null) {
+            future.complete(vector);
+        }
+    }
+
+    /**
+     * Sends a request, which is not coalesced with identical ones in flight so that a hedged request is really sent.
+     */
+    protected CompletableFuture<float[]> send(final Vectorizer vectorizer, final Map<String, Object> input) {
+        final long startTime = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> vectorizer.vectorizeBatch(Collections.singletonList(input), false, false).get(0),
+                vectorizer.getAsyncExecutor()).handle((vectors, e) -> {
+                    if (e != null) {
+                        logger.warn("Failed to vectorize the query.", e);
+                        return null;
+                    }
+                    final float[] vector = vectors.get(field);
+                    if (vector != null) {
+                        latencies.record(System.nanoTime() - startTime);
+                    }
+                    return vector;
+                });
+    }
+
+    /**
+     * @return the p95 latency of requests, or 0 not to hedge
+     */
+    protected long getHedgeDelay() {
+        if (!hedging || latencies.getCount() < hedgeMinSamples) {
+            return 0L;
+        }
+        return Math.max(minHedgeDelayNanos, latencies.getPercentile(95));
+    }
+
+    protected static String normalize(final String query) {
+        final String text = Normalizer.normalize(query, Normalizer.Form.NFKC);
+        return WHITESPACE.matcher(text.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the vectorizer of the ingester, or null until it is ready
+     */
+    protected Vectorizer getVectorizer() {
+        if (ingester == null) {
+            ingester = ComponentUtil.getComponent("vectorizingIngester");
+            if (ingester == null) {
+                return null;
+            }
+        }
+        return ingester.isReady() ? ingester.vectorizer : null;
+    }
+
+    public void setIngester(final VectorizingIngester ingester) {
+        this.ingester = ingester;
+    }
+
+    public VectorizerMetrics getMetrics() {
+        return metrics;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        metrics.close();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Vectorizer that sends each field to the vectorizer configured for it,
+ * such as a small model for titles and a larger one for contents. The
+ * routes run in parallel, each with its own dimension and batching, and
+ * their vectors are merged per input.
+ */
+public class RoutingVectorizer extends Vectorizer {
+    private static final Logger logger = LoggerFactory.getLogger(RoutingVectorizer.class);
+
+    protected final List<Route> routes;
+
+    protected final Map<String, Route> fieldRoutes = new HashMap<>();
+
+    public RoutingVectorizer(final List<Route> routes) {
+        this.routes = routes;
+        final Set<String> allFields = new LinkedHashSet<>();
+        for (final Route route : routes) {
+            for (final String field : route.vectorizer.getFields()) {
+                if (fieldRoutes.put(field, route) != null) {
+                    throw new IllegalArgumentException("The field is routed twice: " + field);
+                }
+                allFields.add(field);
+            }
+        }
+        fields = allFields.toArray(n -> new String[n]);
+        updateLanguages();
+        dimension = routes.get(0).vectorizer.getDimension();
+        emptyValue = new float[dimension];
+        asyncExecutor = newAsyncExecutor(true);
+        updateModelId();
+    }
+
+    protected void updateLanguages() {
+        final Set<String> languages = new LinkedHashSet<>();
+        for (final Route route : routes) {
+            Collections.addAll(languages, route.vectorizer.getLanguages());
+        }
+        supportedLanguages = languages;
+    }
+
+    @Override
+    public boolean refreshLanguages() {
+        boolean changed = false;
+        for (final Route route : routes) {
+            if (route.vectorizer.refreshLanguages()) {
+                changed = true;
+            }
+        }
+        if (changed) {
+            updateLanguages();
+        }
+        return changed;
+    }
+
+    protected void updateModelId() {
+        modelId = routes.stream()
+                .map(r -> String.join(",", r.vectorizer.getFields()) + "=" + r.vectorizer.modelId + "/" + r.vectorizer.getDimension())
+                .collect(Collectors.joining(";"));
+    }
+
+    @Override
+    public List<Map<String, float[]>> vectorizeBatch(final List<Map<String, Object>> inputs) {
+        if (routes.size() == 1) {
+            try {
+                return routes.get(0).vectorize(inputs);
+            } catch (final RuntimeException e) {
+                // as a failed route of many, the inputs get no vectors
+                logger.warn("Failed to vectorize {}", routes.get(0), e instanceof CompletionException ? e.getCause() : e);
+                return inputs.stream().map(input -> new HashMap<String, float[]>()).collect(Collectors.toList());
+            }
+        }
+        final List<CompletableFuture<List<Map<String, float[]>>>> futures = new ArrayList<>(routes.size());
+        for (final Route route : routes) {
+            futures.add(CompletableFuture.supplyAsync(() -> route.vectorize(inputs), getAsyncExecutor()));
+        }
+        final List<Map<String, float[]>> outputs = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            outputs.add(new HashMap<>(fields.length * 2));
+        }
+        for (int r = 0; r < futures.size(); r++) {
+            try {
+                final List<Map<String, float[]>> results = futures.get(r).get();
+                for (int i = 0; i < results.size(); i++) {
+                    outputs.get(i).putAll(results.get(i));
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (final ExecutionException e) {
+                logger.warn("Failed to vectorize {}", routes.get(r), e.getCause());
+            }
+        }
+        return outputs;
+    }
+
+    @Override
+    public synchronized void fitProjection(final List<Map<String, Object>> samples) {
+        routes.forEach(route -> route.vectorizer.fitProjection(samples));
+        updateModelId();
+    }
+
+    @Override
+    public boolean isProjectionFitted() {
+        return routes.stream().allMatch(route -> route.vectorizer.isProjectionFitted());
+    }
+
+    @Override
+    public int getDimension() {
+        return dimension;
+    }
+
+    @Override
+    public int getDimension(final String field) {
+        final Route route = fieldRoutes.get(field);
+        return route == null ? dimension : route.vectorizer.getDimension();
+    }
+
+    @Override
+    public Vectorizer getVectorizer(final String field) {
+        final Route route = fieldRoutes.get(field);
+        if (route == null) {
+            throw new IllegalArgumentException("No route vectorizes " + field + ": " + fieldRoutes.keySet());
+        }
+        return route.vectorizer;
+    }
+
+    @Override
+    public boolean isActive() {
+        return routes.stream().allMatch(route -> route.vectorizer.isActive());
+    }
+
+    public List<Route> getRoutes() {
+        return routes;
+    }
+
+    @Override
+    public void close() {
+        for (final Route route : routes) {
+            route.close();
+        }
+        super.close();
+    }
+
+    public static class Route implements AutoCloseable {
+        protected final Vectorizer vectorizer;
+
+        protected final MicroBatcher<Map<String, Object>, Map<String, float[]>> batcher;
+
+        /**
+         * @param batchSize the batch size of the route, or 1 to send the inputs as they come
+         */
+        public Route(final Vectorizer vectorizer, final int batchSize, final long batchWait, final int batchThreads) {
+            this.vectorizer = vectorizer;
+            if (batchSize > 1) {
+                batcher = new MicroBatcher<>("vectorizer-" + String.join("-", vectorizer.getFields()), batchSize, batchWait,
+                        batchThreads, vectorizer::vectorizeBatch);
+            } else {
+                batcher = null;
+            }
+        }
+
+        protected List<Map<String, float[]>> vectorize(final List<Map<String, Object>> inputs) {
+            if (batcher == null) {
+                return vectorizer.vectorizeBatch(inputs);
+            }
+            final List<CompletableFuture<Map<String, float[]>>> futures = new ArrayList<>(inputs.size());
+            for (final Map<String, Object> input : inputs) {
+                futures.add(batcher.submit(input));
+            }
+            return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        }
+
+        public Vectorizer getVectorizer() {
+            return vectorizer;
+        }
+
+        @Override
+        public void close() {
+            if (batcher != null) {
+                batcher.close();
+            }
+            vectorizer.close();
+        }
+
+        @Override
+        public String toString() {
+            return "Route [fields=" + String.join(",", vectorizer.getFields()) + ", dimension=" + vectorizer.getDimension() + "]";
+        }
+    }
+}
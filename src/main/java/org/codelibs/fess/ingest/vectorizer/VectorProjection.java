@@ -0,0 +1,304 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Linear projection of vectors to a lower dimension: {@code y = W (x - mean)}.
+ * The matrix is either the top principal components of a sample of vectors
+ * or a seeded Gaussian random projection. The matrix is stored row-major in
+ * one array so that each output value is a dot product over contiguous
+ * memory, which the JIT can vectorize.
+ */
+public class VectorProjection {
+
+    protected static final int MAGIC = 0x4650524a; // FPRJ
+
+    protected static final int VERSION = 1;
+
+    protected final int inputDimension;
+
+    protected final int outputDimension;
+
+    // outputDimension x inputDimension
+    protected final float[] matrix;
+
+    // W * mean, subtracted from W * x
+    protected final float[] bias;
+
+    protected final float[] mean;
+
+    public VectorProjection(final int inputDimension, final int outputDimension, final float[] matrix, final float[] mean) {
+        if (matrix.length != inputDimension * outputDimension) {
+            throw new IllegalArgumentException("Invalid matrix size: " + matrix.length);
+        }
+        this.inputDimension = inputDimension;
+        this.outputDimension = outputDimension;
+        this.matrix = matrix;
+        this.mean = mean;
+        bias = new float[outputDimension];
+        if (mean != null) {
+            for (int j = 0; j < outputDimension; j++) {
+                bias[j] = dot(matrix, j * inputDimension, mean, inputDimension);
+            }
+        }
+    }
+
+    /**
+     * Projects the vector. If the input is unit length, so is the output.
+     */
+    public float[] project(final float[] vector) {
+        if (vector.length != inputDimension) {
+            throw new IllegalArgumentException("Dimensions do not match: " + inputDimension + " != " + vector.length);
+        }
+        final float[] result = new float[outputDimension];
+        double norm = 0.0;
+        for (int j = 0; j < outputDimension; j++) {
+            final float value = dot(matrix, j * inputDimension, vector, inputDimension) - bias[j];
+            result[j] = value;
+            norm += value * value;
+        }
+        if (Math.abs(PassagePooling.norm(vector) - 1.0) < 1.0e-3 && norm > 0.0) {
+            final float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int j = 0; j < outputDimension; j++) {
+                result[j] *= scale;
+            }
+        }
+        return result;
+    }
+
+    protected static float dot(final float[] a, final int offset, final float[] b, final int length) {
+        // independent accumulators break the dependency chain between additions
+        float s0 = 0.0f;
+        float s1 = 0.0f;
+        float s2 = 0.0f;
+        float s3 = 0.0f;
+        int i = 0;
+        for (final int limit = length - 3; i < limit; i += 4) {
+            s0 += a[offset + i] * b[i];
+            s1 += a[offset + i + 1] * b[i + 1];
+            s2 += a[offset + i + 2] * b[i + 2];
+            s3 += a[offset + i + 3] * b[i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[offset + i] * b[i];
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * Creates a Gaussian random projection, which roughly preserves distances.
+     */
+    public static VectorProjection random(final int inputDimension, final int outputDimension, final long seed) {
+        final Random random = new Random(seed);
+        final float[] matrix = new float[inputDimension * outputDimension];
+        final double scale = 1.0 / Math.sqrt(outputDimension);
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = (float) (random.nextGaussian() * scale);
+        }
+        return new VectorProjection(inputDimension, outputDimension, matrix, null);
+    }
+
+    /**
+     * Fits the top principal components of the samples by subspace iteration
+     * on their covariance matrix.
+     */
+    public static VectorProjection pca(final List<float[]> samples, final int outputDimension, final int iterations, final long seed) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("No samples.");
+        }
+        final int n = samples.get(0).length;
+        final int k = outputDimension;
+        final double[] mean = new double[n];
+        for (final float[] sample : samples) {
+            for (int i = 0; i < n; i++) {
+                mean[i] += sample[i];
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            mean[i] /= samples.size();
+        }
+
+        // upper triangle of the covariance, mirrored afterwards
+        final double[] covariance = new double[n * n];
+        final double[] centered = new double[n];
+        for (final float[] sample : samples) {
+            for (int i = 0; i < n; i++) {
+                centered[i] = sample[i] - mean[i];
+            }
+            for (int i = 0; i < n; i++) {
+                final double ci = centered[i];
+                final int row = i * n;
+                for (int j = i; j < n; j++) {
+                    covariance[row + j] += ci * centered[j];
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                final double value = covariance[i * n + j] / samples.size();
+                covariance[i * n + j] = value;
+                covariance[j * n + i] = value;
+            }
+        }
+
+        // basis vectors are rows of q (k x n)
+        final Random random = new Random(seed);
+        double[] q = new double[k * n];
+        for (int i = 0; i < q.length; i++) {
+            q[i] = random.nextGaussian();
+        }
+        orthonormalize(q, k, n, random);
+        double[] z = new double[k * n];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int r = 0; r < k; r++) {
+                final int qr = r * n;
+                for (int i = 0; i < n; i++) {
+                    final int row = i * n;
+                    double sum = 0.0;
+                    for (int j = 0; j < n; j++) {
+                        sum += covariance[row + j] * q[qr + j];
+                    }
+                    z[qr + i] = sum;
+                }
+            }
+            orthonormalize(z, k, n, random);
+            final double[] tmp = q;
+            q = z;
+            z = tmp;
+        }
+
+        final float[] matrix = new float[k * n];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = (float) q[i];
+        }
+        final float[] meanValues = new float[n];
+        for (int i = 0; i < n; i++) {
+            meanValues[i] = (float) mean[i];
+        }
+        return new VectorProjection(n, k, matrix, meanValues);
+    }
+
+    /**
+     * Modified Gram-Schmidt over the rows. A row that vanishes is replaced
+     * with a random one.
+     */
+    protected static void orthonormalize(final double[] rows, final int count, final int length, final Random random) {
+        for (int r = 0; r < count; r++) {
+            final int offset = r * length;
+            for (int attempt = 0; attempt < 3; attempt++) {
+                for (int p = 0; p < r; p++) {
+                    final int other = p * length;
+                    double dot = 0.0;
+                    for (int i = 0; i < length; i++) {
+                        dot += rows[offset + i] * rows[other + i];
+                    }
+                    for (int i = 0; i < length; i++) {
+                        rows[offset + i] -= dot * rows[other + i];
+                    }
+                }
+                double norm = 0.0;
+                for (int i = 0; i < length; i++) {
+                    norm += rows[offset + i] * rows[offset + i];
+                }
+                norm = Math.sqrt(norm);
+                if (norm > 1.0e-10) {
+                    for (int i = 0; i < length; i++) {
+                        rows[offset + i] /= norm;
+                    }
+                    break;
+                }
+                for (int i = 0; i < length; i++) {
+                    rows[offset + i] = random.nextGaussian();
+                }
+            }
+        }
+    }
+
+    public void save(final Path path) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        final Path tempFile = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(inputDimension);
+            out.writeInt(outputDimension);
+            out.writeBoolean(mean != null);
+            if (mean != null) {
+                for (final float value : mean) {
+                    out.writeFloat(value);
+                }
+            }
+            for (final float value : matrix) {
+                out.writeFloat(value);
+            }
+        }
+        Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static VectorProjection load(final Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a projection file: " + path);
+            }
+            final int inputDimension = in.readInt();
+            final int outputDimension = in.readInt();
+            float[] mean = null;
+            if (in.readBoolean()) {
+                mean = new float[inputDimension];
+                for (int i = 0; i < inputDimension; i++) {
+                    mean[i] = in.readFloat();
+                }
+            }
+            final float[] matrix = new float[inputDimension * outputDimension];
+            for (int i = 0; i < matrix.length; i++) {
+                matrix[i] = in.readFloat();
+            }
+            return new VectorProjection(inputDimension, outputDimension, matrix, mean);
+        }
+    }
+
+    public int getInputDimension() {
+        return inputDimension;
+    }
+
+    public int getOutputDimension() {
+        return outputDimension;
+    }
+
+    /**
+     * @return a short identifier of the matrix
+     */
+    public String getId() {
+        final StringBuilder buf = new StringBuilder(matrix.length / 8);
+        for (int i = 0; i < matrix.length; i += 64) {
+            buf.append(Float.floatToIntBits(matrix[i])).append(',');
+        }
+        return inputDimension + "x" + outputDimension + ":" + ContentHash.of(buf).toHex().substring(0, 16);
+    }
+}
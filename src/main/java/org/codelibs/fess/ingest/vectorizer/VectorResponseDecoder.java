@@ -0,0 +1,420 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming decoder for a {@code {"results":[{"field":[...]}, ...]}} response.
+ * Numbers of the requested fields are parsed from the UTF-8 bytes directly
+ * into float arrays, and all other values are skipped without building a tree.
+ * The {@code NaN}, {@code Infinity} and {@code -Infinity} tokens written by
+ * Python's json module are decoded as such, and {@code null} as NaN.
+ * An instance is not thread-safe.
+ */
+public class VectorResponseDecoder {
+
+    private static final byte[] RESULTS = "results".getBytes(StandardCharsets.UTF_8);
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14,
+            1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    protected final String[] fields;
+
+    protected final byte[][] fieldNames;
+
+    protected final int dimension;
+
+    protected final byte[] buffer;
+
+    protected byte[] keyBuffer = new byte[64];
+
+    protected int keyLength;
+
+    protected InputStream in;
+
+    protected int position;
+
+    protected int limit;
+
+    public VectorResponseDecoder(final String[] fields, final int dimension) {
+        this(fields, dimension, 8192);
+    }
+
+    public VectorResponseDecoder(final String[] fields, final int dimension, final int bufferSize) {
+        this.fields = fields;
+        fieldNames = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            fieldNames[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        this.dimension = dimension;
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * @return the decoded results, or null if the response has no results
+     */
+    public List<Map<String, float[]>> decode(final InputStream in) throws IOException {
+        this.in = in;
+        position = 0;
+        limit = 0;
+        try {
+            List<Map<String, float[]>> results = null;
+            expect('{');
+            if (peekToken() == '}') {
+                position++;
+                return null;
+            }
+            while (true) {
+                readKey();
+                expect(':');
+                if (keyEquals(RESULTS) && peekToken() == '[') {
+                    results = readResults();
+                } else {
+                    skipValue();
+                }
+                final int c = nextToken();
+                if (c == '}') {
+                    return results;
+                }
+                if (c != ',') {
+                    throw unexpected(c);
+                }
+            }
+        } finally {
+            this.in = null;
+        }
+    }
+
+    protected List<Map<String, float[]>> readResults() throws IOException {
+        expect('[');
+        final List<Map<String, float[]>> results = new ArrayList<>();
+        if (peekToken() == ']') {
+            position++;
+            return results;
+        }
+        while (true) {
+            results.add(readResult());
+            final int c = nextToken();
+            if (c == ']') {
+                return results;
+            }
+            if (c != ',') {
+                throw unexpected(c);
+            }
+        }
+    }
+
+    protected Map<String, float[]> readResult() throws IOException {
+        final Map<String, float[]> result = new HashMap<>(fields.length * 2);
+        expect('{');
+        if (peekToken() == '}') {
+            position++;
+            return result;
+        }
+        while (true) {
+            readKey();
+            expect(':');
+            final int index = findField();
+            if (index >= 0 && peekToken() == '[') {
+                result.put(fields[index], readVector());
+            } else {
+                skipValue();
+            }
+            final int c = nextToken();
+            if (c == '}') {
+                return result;
+            }
+            if (c != ',') {
+                throw unexpected(c);
+            }
+        }
+    }
+
+    protected float[] readVector() throws IOException {
+        expect('[');
+        float[] vector = new float[dimension];
+        int size = 0;
+        if (peekToken() == ']') {
+            position++;
+            return new float[0];
+        }
+        while (true) {
+            if (size == vector.length) {
+                vector = Arrays.copyOf(vector, Math.max(16, size * 2));
+            }
+            vector[size++] = readNumber();
+            final int c = nextToken();
+            if (c == ']') {
+                return size == vector.length ? vector : Arrays.copyOf(vector, size);
+            }
+            if (c != ',') {
+                throw unexpected(c);
+            }
+        }
+    }
+
+    protected float readNumber() throws IOException {
+        int c = peekToken();
+        final boolean negative = c == '-';
+        if (negative) {
+            position++;
+            c = peek();
+        }
+        if (c == 'n' || c == 'N' || c == 'I') {
+            final String literal = readLiteral();
+            switch (literal) {
+            case "null":
+            case "NaN":
+                return Float.NaN;
+            case "Infinity":
+                return negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+            default:
+                throw new IOException("Unexpected literal: " + (negative ? "-" : "") + literal);
+            }
+        }
+        long mantissa = 0L;
+        int digits = 0;
+        int exponent = 0;
+        while ((c = peek()) >= '0' && c <= '9') {
+            position++;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0L) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+        }
+        if (c == '.') {
+            position++;
+            while ((c = peek()) >= '0' && c <= '9') {
+                position++;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    exponent--;
+                    if (mantissa != 0L) {
+                        digits++;
+                    }
+                }
+            }
+        }
+        if (c == 'e' || c == 'E') {
+            position++;
+            c = peek();
+            boolean negativeExponent = false;
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                position++;
+            }
+            int exp = 0;
+            while ((c = peek()) >= '0' && c <= '9') {
+                position++;
+                if (exp < 10000) {
+                    exp = exp * 10 + (c - '0');
+                }
+            }
+            exponent += negativeExponent ? -exp : exp;
+        }
+        final double value;
+        if (mantissa == 0L) {
+            value = 0.0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            value = mantissa * Math.pow(10, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    protected void readKey() throws IOException {
+        expect('"');
+        keyLength = 0;
+        while (true) {
+            final int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                // escaped keys are compared by their raw form, which never matches a field name with escapes
+                appendKey(c);
+                appendKey(read());
+                continue;
+            }
+            appendKey(c);
+        }
+    }
+
+    protected void appendKey(final int c) {
+        if (keyLength == keyBuffer.length) {
+            keyBuffer = Arrays.copyOf(keyBuffer, keyLength * 2);
+        }
+        keyBuffer[keyLength++] = (byte) c;
+    }
+
+    protected boolean keyEquals(final byte[] name) {
+        return Arrays.equals(keyBuffer, 0, keyLength, name, 0, name.length);
+    }
+
+    protected int findField() {
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (keyEquals(fieldNames[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected void skipValue() throws IOException {
+        final int c = peekToken();
+        switch (c) {
+        case '"':
+            position++;
+            skipString();
+            break;
+        case '{':
+        case '[':
+            skipContainer();
+            break;
+        case '-':
+        case '0':
+        case '1':
+        case '2':
+        case '3':
+        case '4':
+        case '5':
+        case '6':
+        case '7':
+        case '8':
+        case '9':
+            readNumber();
+            break;
+        case 't':
+        case 'f':
+        case 'n':
+        case 'N':
+        case 'I':
+            readLiteral();
+            break;
+        default:
+            throw unexpected(c);
+        }
+    }
+
+    protected void skipString() throws IOException {
+        while (true) {
+            final int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                read();
+            }
+        }
+    }
+
+    protected void skipContainer() throws IOException {
+        int depth = 0;
+        while (true) {
+            final int c = read();
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    protected String readLiteral() throws IOException {
+        final StringBuilder buf = new StringBuilder(8);
+        int c;
+        while ((c = peek()) >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z') {
+            position++;
+            buf.append((char) c);
+        }
+        return buf.toString();
+    }
+
+    protected void expect(final int expected) throws IOException {
+        final int c = nextToken();
+        if (c != expected) {
+            throw unexpected(c);
+        }
+    }
+
+    protected int nextToken() throws IOException {
+        final int c = peekToken();
+        position++;
+        return c;
+    }
+
+    protected int peekToken() throws IOException {
+        while (true) {
+            final int c = peek();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                if (c == -1) {
+                    throw new IOException("Unexpected end of the response.");
+                }
+                return c;
+            }
+            position++;
+        }
+    }
+
+    protected int peek() throws IOException {
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xff;
+    }
+
+    protected int read() throws IOException {
+        if (position >= limit && !fill()) {
+            throw new IOException("Unexpected end of the response.");
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    protected boolean fill() throws IOException {
+        final int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            position = 0;
+            limit = 0;
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    protected IOException unexpected(final int c) {
+        return new IOException(c == -1 ? "Unexpected end of the response." : "Unexpected character: " + (char) c);
+    }
+}
@@ -15,29 +15,63 @@
  */
 package org.codelibs.fess.ingest.vectorizer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Method;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.text.StringEscapeUtils;
 import org.codelibs.core.lang.StringUtil;
 import org.codelibs.core.stream.StreamUtil;
-import org.codelibs.curl.Curl;
-import org.codelibs.curl.CurlResponse;
 import org.codelibs.fess.util.DocumentUtil;
-import org.codelibs.opensearch.runner.net.OpenSearchCurl;
+import org.opensearch.common.xcontent.DeprecationHandler;
+import org.opensearch.common.xcontent.NamedXContentRegistry;
+import org.opensearch.common.xcontent.XContentParser;
+import org.opensearch.common.xcontent.json.JsonXContent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Vectorizer {
     private static final Logger logger = LoggerFactory.getLogger(Vectorizer.class);
 
-    protected Set<String> supportedLanguages = Collections.emptySet();
+    /** which part of a text longer than the input limit is sent */
+    public enum Truncation {
+        HEAD, TAIL, HEAD_TAIL
+    }
+
+    protected static final Map<String, String> JSON_HEADERS = Map.of("Content-Type", "application/json");
+
+    protected volatile Set<String> supportedLanguages = Collections.emptySet();
 
     protected String url;
 
@@ -47,20 +81,163 @@ public class Vectorizer {
 
     protected float[] emptyValue;
 
+    protected volatile String modelId;
+
+    protected EmbeddingCache cache;
+
+    protected EmbeddingStore store;
+
+    protected String wireFormat;
+
+    protected volatile String binaryFormat;
+
+    protected VectorizerTransport transport = new CurlTransport();
+
+    protected EndpointBalancer balancer;
+
+    protected VectorProjection projection;
+
+    protected VectorizerMetrics metrics = new VectorizerMetrics();
+
+    // vectorizes in process instead of requesting /vectorize if not null
+    protected EmbeddingBackend backend;
+
+    protected Path projectionPath;
+
+    protected long projectionSeed;
+
+    // dimension after the projection, which is fitted later if not loaded
+    protected int projectionDimension;
+
+    // true while the projection is a random one in place of PCA, which is neither saved nor regarded as fitted
+    protected volatile boolean projectionFallback;
+
+    protected ExecutorService asyncExecutor;
+
+    /** vectors being requested by (field, lang, model, text), or null if identical requests are not coalesced */
+    protected Map<EmbeddingCache.Key, CompletableFuture<float[]>> inFlightVectors;
+
+    protected final LongAdder coalescedCount = new LongAdder();
+
+    // max input tokens of the model, from the settings or the server, or 0 if unlimited
+    protected int maxInputLength;
+
+    protected double charsPerToken = 4.0;
+
+    protected Truncation truncation = Truncation.HEAD;
+
+    protected int maxInputChars;
+
+    protected final LongAdder truncatedCount = new LongAdder();
+
+    // request bodies of this size or larger are compressed, or 0 for none
+    protected int compressionThreshold;
+
+    protected boolean responseCompression;
+
+    protected final ThreadLocal<VectorResponseDecoder> decoder =
+            ThreadLocal.withInitial(() -> new VectorResponseDecoder(fields, dimension));
+
     protected void initialize() {
-        try (CurlResponse response = Curl.get(url).header("Content-Type", "application/json").execute()) {
+        if (backend != null) {
+            supportedLanguages = backend.getLanguages();
+            modelId = backend.getModelId();
+        } else {
+            for (final String endpointUrl : getEndpointUrls()) {
+                if (initialize(endpointUrl)) {
+                    break;
+                }
+            }
+        }
+        if (modelId == null) {
+            modelId = url;
+        }
+        emptyValue = new float[getDimension()];
+        if (maxInputLength > 0) {
+            maxInputChars = (int) Math.min(Integer.MAX_VALUE, (long) (maxInputLength * charsPerToken));
+            logger.info("Max input length: {} tokens, {} chars, truncation={}", maxInputLength, maxInputChars, truncation);
+        }
+    }
+
+    protected boolean initialize(final String endpointUrl) {
+        final Map<String, Object> contentMap = getServerInfo(endpointUrl);
+        if (contentMap == null) {
+            return false;
+        }
+        final Object model = contentMap.get("model");
+        if (model != null) {
+            modelId = model.toString();
+        }
+        if (maxInputLength <= 0) {
+            final Object maxLength = contentMap.containsKey("max_input_length") ? contentMap.get("max_input_length")
+                    : contentMap.get("max_seq_length");
+            if (maxLength instanceof Number) {
+                maxInputLength = ((Number) maxLength).intValue();
+            }
+        }
+        supportedLanguages = getLanguages(contentMap);
+        return true;
+    }
+
+    /**
+     * Fetches the languages of the server again, so that a server which was
+     * not available or has been updated since the startup is picked up.
+     *
+     * @return true if the supported languages are changed
+     */
+    public boolean refreshLanguages() {
+        if (backend != null) {
+            return false;
+        }
+        for (final String endpointUrl : getEndpointUrls()) {
+            final Map<String, Object> contentMap = getServerInfo(endpointUrl);
+            if (contentMap != null) {
+                final Set<String> languages = getLanguages(contentMap);
+                if (languages.equals(supportedLanguages)) {
+                    return false;
+                }
+                logger.info("Supported languages of {} are changed: {} -> {}", endpointUrl, supportedLanguages, languages);
+                supportedLanguages = languages;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the information of the server, or null if it is not available
+     */
+    protected Map<String, Object> getServerInfo(final String endpointUrl) {
+        try (VectorizerTransport.Response response = transport.get(endpointUrl, JSON_HEADERS)) {
             if (response.getHttpStatusCode() == 200) {
-                final Map<String, Object> contentMap = response.getContent(OpenSearchCurl.jsonParser());
-                @SuppressWarnings("unchecked")
-                final List<String> values = (List<String>) contentMap.get("languages");
-                supportedLanguages = new HashSet<>(values);
-            } else {
-                logger.warn("Failed to access to {} : {}", url, response.getContentAsString());
+                final Map<String, Object> contentMap = parseJson(response.getContentAsStream());
+                if (wireFormat != null && binaryFormat == null) {
+                    final Object formats = contentMap.get("formats");
+                    if (formats instanceof List && ((List<?>) formats).contains(wireFormat)) {
+                        binaryFormat = wireFormat;
+                        logger.info("Binary vector format: {}", binaryFormat);
+                    }
+                }
+                return contentMap;
             }
+            logger.warn("Failed to access to {} : {}", endpointUrl, response.getContentAsString());
         } catch (final IOException e) {
-            logger.warn("Failed to access to {}", url, e);
+            logger.warn("Failed to access to {}", endpointUrl, e);
         }
-        emptyValue = new float[dimension];
+        return null;
+    }
+
+    protected Set<String> getLanguages(final Map<String, Object> contentMap) {
+        @SuppressWarnings("unchecked")
+        final List<String> values = (List<String>) contentMap.get("languages");
+        return values == null ? Collections.emptySet() : new HashSet<>(values);
+    }
+
+    protected List<String> getEndpointUrls() {
+        if (balancer == null) {
+            return Collections.singletonList(url);
+        }
+        return balancer.getEndpoints().stream().map(VectorizerEndpoint::getUrl).collect(Collectors.toList());
     }
 
     public Optional<String> getLanguage(final Map<String, Object> input) {
@@ -70,6 +247,7 @@ public class Vectorizer {
         }
 
         if (!supportedLanguages.contains(lang)) {
+            metrics.recordUnsupportedLanguage();
             if (logger.isDebugEnabled()) {
                 logger.debug("Unsupported lang: {}", lang);
             }
@@ -79,67 +257,552 @@ public class Vectorizer {
     }
 
     public Map<String, float[]> vectorize(final Map<String, Object> input) {
-        final Optional<String> langOpt = getLanguage(input);
-        if (langOpt.isEmpty()) {
-            return Collections.emptyMap();
+        return vectorizeBatch(Collections.singletonList(input)).get(0);
+    }
+
+    public List<Map<String, float[]>> vectorizeBatch(final List<Map<String, Object>> inputs) {
+        if (projection == null && projectionDimension > 0) {
+            fitProjection(Collections.emptyList());
+        }
+        return vectorizeBatch(inputs, false);
+    }
+
+    /**
+     * @param raw true to get the vectors of the model without the cache and the projection
+     */
+    protected List<Map<String, float[]>> vectorizeBatch(final List<Map<String, Object>> inputs, final boolean raw) {
+        return vectorizeBatch(inputs, raw, true);
+    }
+
+    /**
+     * @param coalescing false to request texts even if identical ones are in flight, e.g. for a hedged request
+     */
+    protected List<Map<String, float[]>> vectorizeBatch(final List<Map<String, Object>> inputs, final boolean raw,
+            final boolean coalescing) {
+        final long buildStart = System.nanoTime();
+        final boolean coalesce = coalescing && !raw && inFlightVectors != null;
+        final List<Map<String, float[]>> outputs = new ArrayList<>(inputs.size());
+        final List<Integer> positions = new ArrayList<>(inputs.size());
+        final List<Map<String, EmbeddingCache.Key>> missingKeys = new ArrayList<>(inputs.size());
+        final List<Map<String, String>> texts = new ArrayList<>(inputs.size());
+        final List<String> langs = new ArrayList<>(inputs.size());
+        // vectors requested by other calls, and fields with the same text as another field, by input
+        final Map<Integer, Map<EmbeddingCache.Key, CompletableFuture<float[]>>> waiting = coalesce ? new HashMap<>() : null;
+        final Map<EmbeddingCache.Key, String> waitingTexts = coalesce ? new HashMap<>() : null;
+        final Map<Integer, Map<String, String>> sameFields = coalesce ? new HashMap<>() : null;
+        final Map<EmbeddingCache.Key, CompletableFuture<float[]>> owned = coalesce ? new HashMap<>() : null;
+        for (int i = 0; i < inputs.size(); i++) {
+            outputs.add(Collections.emptyMap());
+            final Map<String, Object> input = inputs.get(i);
+            final Optional<String> langOpt = getLanguage(input);
+            if (langOpt.isEmpty()) {
+                continue;
+            }
+
+            final String lang = langOpt.get();
+            final Map<String, String> text = new LinkedHashMap<>(fields.length * 2);
+            Map<String, EmbeddingCache.Key> keys = null;
+            Map<String, String> fieldsByValue = null;
+            for (final String field : fields) {
+                final String value = truncate(DocumentUtil.getValue(input, field, String.class, StringUtil.EMPTY));
+                if (StringUtil.isEmpty(value)) {
+                    continue;
+                }
+                if (coalesce) {
+                    if (fieldsByValue == null) {
+                        fieldsByValue = new HashMap<>(fields.length * 2);
+                    }
+                    final String sameField = fieldsByValue.putIfAbsent(value, field);
+                    if (sameField != null) {
+                        sameFields.computeIfAbsent(i, k -> new HashMap<>()).put(field, sameField);
+                        coalescedCount.increment();
+                        continue;
+                    }
+                }
+                if (!raw && (cache != null || store != null || coalesce)) {
+                    final EmbeddingCache.Key key = new EmbeddingCache.Key(field, lang, modelId, ContentHash.of(value));
+                    final float[] vector = getCachedVector(key);
+                    if (vector != null) {
+                        if (outputs.get(i).isEmpty()) {
+                            outputs.set(i, new HashMap<>(fields.length));
+                        }
+                        outputs.get(i).put(field, vector);
+                        continue;
+                    }
+                    if (coalesce) {
+                        final CompletableFuture<float[]> future = new CompletableFuture<>();
+                        final CompletableFuture<float[]> inFlight = inFlightVectors.putIfAbsent(key, future);
+                        if (inFlight != null) {
+                            waiting.computeIfAbsent(i, k -> new HashMap<>()).put(key, inFlight);
+                            waitingTexts.put(key, value);
+                            coalescedCount.increment();
+                            continue;
+                        }
+                        owned.put(key, future);
+                    }
+                    if (keys == null) {
+                        keys = new HashMap<>(fields.length);
+                    }
+                    keys.put(field, key);
+                }
+                text.put(field, value);
+            }
+            if (text.isEmpty()) {
+                continue;
+            }
+            texts.add(text);
+            langs.add(lang);
+            positions.add(i);
+            missingKeys.add(keys);
+        }
+
+        try {
+            if (!positions.isEmpty()) {
+                vectorizeTexts(texts, langs, positions, missingKeys, outputs, owned, raw, buildStart);
+            }
+        } finally {
+            if (owned != null) {
+                // callers waiting for a vector that was not returned get nothing, as the owner does
+                owned.forEach((key, future) -> {
+                    future.complete(null);
+                    inFlightVectors.remove(key, future);
+                });
+            }
+        }
+
+        if (coalesce) {
+            // texts whose owner got no vector, e.g. because it was cancelled, are requested by this call
+            final List<Map<String, String>> retryTexts = new ArrayList<>();
+            final List<String> retryLangs = new ArrayList<>();
+            final List<Integer> retryPositions = new ArrayList<>();
+            final List<Map<String, EmbeddingCache.Key>> retryKeys = new ArrayList<>();
+            waiting.forEach((i, futures) -> {
+                Map<String, String> text = null;
+                Map<String, EmbeddingCache.Key> keys = null;
+                for (final Map.Entry<EmbeddingCache.Key, CompletableFuture<float[]>> entry : futures.entrySet()) {
+                    final EmbeddingCache.Key key = entry.getKey();
+                    final float[] vector = entry.getValue().join();
+                    if (vector != null) {
+                        if (outputs.get(i).isEmpty()) {
+                            outputs.set(i, new HashMap<>(fields.length));
+                        }
+                        outputs.get(i).put(key.getField(), vector);
+                        continue;
+                    }
+                    if (text == null) {
+                        text = new LinkedHashMap<>();
+                        keys = new HashMap<>();
+                        retryTexts.add(text);
+                        retryLangs.add(key.getLang());
+                        retryPositions.add(i);
+                        retryKeys.add(keys);
+                    }
+                    text.put(key.getField(), waitingTexts.get(key));
+                    keys.put(key.getField(), key);
+                }
+            });
+            if (!retryTexts.isEmpty()) {
+                vectorizeTexts(retryTexts, retryLangs, retryPositions, retryKeys, outputs, null, raw, System.nanoTime());
+            }
+            sameFields.forEach((i, aliases) -> aliases.forEach((field, sameField) -> {
+                final float[] vector = outputs.get(i).get(sameField);
+                if (vector != null) {
+                    outputs.get(i).put(field, vector);
+                }
+            }));
+        }
+        return outputs;
+    }
+
+    protected void vectorizeTexts(final List<Map<String, String>> texts, final List<String> langs, final List<Integer> positions,
+            final List<Map<String, EmbeddingCache.Key>> missingKeys, final List<Map<String, float[]>> outputs,
+            final Map<EmbeddingCache.Key, CompletableFuture<float[]>> owned, final boolean raw, final long buildStart) {
+        final List<Map<String, float[]>> results;
+        if (backend != null) {
+            results = backend.vectorize(texts, langs);
+            metrics.recordBuild(System.nanoTime() - buildStart, positions.size());
+        } else {
+            final byte[] body = buildBody(texts, langs);
+            metrics.recordBuild(System.nanoTime() - buildStart, positions.size());
+            results = requestVectors(body);
+        }
+        if (results != null && results.size() == positions.size()) {
+            for (int i = 0; i < results.size(); i++) {
+                final Map<String, float[]> vectors = results.get(i);
+                if (!raw && projection != null) {
+                    project(vectors);
+                }
+                final Map<String, EmbeddingCache.Key> keys = missingKeys.get(i);
+                if (keys != null) {
+                    vectors.entrySet().forEach(e -> {
+                        final EmbeddingCache.Key key = keys.get(e.getKey());
+                        if (key != null) {
+                            putCachedVector(key, e.getValue());
+                            if (owned != null) {
+                                final CompletableFuture<float[]> future = owned.get(key);
+                                if (future != null) {
+                                    future.complete(e.getValue());
+                                }
+                            }
+                        }
+                    });
+                }
+                final Map<String, float[]> output = outputs.get(positions.get(i));
+                if (output.isEmpty()) {
+                    outputs.set(positions.get(i), vectors);
+                } else {
+                    output.putAll(vectors);
+                }
+            }
+        } else if (results != null) {
+            if (results.isEmpty()) {
+                logger.warn("No vectorizing data.");
+            } else {
+                logger.warn("Unexpected vectorizing results: expected={}, actual={}", positions.size(), results.size());
+            }
         }
+    }
 
-        final StringBuilder bodyBuf = new StringBuilder(1000);
+    /**
+     * Cuts a text to the estimated number of characters that the model reads,
+     * so that the rest is neither escaped nor sent.
+     */
+    protected String truncate(final String value) {
+        final int limit = maxInputChars;
+        if (limit <= 0 || value.length() <= limit) {
+            return value;
+        }
+        truncatedCount.increment();
+        switch (truncation) {
+        case TAIL:
+            return value.substring(startOf(value, value.length() - limit));
+        case HEAD_TAIL:
+            final int head = limit / 2;
+            return value.substring(0, endOf(value, head)) + "\n" + value.substring(startOf(value, value.length() - (limit - head - 1)));
+        default:
+            return value.substring(0, endOf(value, limit));
+        }
+    }
+
+    // does not split a surrogate pair
+    private static int endOf(final String value, final int end) {
+        return end > 0 && Character.isHighSurrogate(value.charAt(end - 1)) ? end - 1 : end;
+    }
+
+    private static int startOf(final String value, final int start) {
+        return start < value.length() && Character.isLowSurrogate(value.charAt(start)) ? start + 1 : start;
+    }
+
+    protected byte[] buildBody(final List<Map<String, String>> texts, final List<String> langs) {
+        final StringBuilder bodyBuf = new StringBuilder(1000 * texts.size());
         bodyBuf.append("{\"data\":[");
-        bodyBuf.append('{');
-        for (final String field : fields) {
-            final String value = DocumentUtil.getValue(input, field, String.class, StringUtil.EMPTY);
-            bodyBuf.append("\"").append(StringEscapeUtils.escapeJson(field)).append("\":\"").append(StringEscapeUtils.escapeJson(value))
-                    .append("\",");
-        }
-        bodyBuf.append("\"lang\":\"").append(StringEscapeUtils.escapeJson(langOpt.get())).append("\"");
-        bodyBuf.append('}');
+        for (int i = 0; i < texts.size(); i++) {
+            if (i > 0) {
+                bodyBuf.append(',');
+            }
+            bodyBuf.append('{');
+            texts.get(i).forEach((field, value) -> bodyBuf.append("\"").append(StringEscapeUtils.escapeJson(field)).append("\":\"")
+                    .append(StringEscapeUtils.escapeJson(value)).append("\","));
+            bodyBuf.append("\"lang\":\"").append(StringEscapeUtils.escapeJson(langs.get(i))).append("\"");
+            bodyBuf.append('}');
+        }
         bodyBuf.append("]}");
 
         if (logger.isDebugEnabled()) {
             logger.debug(">>> {}", bodyBuf.toString());
         }
+        return bodyBuf.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-        try (CurlResponse response =
-                Curl.post(url + "/vectorize").header("Content-Type", "application/json").body(bodyBuf.toString()).execute()) {
-            if (response.getHttpStatusCode() == 200) {
-                final Map<String, Object> contentMap = response.getContent(OpenSearchCurl.jsonParser());
-                if (logger.isDebugEnabled()) {
-                    logger.debug("<<< {}", response.getContentAsString());
-                }
-                @SuppressWarnings("unchecked")
-                final List<Map<String, Object>> results = (List<Map<String, Object>>) contentMap.get("results");
-                if (!results.isEmpty()) {
-                    final Map<String, Object> result = results.get(0);
-                    final Map<String, float[]> output = new HashMap<>(fields.length);
-                    for (final String field : fields) {
-                        @SuppressWarnings("unchecked")
-                        final List<Number> values = (List<Number>) result.get(field);
-                        final float[] data = new float[values.size()];
-                        for (int i = 0; i < data.length; i++) {
-                            data[i] = values.get(i).floatValue();
-                        }
-                        output.put(field, data);
+    protected void project(final Map<String, float[]> vectors) {
+        final Iterator<Map.Entry<String, float[]>> iterator = vectors.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, float[]> entry = iterator.next();
+            if (entry.getValue().length == projection.getInputDimension()) {
+                entry.setValue(projection.project(entry.getValue()));
+            } else {
+                logger.warn("Unexpected dimension of {}: {}", entry.getKey(), entry.getValue().length);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Fits the PCA projection on the vectors of the sample documents, and
+     * saves it. If there are fewer sample vectors than the target dimension,
+     * the principal components cannot be estimated, so a random projection
+     * is used in memory until this method is called again with enough samples.
+     */
+    public synchronized void fitProjection(final List<Map<String, Object>> samples) {
+        if (projection != null && !projectionFallback || projectionDimension <= 0) {
+            return;
+        }
+        final List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < samples.size(); i += 32) {
+            for (final Map<String, float[]> result : vectorizeBatch(samples.subList(i, Math.min(i + 32, samples.size())), true)) {
+                result.values().stream().filter(v -> v.length == dimension).forEach(vectors::add);
+            }
+        }
+        if (vectors.size() < projectionDimension) {
+            if (projection == null) {
+                logger.warn("Not enough samples for PCA: {} < {}. A random projection is used until PCA is fitted.", vectors.size(),
+                        projectionDimension);
+                setProjection(VectorProjection.random(dimension, projectionDimension, projectionSeed));
+                projectionFallback = true;
+            }
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        final VectorProjection fitted = VectorProjection.pca(vectors, projectionDimension, 20, projectionSeed);
+        logger.info("Fitted PCA on {} vectors in {}ms.", vectors.size(), System.currentTimeMillis() - startTime);
+        try {
+            fitted.save(projectionPath);
+        } catch (final IOException e) {
+            logger.warn("Failed to save the projection to {}", projectionPath, e);
+        }
+        if (projectionFallback) {
+            logger.warn("Replaced the random projection with PCA. Documents vectorized before need to be re-indexed.");
+        }
+        setProjection(fitted);
+        projectionFallback = false;
+    }
+
+    protected void setProjection(final VectorProjection projection) {
+        if (projection.getInputDimension() != dimension || projection.getOutputDimension() != projectionDimension) {
+            throw new IllegalStateException("The projection " + projectionPath + " does not match the dimensions: "
+                    + projection.getInputDimension() + "x" + projection.getOutputDimension());
+        }
+        // cached vectors of another projection must not be reused
+        final String baseModelId = this.projection != null ? modelId.substring(0, modelId.lastIndexOf('#')) : modelId;
+        modelId = baseModelId + "#" + projection.getId();
+        this.projection = projection;
+        logger.info("Projection: {}", modelId);
+    }
+
+    public boolean isProjectionFitted() {
+        return projectionDimension <= 0 || projection != null && !projectionFallback;
+    }
+
+    /**
+     * @return the dimension of the vectors after the projection
+     */
+    public int getDimension() {
+        return projectionDimension > 0 ? projectionDimension : dimension;
+    }
+
+    /**
+     * @return the dimension of the vectors of the field
+     */
+    public int getDimension(final String field) {
+        return getDimension();
+    }
+
+    /**
+     * Sends the request body to an endpoint chosen by the balancer, and tries
+     * the other endpoints when the server fails or is overloaded.
+     *
+     * @return the decoded results, or null if the request failed
+     */
+    protected List<Map<String, float[]>> requestVectors(final byte[] body) {
+        final boolean compressed = compressionThreshold > 0 && body.length >= compressionThreshold;
+        final byte[] payload = compressed ? gzip(body) : body;
+        final Map<String, String> headers = getVectorizeHeaders(compressed);
+        final Set<VectorizerEndpoint> failed = new HashSet<>();
+        while (true) {
+            final VectorizerEndpoint endpoint;
+            final String endpointUrl;
+            if (balancer == null) {
+                endpoint = null;
+                endpointUrl = url;
+            } else {
+                endpoint = failed.size() < balancer.getEndpoints().size() ? balancer.acquire(failed) : null;
+                if (endpoint == null) {
+                    metrics.recordError("unavailable");
+                    logger.warn("No vectorizer endpoint is available: {}", balancer.getEndpoints());
+                    return null;
+                }
+                endpointUrl = endpoint.getUrl();
+            }
+
+            final long start = System.nanoTime();
+            // null means that the server is healthy but rejected this request
+            Boolean healthy = Boolean.FALSE;
+            metrics.recordSent(payload.length);
+            try (VectorizerTransport.Response response = transport.post(endpointUrl + "/vectorize", headers, payload)) {
+                final long decodeStart = System.nanoTime();
+                metrics.recordNetwork(decodeStart - start);
+                final int status = response.getHttpStatusCode();
+                if (status == 200) {
+                    final List<Map<String, float[]>> results = decodeResults(response);
+                    metrics.recordDecode(System.nanoTime() - decodeStart);
+                    healthy = Boolean.TRUE;
+                    if (results == null) {
+                        metrics.recordError("no_results");
+                        logger.warn("No results in the response of {}", endpointUrl);
+                    }
+                    return results;
+                }
+                metrics.recordError(Integer.toString(status));
+                logger.warn("Failed to vectorize on {}: {}", endpointUrl, response.getContentAsString());
+                if (status != 429 && status < 500) {
+                    healthy = null;
+                    return null;
+                }
+            } catch (final IOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // cancelled by the caller, e.g. over the latency budget, which says nothing about the server
+                    healthy = null;
+                    return null;
+                }
+                metrics.recordError("io");
+                logger.warn("Failed to access to {}", endpointUrl, e);
+            } finally {
+                if (endpoint != null) {
+                    if (healthy == null) {
+                        endpoint.release();
+                    } else if (healthy) {
+                        endpoint.onSuccess(System.nanoTime() - start);
+                    } else {
+                        endpoint.onFailure();
                     }
-                    return output;
                 }
-                logger.warn("No vectorizing data.");
-            } else {
-                logger.warn("Failed to vectorize: {}", response.getContentAsString());
             }
+            if (endpoint == null) {
+                return null;
+            }
+            failed.add(endpoint);
+        }
+    }
+
+    protected Map<String, String> getVectorizeHeaders(final boolean compressed) {
+        if (binaryFormat == null && !compressed && !responseCompression) {
+            return JSON_HEADERS;
+        }
+        final Map<String, String> headers = new HashMap<>(JSON_HEADERS);
+        if (binaryFormat != null) {
+            headers.put("Accept", BinaryVectorDecoder.CONTENT_TYPE + "; dtype=" + binaryFormat + ", application/json; q=0.5");
+        }
+        if (compressed) {
+            headers.put("Content-Encoding", "gzip");
+        }
+        if (responseCompression) {
+            headers.put("Accept-Encoding", "gzip");
+        }
+        return headers;
+    }
+
+    protected static byte[] gzip(final byte[] body) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+            gzip.write(body);
         } catch (final IOException e) {
-            logger.warn("Failed to access to {}", url, e);
+            throw new IllegalStateException("Failed to compress the request.", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the decompressed content, which is counted as received before the decompression
+     */
+    protected InputStream getContentAsStream(final VectorizerTransport.Response response) throws IOException {
+        final InputStream in = metrics.countReceived(response.getContentAsStream());
+        if ("gzip".equalsIgnoreCase(response.getHeader("Content-Encoding"))) {
+            return new GZIPInputStream(in, 8192);
+        }
+        return in;
+    }
+
+    protected List<Map<String, float[]>> decodeResults(final VectorizerTransport.Response response) throws IOException {
+        final String contentType = response.getHeader("Content-Type");
+        if (binaryFormat != null && (contentType == null || contentType.startsWith(BinaryVectorDecoder.CONTENT_TYPE))) {
+            final PushbackInputStream in =
+                    new PushbackInputStream(getContentAsStream(response), BinaryVectorDecoder.MAGIC.length);
+            final byte[] head = in.readNBytes(BinaryVectorDecoder.MAGIC.length);
+            in.unread(head);
+            if (BinaryVectorDecoder.isBinary(head, head.length)) {
+                final List<Map<String, float[]>> results = new BinaryVectorDecoder(fields).decode(in);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("<<< {} results of {} vectors", results.size(), binaryFormat);
+                }
+                return results;
+            }
+            return decodeJsonResults(in);
+        }
+        return decodeJsonResults(getContentAsStream(response));
+    }
+
+    protected List<Map<String, float[]>> decodeJsonResults(final InputStream in) throws IOException {
+        if (logger.isDebugEnabled()) {
+            final byte[] content = in.readAllBytes();
+            logger.debug("<<< {}", new String(content, StandardCharsets.UTF_8));
+            return decoder.get().decode(new ByteArrayInputStream(content));
+        }
+        return decoder.get().decode(in);
+    }
+
+    protected float[] getCachedVector(final EmbeddingCache.Key key) {
+        if (cache != null) {
+            final float[] vector = cache.get(key);
+            if (vector != null) {
+                return vector;
+            }
+        }
+        if (store != null) {
+            final float[] vector = store.get(key);
+            if (vector != null) {
+                if (cache != null) {
+                    cache.put(key, vector);
+                }
+                return vector;
+            }
+        }
+        return null;
+    }
+
+    protected void putCachedVector(final EmbeddingCache.Key key, final float[] vector) {
+        if (cache != null) {
+            cache.put(key, vector);
+        }
+        if (store != null) {
+            store.put(key, vector);
         }
+    }
 
-        return Collections.emptyMap();
+    public CompletableFuture<Map<String, float[]>> vectorizeAsync(final Map<String, Object> input) {
+        return CompletableFuture.supplyAsync(() -> vectorize(input), getAsyncExecutor());
     }
 
+    public CompletableFuture<List<Map<String, float[]>>> vectorizeBatchAsync(final List<Map<String, Object>> inputs) {
+        return CompletableFuture.supplyAsync(() -> vectorizeBatch(inputs), getAsyncExecutor());
+    }
+
+    protected Executor getAsyncExecutor() {
+        return asyncExecutor != null ? asyncExecutor : ForkJoinPool.commonPool();
+    }
+
+    protected static Map<String, Object> parseJson(final InputStream in) throws IOException {
+        try (XContentParser parser =
+                JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.IGNORE_DEPRECATIONS, in)) {
+            return parser.map();
+        }
+    }
+
+    /**
+     * @return true if any endpoint answers the ping
+     */
     public boolean isActive() {
-        try (CurlResponse response = Curl.get(url + "/ping").header("Content-Type", "application/json").execute()) {
+        if (backend != null) {
+            return backend.isActive();
+        }
+        return getEndpointUrls().stream().anyMatch(this::ping);
+    }
+
+    protected boolean ping(final String endpointUrl) {
+        try (VectorizerTransport.Response response = transport.get(endpointUrl + "/ping", JSON_HEADERS)) {
             if (response.getHttpStatusCode() != 200) {
                 return false;
             }
-            final Map<String, Object> contentMap = response.getContent(OpenSearchCurl.jsonParser());
+            final Map<String, Object> contentMap = parseJson(response.getContentAsStream());
             final Object status = contentMap.get("status");
             if (!"ok".equals(status)) {
                 return false;
@@ -158,26 +821,155 @@ public class Vectorizer {
         return fields;
     }
 
+    /**
+     * @return the vectorizer which vectorizes the field
+     * @throws IllegalArgumentException if no vectorizer vectorizes the field
+     */
+    public Vectorizer getVectorizer(final String field) {
+        return this;
+    }
+
+    public EmbeddingCache getCache() {
+        return cache;
+    }
+
+    public EmbeddingStore getStore() {
+        return store;
+    }
+
+    public EndpointBalancer getBalancer() {
+        return balancer;
+    }
+
+    /**
+     * @return the number of texts that were not requested because an identical text was in flight or in the same input
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    public long getTruncatedCount() {
+        return truncatedCount.sum();
+    }
+
+    public VectorizerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void close() {
+        metrics.close();
+        if (balancer != null) {
+            balancer.close();
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+        transport.close();
+        if (backend != null) {
+            backend.close();
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    protected static ExecutorService newAsyncExecutor(final boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                logger.info("Virtual threads are not available, so platform threads are used for async calls.");
+            }
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "vectorizer-async-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     public static Builder create() {
         return new Builder();
     }
 
     public static class Builder {
-        private String url = "http://localhost:8900";
+        private List<String> urls = Collections.singletonList("http://localhost:8900");
+        private EndpointBalancer.Routing routing = EndpointBalancer.Routing.LEAST_OUTSTANDING;
+        private long healthCheckInterval = 10000L;
+        private int circuitBreakerFailures = 5;
+        private long circuitBreakerOpenTime = 30000L;
         private String[] fields = { "content" };
         private int dimension = 768;
+        private String backend = "http";
+        private Function<String, String> backendSettings = name -> null;
+        private String projection = "none";
+        private int projectionDimension = 0;
+        private String projectionPath;
+        private long projectionSeed = 1L;
+        private long cacheSize = 0L;
+        private boolean cacheOffHeap = true;
+        private EmbeddingCache.Policy cachePolicy = EmbeddingCache.Policy.TINYLFU;
+        private String storePath;
+        private long storeSegmentSize = 256L * 1024 * 1024;
+        private long storeMaxSize = 10L * 1024 * 1024 * 1024;
+        private double storeCompactionThreshold = 0.5;
+        private String transport = "httpclient";
+        private HttpClient.Version httpVersion = HttpClient.Version.HTTP_1_1;
+        private long connectTimeout = 10000L;
+        private long readTimeout = 60000L;
+        private int maxInFlight = 32;
+        private boolean virtualThreads = true;
+        private boolean coalesce = true;
+        private int maxInputLength = 0;
+        private double charsPerToken = 4.0;
+        private Truncation truncation = Truncation.HEAD;
+        private int compressionThreshold = 0;
+        private boolean responseCompression = false;
+        private String wireFormat = "float32";
 
         protected Builder() {
             // nothing
         }
 
+        /**
+         * @param url a server URL, or comma-separated URLs of servers that serve the same model
+         */
         public Builder url(final String url) {
-            if (StringUtil.isNotBlank(url)) {
-                this.url = url;
+            final List<String> values = StreamUtil.split(url, ",")
+                    .get(stream -> stream.map(String::trim).filter(StringUtil::isNotEmpty).collect(Collectors.toList()));
+            if (!values.isEmpty()) {
+                urls = values;
             }
             return this;
         }
 
+        /**
+         * @param routing least_outstanding or latency
+         */
+        public Builder routing(final String routing) {
+            if (StringUtil.isNotBlank(routing)) {
+                this.routing = EndpointBalancer.Routing.valueOf(routing.trim().toUpperCase(Locale.ROOT));
+            }
+            return this;
+        }
+
+        public Builder healthCheckInterval(final long healthCheckInterval) {
+            this.healthCheckInterval = healthCheckInterval;
+            return this;
+        }
+
+        public Builder circuitBreakerFailures(final int circuitBreakerFailures) {
+            this.circuitBreakerFailures = circuitBreakerFailures;
+            return this;
+        }
+
+        public Builder circuitBreakerOpenTime(final long circuitBreakerOpenTime) {
+            this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+            return this;
+        }
+
         public Builder fields(final String fields) {
             final String[] values = StreamUtil.split(fields, ",")
                     .get(stream -> stream.map(String::trim).filter(StringUtil::isNotEmpty).toArray(n -> new String[n]));
@@ -197,12 +989,270 @@ public class Vectorizer {
             return this;
         }
 
+        /**
+         * @param backend http for the vectorizing server, or the name of an {@link EmbeddingBackend.Provider}
+         */
+        public Builder backend(final String backend) {
+            if (StringUtil.isNotBlank(backend)) {
+                this.backend = backend.trim().toLowerCase(Locale.ROOT);
+            }
+            return this;
+        }
+
+        public Builder backendSettings(final Function<String, String> backendSettings) {
+            this.backendSettings = backendSettings;
+            return this;
+        }
+
+        /**
+         * @param projection none, pca or random
+         */
+        public Builder projection(final String projection) {
+            if (StringUtil.isNotBlank(projection)) {
+                this.projection = projection.trim().toLowerCase(Locale.ROOT);
+            }
+            return this;
+        }
+
+        public Builder projectionDimension(final int projectionDimension) {
+            this.projectionDimension = projectionDimension;
+            return this;
+        }
+
+        public Builder projectionPath(final String projectionPath) {
+            this.projectionPath = projectionPath;
+            return this;
+        }
+
+        public Builder projectionSeed(final long projectionSeed) {
+            this.projectionSeed = projectionSeed;
+            return this;
+        }
+
+        public Builder cacheSize(final long cacheSize) {
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        public Builder cacheOffHeap(final boolean cacheOffHeap) {
+            this.cacheOffHeap = cacheOffHeap;
+            return this;
+        }
+
+        public Builder cachePolicy(final String cachePolicy) {
+            if (StringUtil.isNotBlank(cachePolicy)) {
+                this.cachePolicy = EmbeddingCache.Policy.valueOf(cachePolicy.trim().toUpperCase(Locale.ROOT));
+            }
+            return this;
+        }
+
+        public Builder storePath(final String storePath) {
+            this.storePath = storePath;
+            return this;
+        }
+
+        public Builder storeSegmentSize(final long storeSegmentSize) {
+            this.storeSegmentSize = storeSegmentSize;
+            return this;
+        }
+
+        public Builder storeMaxSize(final long storeMaxSize) {
+            this.storeMaxSize = storeMaxSize;
+            return this;
+        }
+
+        public Builder storeCompactionThreshold(final double storeCompactionThreshold) {
+            this.storeCompactionThreshold = storeCompactionThreshold;
+            return this;
+        }
+
+        public Builder transport(final String transport) {
+            if (StringUtil.isNotBlank(transport)) {
+                this.transport = transport.trim().toLowerCase(Locale.ROOT);
+            }
+            return this;
+        }
+
+        public Builder httpVersion(final String httpVersion) {
+            if (StringUtil.isNotBlank(httpVersion)) {
+                this.httpVersion = HttpClient.Version.valueOf(httpVersion.trim().toUpperCase(Locale.ROOT));
+            }
+            return this;
+        }
+
+        public Builder connectTimeout(final long connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder readTimeout(final long readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        public Builder maxInFlight(final int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        public Builder virtualThreads(final boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * @param coalesce true to wait for an identical text in flight instead of requesting it again,
+         *        and to vectorize identical fields of an input once
+         */
+        public Builder coalesce(final boolean coalesce) {
+            this.coalesce = coalesce;
+            return this;
+        }
+
+        /**
+         * @param maxInputLength the max input tokens of the model, or 0 to use the value of the server
+         */
+        public Builder maxInputLength(final int maxInputLength) {
+            this.maxInputLength = maxInputLength;
+            return this;
+        }
+
+        public Builder charsPerToken(final double charsPerToken) {
+            this.charsPerToken = charsPerToken;
+            return this;
+        }
+
+        public Builder truncation(final String truncation) {
+            if (StringUtil.isNotBlank(truncation)) {
+                this.truncation = Truncation.valueOf(truncation.trim().toUpperCase(Locale.ROOT));
+            }
+            return this;
+        }
+
+        /**
+         * @param compressionThreshold the size of request bodies to compress with gzip, or 0 not to compress,
+         *        which needs the httpclient transport
+         */
+        public Builder compressionThreshold(final int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * @param responseCompression true to accept gzip responses, which needs the httpclient transport
+         */
+        public Builder responseCompression(final boolean responseCompression) {
+            this.responseCompression = responseCompression;
+            return this;
+        }
+
+        /**
+         * @param wireFormat float32, float16 or json
+         */
+        public Builder wireFormat(final String wireFormat) {
+            if (StringUtil.isNotBlank(wireFormat)) {
+                this.wireFormat = wireFormat.trim().toLowerCase(Locale.ROOT);
+            }
+            return this;
+        }
+
+        protected VectorizerTransport createTransport() {
+            if ("curl".equals(transport)) {
+                return new CurlTransport();
+            }
+            if ("httpclient".equals(transport)) {
+                return new HttpClientTransport(httpVersion, connectTimeout, readTimeout, maxInFlight);
+            }
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+
+        protected void initializeProjection(final Vectorizer instance) {
+            if (Files.exists(instance.projectionPath)) {
+                try {
+                    final VectorProjection loaded = VectorProjection.load(instance.projectionPath);
+                    instance.setProjection(loaded);
+                    // a random projection saved in place of PCA by an older version is fitted again
+                    instance.projectionFallback = "pca".equals(projection)
+                            && loaded.getId().equals(VectorProjection.random(dimension, projectionDimension, projectionSeed).getId());
+                    return;
+                } catch (final IOException e) {
+                    throw new IllegalStateException("Failed to load the projection from " + instance.projectionPath, e);
+                }
+            }
+            if ("random".equals(projection)) {
+                final VectorProjection random = VectorProjection.random(dimension, projectionDimension, projectionSeed);
+                try {
+                    random.save(instance.projectionPath);
+                } catch (final IOException e) {
+                    logger.warn("Failed to save the projection to {}", instance.projectionPath, e);
+                }
+                instance.setProjection(random);
+            }
+            // PCA is fitted by fitProjection(samples)
+        }
+
         public Vectorizer build() {
             final Vectorizer instance = new Vectorizer();
-            instance.url = this.url;
+            instance.url = urls.get(0);
+            instance.balancer = new EndpointBalancer(urls.stream()
+                    .map(u -> new VectorizerEndpoint(u, circuitBreakerFailures, circuitBreakerOpenTime))
+                    .collect(Collectors.toList()), routing);
             instance.fields = this.fields;
             instance.dimension = this.dimension;
+            instance.transport = createTransport();
+            instance.asyncExecutor = newAsyncExecutor(virtualThreads);
+            instance.maxInputLength = maxInputLength;
+            instance.charsPerToken = charsPerToken;
+            instance.truncation = truncation;
+            // curl sends the body as a string and does not return the response headers, so neither direction is compressed
+            if (instance.transport instanceof HttpClientTransport) {
+                instance.compressionThreshold = compressionThreshold;
+                instance.responseCompression = responseCompression;
+            }
+            if (coalesce) {
+                instance.inFlightVectors = new ConcurrentHashMap<>();
+                instance.metrics.registerGauge("coalesced", instance::getCoalescedCount);
+            }
+            instance.metrics.registerGauge("truncated", instance::getTruncatedCount);
+            instance.wireFormat = "json".equals(wireFormat) ? null : wireFormat;
+            if (!"none".equals(projection) && projectionDimension > 0 && projectionDimension < dimension) {
+                if (!"pca".equals(projection) && !"random".equals(projection)) {
+                    throw new IllegalArgumentException("Unknown projection: " + projection);
+                }
+                if (StringUtil.isBlank(projectionPath)) {
+                    throw new IllegalArgumentException("The path of the projection is not specified.");
+                }
+                instance.projectionDimension = projectionDimension;
+                instance.projectionPath = Paths.get(projectionPath);
+                instance.projectionSeed = projectionSeed;
+            }
+            if (!"http".equals(backend)) {
+                instance.backend = EmbeddingBackend.load(backend, dimension, backendSettings);
+                instance.balancer = null;
+                logger.info("Embedding backend: {}", instance.backend);
+            }
             instance.initialize();
+            if (instance.projectionDimension > 0) {
+                initializeProjection(instance);
+            }
+            if (instance.balancer != null) {
+                instance.balancer.startHealthCheck(healthCheckInterval, e -> instance.ping(e.getUrl()));
+                if (urls.size() > 1) {
+                    logger.info("Vectorizer endpoints: {}, routing={}", urls, routing);
+                }
+                instance.metrics.registerGauge("endpoints.outstanding",
+                        () -> instance.balancer.getEndpoints().stream().mapToInt(VectorizerEndpoint::getOutstanding).sum());
+            }
+            if (cacheSize > 0L) {
+                instance.cache = new EmbeddingCache(cacheSize, instance.getDimension(), cacheOffHeap, cachePolicy);
+                instance.metrics.registerGauge("cache.hits", instance.cache::getHitCount);
+                instance.metrics.registerGauge("cache.misses", instance.cache::getMissCount);
+                logger.info("Embedding cache: capacity={}, offHeap={}, policy={}", instance.cache.getCapacity(), cacheOffHeap, cachePolicy);
+            }
+            if (StringUtil.isNotBlank(storePath)) {
+                instance.store = new EmbeddingStore(Paths.get(storePath), instance.getDimension(), storeSegmentSize, storeMaxSize,
+                        storeCompactionThreshold);
+            }
             return instance;
         }
     }
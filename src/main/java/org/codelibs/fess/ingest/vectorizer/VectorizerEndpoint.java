@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A vectorizer server with its load and health: the number of outstanding
+ * requests, a moving average of the response time, and a circuit breaker
+ * that is opened by consecutive failures.
+ */
+public class VectorizerEndpoint {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    protected static final double LATENCY_WEIGHT = 0.2;
+
+    protected final String url;
+
+    protected final int failureThreshold;
+
+    protected final long openTimeNanos;
+
+    protected final AtomicInteger outstanding = new AtomicInteger();
+
+    protected volatile double latencyNanos;
+
+    protected volatile State state = State.CLOSED;
+
+    protected int failures;
+
+    // read by isAvailable() without the lock
+    protected volatile long openedAt;
+
+    protected boolean probing;
+
+    public VectorizerEndpoint(final String url, final int failureThreshold, final long openTimeMillis) {
+        this.url = url;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        openTimeNanos = TimeUnit.MILLISECONDS.toNanos(openTimeMillis);
+    }
+
+    /**
+     * Reserves a request slot. An open breaker rejects requests until its open
+     * time has passed, and then lets a single probe request through.
+     *
+     * @return true if a request can be sent to this endpoint
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+        case OPEN:
+            if (currentTimeNanos() - openedAt < openTimeNanos) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+            // fall through
+        case HALF_OPEN:
+            if (probing) {
+                return false;
+            }
+            probing = true;
+            break;
+        default:
+            break;
+        }
+        outstanding.incrementAndGet();
+        return true;
+    }
+
+    public synchronized void onSuccess(final long elapsedNanos) {
+        outstanding.decrementAndGet();
+        latencyNanos = latencyNanos == 0.0 ? elapsedNanos : latencyNanos + LATENCY_WEIGHT * (elapsedNanos - latencyNanos);
+        failures = 0;
+        probing = false;
+        state = State.CLOSED;
+    }
+
+    public synchronized void onFailure() {
+        outstanding.decrementAndGet();
+        probing = false;
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Releases a request slot without changing the health, e.g. when the
+     * server rejected the request itself.
+     */
+    public synchronized void release() {
+        outstanding.decrementAndGet();
+        probing = false;
+    }
+
+    /**
+     * Applies the result of a background health check. A failed check counts
+     * as a failed request, so that a single lost ping does not open the
+     * breaker; a successful one lets an open breaker probe.
+     */
+    public synchronized void onHealthCheck(final boolean healthy) {
+        if (!healthy) {
+            if (state != State.OPEN) {
+                failures++;
+                if (state == State.HALF_OPEN || failures >= failureThreshold) {
+                    open();
+                }
+            }
+        } else if (state == State.OPEN) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+    }
+
+    protected void open() {
+        state = State.OPEN;
+        openedAt = currentTimeNanos();
+    }
+
+    protected long currentTimeNanos() {
+        return System.nanoTime();
+    }
+
+    public boolean isAvailable() {
+        return state != State.OPEN || currentTimeNanos() - openedAt >= openTimeNanos;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public double getLatencyMillis() {
+        return latencyNanos / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return url + "[state=" + state + ", outstanding=" + outstanding.get() + ", latency=" + String.format("%.1f", getLatencyMillis())
+                + "ms]";
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters, histograms and gauges of the vectorizing hot path. Recording is
+ * lock-free, and the values are read only for the JMX attributes and the
+ * periodic summary log. Times are recorded in nanoseconds and reported in
+ * microseconds.
+ */
+public class VectorizerMetrics implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(VectorizerMetrics.class);
+
+    protected static final String DOMAIN = "org.codelibs.fess.ingest.vectorizer";
+
+    // building the request body
+    protected final LatencyHistogram buildTime = new LatencyHistogram();
+
+    // sending the request until the response headers arrive
+    protected final LatencyHistogram networkTime = new LatencyHistogram();
+
+    // reading and decoding the response body
+    protected final LatencyHistogram decodeTime = new LatencyHistogram();
+
+    protected final LatencyHistogram batchSize = new LatencyHistogram();
+
+    protected final LongAdder requests = new LongAdder();
+
+    protected final LongAdder bytesSent = new LongAdder();
+
+    protected final LongAdder bytesReceived = new LongAdder();
+
+    protected final LongAdder unsupportedLanguages = new LongAdder();
+
+    protected final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    protected final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+
+    protected ObjectName objectName;
+
+    protected ScheduledExecutorService scheduler;
+
+    protected long lastLoggedRequests = -1L;
+
+    public void recordBuild(final long nanos, final int size) {
+        buildTime.record(nanos);
+        batchSize.record(size);
+    }
+
+    /**
+     * @param bytes the size of a request body as sent, after the compression
+     */
+    public void recordSent(final int bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void recordNetwork(final long nanos) {
+        requests.increment();
+        networkTime.record(nanos);
+    }
+
+    public void recordDecode(final long nanos) {
+        decodeTime.record(nanos);
+    }
+
+    public void recordUnsupportedLanguage() {
+        unsupportedLanguages.increment();
+    }
+
+    /**
+     * @param type an HTTP status code, or a name of the failure
+     */
+    public void recordError(final String type) {
+        errors.computeIfAbsent(type, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return the stream counting the bytes read into the received bytes
+     */
+    public InputStream countReceived(final InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    bytesReceived.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesReceived.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    public void registerGauge(final String name, final Supplier<Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public LatencyHistogram getBuildTime() {
+        return buildTime;
+    }
+
+    public LatencyHistogram getNetworkTime() {
+        return networkTime;
+    }
+
+    public LatencyHistogram getDecodeTime() {
+        return decodeTime;
+    }
+
+    public LatencyHistogram getBatchSize() {
+        return batchSize;
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getUnsupportedLanguageCount() {
+        return unsupportedLanguages.sum();
+    }
+
+    public long getErrorCount(final String type) {
+        final LongAdder adder = errors.get(type);
+        return adder == null ? 0L : adder.sum();
+    }
+
+    /**
+     * @return the current values by name, sorted by name
+     */
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> values = new TreeMap<>();
+        values.put("requests", requests.sum());
+        values.put("bytes.sent", bytesSent.sum());
+        values.put("bytes.received", bytesReceived.sum());
+        values.put("documents.unsupported_lang", unsupportedLanguages.sum());
+        putTimes(values, "time.build", buildTime);
+        putTimes(values, "time.network", networkTime);
+        putTimes(values, "time.decode", decodeTime);
+        values.put("batch.size.mean", Math.round(batchSize.getMean() * 100.0) / 100.0);
+        values.put("batch.size.max", batchSize.getMax());
+        errors.forEach((type, adder) -> values.put("errors." + type, adder.sum()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.get());
+            } catch (final RuntimeException e) {
+                logger.debug("Failed to get {}", name, e);
+            }
+        });
+        return values;
+    }
+
+    protected static void putTimes(final Map<String, Number> values, final String name, final LatencyHistogram histogram) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".mean_us", Math.round(histogram.getMean() / 1000.0));
+        values.put(name + ".p50_us", histogram.getPercentile(50.0) / 1000L);
+        values.put(name + ".p99_us", histogram.getPercentile(99.0) / 1000L);
+        values.put(name + ".max_us", histogram.getMax() / 1000L);
+    }
+
+    /**
+     * Registers the metrics as an MBean named
+     * {@code org.codelibs.fess.ingest.vectorizer:type=VectorizerMetrics,name=<name>}.
+     */
+    public synchronized void registerMBean(final String name) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName newName = new ObjectName(DOMAIN + ":type=VectorizerMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(newName)) {
+                server.unregisterMBean(newName);
+            }
+            server.registerMBean(new MetricsMBean(), newName);
+            objectName = newName;
+        } catch (final JMException e) {
+            logger.warn("Failed to register the metrics MBean.", e);
+        }
+    }
+
+    /**
+     * Logs a summary at the interval while there are requests.
+     */
+    public synchronized void startLogging(final long intervalMillis) {
+        if (intervalMillis <= 0L || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "vectorizer-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::logSummary, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected void logSummary() {
+        final long current = requests.sum() + unsupportedLanguages.sum();
+        if (current == lastLoggedRequests) {
+            return;
+        }
+        lastLoggedRequests = current;
+        if (logger.isInfoEnabled()) {
+            logger.info("Vectorizer metrics: {}", snapshot());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (final JMException e) {
+                logger.debug("Failed to unregister {}", objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    protected class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            final Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(final Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList getAttributes(final String[] attributes) {
+            final Map<String, Number> values = snapshot();
+            final AttributeList list = new AttributeList();
+            for (final String attribute : attributes) {
+                final Number value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(final AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            final Map<String, Number> values = snapshot();
+            final MBeanAttributeInfo[] attributes = values.entrySet().stream()
+                    .map(e -> new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false))
+                    .toArray(n -> new MBeanAttributeInfo[n]);
+            return new MBeanInfo(VectorizerMetrics.class.getName(), "Metrics of the vectorizer", attributes, null, null, null);
+        }
+    }
+}
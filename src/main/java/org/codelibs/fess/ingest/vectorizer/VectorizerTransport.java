@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * HTTP transport used by {@link Vectorizer} to talk to a vectorizing server.
+ */
+public interface VectorizerTransport extends Closeable {
+
+    Response get(String url, Map<String, String> headers) throws IOException;
+
+    Response post(String url, Map<String, String> headers, byte[] body) throws IOException;
+
+    @Override
+    default void close() {
+        // nothing
+    }
+
+    interface Response extends Closeable {
+
+        int getHttpStatusCode();
+
+        /**
+         * @return the first value of the header, or null
+         */
+        String getHeader(String name);
+
+        InputStream getContentAsStream() throws IOException;
+
+        default byte[] getContentAsBytes() throws IOException {
+            try (InputStream in = getContentAsStream()) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+                in.transferTo(out);
+                return out.toByteArray();
+            }
+        }
+
+        default String getContentAsString() throws IOException {
+            return new String(getContentAsBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
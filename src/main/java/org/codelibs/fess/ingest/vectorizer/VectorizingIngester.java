@@ -16,80 +16,468 @@
 package org.codelibs.fess.ingest.vectorizer;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.codelibs.core.lang.StringUtil;
+import org.codelibs.core.stream.StreamUtil;
 import org.codelibs.fesen.client.EngineInfo.EngineType;
 import org.codelibs.fess.es.client.SearchEngineClient;
 import org.codelibs.fess.ingest.Ingester;
 import org.codelibs.fess.mylasta.direction.FessConfig;
 import org.codelibs.fess.util.ComponentUtil;
+import org.codelibs.fess.util.DocumentUtil;
 import org.opensearch.action.admin.indices.mapping.get.GetFieldMappingsResponse;
 import org.opensearch.action.admin.indices.mapping.get.GetFieldMappingsResponse.FieldMappingMetadata;
+import org.opensearch.action.get.MultiGetItemResponse;
+import org.opensearch.action.get.MultiGetRequest;
+import org.opensearch.action.get.MultiGetRequestBuilder;
+import org.opensearch.action.get.MultiGetResponse;
+import org.opensearch.action.search.SearchResponse;
 import org.opensearch.action.support.master.AcknowledgedResponse;
+import org.opensearch.common.CheckedConsumer;
 import org.opensearch.common.bytes.BytesReference;
 import org.opensearch.common.xcontent.XContentBuilder;
 import org.opensearch.common.xcontent.XContentFactory;
 import org.opensearch.common.xcontent.XContentType;
+import org.opensearch.index.query.QueryBuilders;
+import org.opensearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.opensearch.search.SearchHit;
+import org.opensearch.search.fetch.subphase.FetchSourceContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class VectorizingIngester extends Ingester {
     private static final Logger logger = LoggerFactory.getLogger(VectorizingIngester.class);
 
+    protected static final String PROPERTY_PREFIX = "semantic_search.vectorizer.";
+
     protected Vectorizer vectorizer;
 
     protected String fieldSuffix = "_vector";
 
+    protected MicroBatcher<Map<String, Object>, Map<String, float[]>> batcher;
+
+    protected PassageSplitter splitter;
+
+    protected PassagePooling pooling = PassagePooling.MEAN;
+
+    protected String nestedVectorField = "vector";
+
+    protected DeferredVectorizer deferred;
+
+    protected boolean fingerprintEnabled;
+
+    protected String fingerprintSuffix = "_fp";
+
+    protected volatile long fingerprintSeed;
+
+    protected MicroBatcher<String, Map<String, Object>> fingerprintBatcher;
+
+    protected NearDuplicateIndex nearDuplicates;
+
+    protected AdaptiveLimiter limiter;
+
+    protected long latencyBudget;
+
+    protected String pendingField = "vector_pending";
+
+    protected final LongAdder pendingCount = new LongAdder();
+
+    protected ScheduledExecutorService scheduler;
+
+    /** completed when the vectorizer and the fields are ready */
+    protected volatile CompletableFuture<Void> initialization = CompletableFuture.completedFuture(null);
+
+    // milliseconds to wait before the initialization is retried, doubled up to the maximum
+    protected long initializationRetryDelay;
+
+    protected long initializationMaxRetryDelay;
+
     @PostConstruct
     public void init() {
         final EngineType engineType = getEngineType();
         if (engineType == EngineType.OPENSEARCH1) {
             logger.info("Search Engine: {}", engineType);
-            final int dimension =
-                    Integer.parseInt(ComponentUtil.getFessConfig().getSystemProperty("semantic_search.vectorizer.dimension", "768"));
-            final String url = ComponentUtil.getFessConfig().getSystemProperty("semantic_search.vectorizer.url");
-            final String fields = ComponentUtil.getFessConfig().getSystemProperty("semantic_search.vectorizer.fields");
-            vectorizer = Vectorizer.create()//
-                    .url(url)//
-                    .fields(fields)//
-                    .dimension(dimension)//
-                    .build();
-            createFields(dimension);
+            initializationRetryDelay = Long.parseLong(getProperty("init.retry_delay", "5000"));
+            initializationMaxRetryDelay = Long.parseLong(getProperty("init.max_retry_delay", "300000"));
+            pendingField = getProperty("admission.pending_field", pendingField);
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "vectorizer-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (Boolean.parseBoolean(getProperty("init.async", Boolean.TRUE.toString()))) {
+                // the model server and the mappings are not waited for during the startup of Fess
+                initialization = new CompletableFuture<>();
+                scheduleInitialization(0L);
+            } else {
+                initialize();
+            }
         } else {
             logger.warn("Your search engine is not supported: {}", engineType);
         }
     }
 
+    /**
+     * Initializes the vectorizer on the scheduler, and retries with a backoff
+     * while the model server or the search engine is not available.
+     */
+    protected void scheduleInitialization(final long delay) {
+        scheduler.schedule(() -> {
+            try {
+                initialize();
+                initialization.complete(null);
+            } catch (final IllegalArgumentException e) {
+                // the configuration is not fixed by retrying
+                logger.error("Failed to initialize the vectorizer.", e);
+                closeComponents();
+                scheduler.shutdown();
+                initialization.completeExceptionally(e);
+            } catch (final Exception e) {
+                final long nextDelay = Math.min(Math.max(delay * 2L, initializationRetryDelay), initializationMaxRetryDelay);
+                logger.warn("Failed to initialize the vectorizer. Retrying in {}ms.", nextDelay, e);
+                closeComponents();
+                scheduleInitialization(nextDelay);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    protected void initialize() {
+        final long startTime = System.currentTimeMillis();
+        vectorizer = createVectorizer();
+        fitProjection();
+
+        final int chunkSize = Integer.parseInt(getProperty("chunk.size", "0"));
+        if (chunkSize > 0) {
+            final int chunkOverlap = Integer.parseInt(getProperty("chunk.overlap", Integer.toString(chunkSize / 10)));
+            final int chunkMaxPassages = Integer.parseInt(getProperty("chunk.max_passages", "16"));
+            splitter = new PassageSplitter(chunkSize, chunkOverlap, chunkMaxPassages);
+            pooling = PassagePooling.valueOf(getProperty("chunk.pooling", "mean").trim().toUpperCase(Locale.ROOT));
+            logger.info("Chunking: size={}, overlap={}, maxPassages={}, pooling={}", chunkSize, chunkOverlap, chunkMaxPassages,
+                    pooling);
+        }
+
+        // opt-in, because every document costs a lookup of the stored vectors
+        if (Boolean.parseBoolean(getProperty("fingerprint.enabled", Boolean.FALSE.toString()))) {
+            fingerprintEnabled = true;
+            updateFingerprintSeed();
+            fingerprintBatcher = new MicroBatcher<>("fingerprint", //
+                    Integer.parseInt(getProperty("fingerprint.batch_size", "100")), //
+                    Long.parseLong(getProperty("fingerprint.batch_wait", "10")), //
+                    Integer.parseInt(getProperty("fingerprint.batch_threads", "1")), //
+                    this::getStoredVectors);
+        }
+
+        if (Boolean.parseBoolean(getProperty("dedup.enabled", Boolean.FALSE.toString()))) {
+            nearDuplicates = new NearDuplicateIndex(Integer.parseInt(getProperty("dedup.capacity", "10000")), //
+                    Integer.parseInt(getProperty("dedup.max_distance", "3")), //
+                    Integer.parseInt(getProperty("dedup.min_length", "200")));
+            logger.info("Near-duplicate reuse: {}", nearDuplicates);
+        }
+
+        if (Boolean.parseBoolean(getProperty("admission.enabled", Boolean.FALSE.toString()))) {
+            latencyBudget = Long.parseLong(getProperty("admission.budget", "5000"));
+            limiter = new AdaptiveLimiter(Integer.parseInt(getProperty("admission.initial_limit", "16")), //
+                    Integer.parseInt(getProperty("admission.min_limit", "1")), //
+                    Integer.parseInt(getProperty("admission.max_limit", "256")), //
+                    Long.parseLong(getProperty("admission.target_latency", "1000")), //
+                    Double.parseDouble(getProperty("admission.backoff", "0.9")));
+            logger.info("Admission control: budget={}ms, {}", latencyBudget, limiter);
+        }
+
+        createFields();
+
+        final int batchSize = Integer.parseInt(getProperty("batch.size", "1"));
+        if (batchSize > 1 && !(vectorizer instanceof RoutingVectorizer)) {
+            final long batchWait = Long.parseLong(getProperty("batch.wait", "20"));
+            final int batchThreads = Integer.parseInt(getProperty("batch.threads", "1"));
+            logger.info("Batching: size={}, wait={}ms, threads={}", batchSize, batchWait, batchThreads);
+            batcher = new MicroBatcher<>("vectorizer", batchSize, batchWait, batchThreads, vectorizer::vectorizeBatch);
+        }
+
+        if (Boolean.parseBoolean(getProperty("deferred.enabled", Boolean.FALSE.toString()))) {
+            final String queuePath = getProperty("deferred.path", getVarPath("queue"));
+            final DeferredQueue queue =
+                    new DeferredQueue(Paths.get(queuePath), Long.parseLong(getProperty("deferred.segment_size", "67108864")));
+            deferred = new DeferredVectorizer(this, queue, //
+                    Integer.parseInt(getProperty("deferred.batch_size", "256")), //
+                    Integer.parseInt(getProperty("deferred.threads", "2")), //
+                    Long.parseLong(getProperty("deferred.delay", "30000")), //
+                    Integer.parseInt(getProperty("deferred.max_retries", "3")));
+            deferred.start();
+            logger.info("Deferred vectorization: path={}", queuePath);
+        }
+
+        registerGauges(vectorizer.getMetrics());
+        final String metricsName = getProperty("metrics.name", "default");
+        startMetrics(vectorizer.getMetrics(), metricsName);
+        if (vectorizer instanceof RoutingVectorizer) {
+            for (final RoutingVectorizer.Route route : ((RoutingVectorizer) vectorizer).getRoutes()) {
+                final Vectorizer routeVectorizer = route.getVectorizer();
+                startMetrics(routeVectorizer.getMetrics(), metricsName + "." + String.join("-", routeVectorizer.getFields()));
+            }
+        }
+
+        if (!vectorizer.isProjectionFitted()) {
+            final long refitInterval = Long.parseLong(getProperty("projection.refit_interval", "600000"));
+            if (refitInterval > 0L) {
+                scheduler.scheduleWithFixedDelay(this::fitProjection, refitInterval, refitInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        final long refreshInterval = Long.parseLong(getProperty("languages.refresh_interval", "60000"));
+        if (refreshInterval > 0L) {
+            scheduler.scheduleWithFixedDelay(this::refreshLanguages, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+        logger.info("Vectorizer is ready in {}ms: languages={}", System.currentTimeMillis() - startTime, vectorizer.getLanguages().length);
+    }
+
+    /**
+     * Fits the projection on the indexed documents. While there are not enough
+     * of them, this is called periodically until PCA is fitted.
+     */
+    protected void fitProjection() {
+        if (vectorizer.isProjectionFitted()) {
+            return;
+        }
+        try {
+            vectorizer.fitProjection(getSampleDocuments(Integer.parseInt(getProperty("projection.sample_size", "1000"))));
+        } catch (final Exception e) {
+            logger.warn("Failed to fit the projection.", e);
+        }
+        if (fingerprintEnabled) {
+            // the model ID has the ID of the projection, so vectors of the previous one are not reused
+            updateFingerprintSeed();
+        }
+    }
+
+    protected void updateFingerprintSeed() {
+        // vectors are reused only if the model and the chunking are unchanged
+        final String settings = vectorizer.modelId + "\n" + vectorizer.getDimension() + "\n" + splitter + "\n" + pooling;
+        fingerprintSeed = ContentHash.of(settings).getLow();
+    }
+
+    /**
+     * Creates the fields of languages which the server supports after the startup.
+     */
+    protected void refreshLanguages() {
+        try {
+            if (vectorizer.refreshLanguages()) {
+                createFields();
+            }
+        } catch (final Exception e) {
+            logger.warn("Failed to refresh the languages.", e);
+        }
+    }
+
+    public boolean isReady() {
+        return initialization.isDone() && !initialization.isCompletedExceptionally();
+    }
+
+    /**
+     * Creates the vectorizer of the fields. Fields with their own url, backend
+     * or dimension, such as {@code field.title.url}, are sent to a vectorizer
+     * built from the {@code field.<name>.*} settings, which fall back to the
+     * global ones, and the other fields share the default vectorizer.
+     */
+    protected Vectorizer createVectorizer() {
+        final String[] fields = StreamUtil.split(getProperty("fields", "content"), ",")
+                .get(stream -> stream.map(String::trim).filter(StringUtil::isNotEmpty).toArray(n -> new String[n]));
+        final List<String> defaultFields = new ArrayList<>();
+        final List<RoutingVectorizer.Route> routes = new ArrayList<>();
+        for (final String field : fields) {
+            if (hasFieldSettings(field)) {
+                final BinaryOperator<String> settings = (key, defaultValue) -> getFieldProperty(field, key, defaultValue);
+                routes.add(createRoute(buildVectorizer(new String[] { field }, settings, field), settings));
+            } else {
+                defaultFields.add(field);
+            }
+        }
+        if (routes.isEmpty()) {
+            return buildVectorizer(fields, this::getProperty, null);
+        }
+        if (!defaultFields.isEmpty()) {
+            final Vectorizer defaultVectorizer = buildVectorizer(defaultFields.toArray(n -> new String[n]), this::getProperty, null);
+            routes.add(0, createRoute(defaultVectorizer, this::getProperty));
+        }
+        final RoutingVectorizer routing = new RoutingVectorizer(routes);
+        logger.info("Vectorizer routes: {}", routes);
+        return routing;
+    }
+
+    protected boolean hasFieldSettings(final String field) {
+        return getProperty("field." + field + ".url", null) != null || getProperty("field." + field + ".backend", null) != null
+                || getProperty("field." + field + ".dimension", null) != null;
+    }
+
+    /**
+     * @return the value of {@code field.<field>.<key>}, or the global value except for paths, which must not be shared
+     */
+    protected String getFieldProperty(final String field, final String key, final String defaultValue) {
+        final String value = getProperty("field." + field + "." + key, null);
+        if (value != null) {
+            return value;
+        }
+        if (key.endsWith(".path")) {
+            return defaultValue;
+        }
+        return getProperty(key, defaultValue);
+    }
+
+    protected RoutingVectorizer.Route createRoute(final Vectorizer routeVectorizer, final BinaryOperator<String> settings) {
+        return new RoutingVectorizer.Route(routeVectorizer, //
+                Integer.parseInt(settings.apply("batch.size", "1")), //
+                Long.parseLong(settings.apply("batch.wait", "20")), //
+                Integer.parseInt(settings.apply("batch.threads", "1")));
+    }
+
+    /**
+     * @param name the name of the route to make its files distinct, or null for the default vectorizer
+     */
+    protected Vectorizer buildVectorizer(final String[] fields, final BinaryOperator<String> settings, final String name) {
+        final String projectionPath = getVarPath(name == null ? "projection.bin" : "projection_" + name + ".bin");
+        return Vectorizer.create()//
+                .backend(settings.apply("backend", null))//
+                .backendSettings(key -> settings.apply("backend." + key, null))//
+                .url(settings.apply("url", null))//
+                .routing(settings.apply("routing", null))//
+                .healthCheckInterval(Long.parseLong(settings.apply("health_check.interval", "10000")))//
+                .circuitBreakerFailures(Integer.parseInt(settings.apply("circuit_breaker.failures", "5")))//
+                .circuitBreakerOpenTime(Long.parseLong(settings.apply("circuit_breaker.open_time", "30000")))//
+                .fields(fields)//
+                .dimension(Integer.parseInt(settings.apply("dimension", "768")))//
+                .cacheSize(Long.parseLong(settings.apply("cache.size", "0")))//
+                .cacheOffHeap(Boolean.parseBoolean(settings.apply("cache.offheap", Boolean.TRUE.toString())))//
+                .cachePolicy(settings.apply("cache.policy", null))//
+                .storePath(settings.apply("store.path", null))//
+                .storeSegmentSize(Long.parseLong(settings.apply("store.segment_size", "268435456")))//
+                .storeMaxSize(Long.parseLong(settings.apply("store.max_size", "10737418240")))//
+                .storeCompactionThreshold(Double.parseDouble(settings.apply("store.compaction_threshold", "0.5")))//
+                .transport(settings.apply("transport", null))//
+                .httpVersion(settings.apply("http.version", null))//
+                .connectTimeout(Long.parseLong(settings.apply("http.connect_timeout", "10000")))//
+                .readTimeout(Long.parseLong(settings.apply("http.read_timeout", "60000")))//
+                .maxInFlight(Integer.parseInt(settings.apply("http.max_in_flight", "32")))//
+                .virtualThreads(Boolean.parseBoolean(settings.apply("async.virtual_threads", Boolean.TRUE.toString())))//
+                .coalesce(Boolean.parseBoolean(settings.apply("coalesce", Boolean.TRUE.toString())))//
+                .maxInputLength(Integer.parseInt(settings.apply("max_input_length", "0")))//
+                .charsPerToken(Double.parseDouble(settings.apply("chars_per_token", "4.0")))//
+                .truncation(settings.apply("truncation", null))//
+                .compressionThreshold(Integer.parseInt(settings.apply("compression.threshold", "0")))//
+                .responseCompression(Boolean.parseBoolean(settings.apply("compression.response", Boolean.FALSE.toString())))//
+                .wireFormat(settings.apply("wire_format", null))//
+                .projection(settings.apply("projection", null))//
+                .projectionDimension(Integer.parseInt(settings.apply("projection.dimension", "0")))//
+                .projectionPath(settings.apply("projection.path", projectionPath))//
+                .projectionSeed(Long.parseLong(settings.apply("projection.seed", "1")))//
+                .build();
+    }
+
+    protected void startMetrics(final VectorizerMetrics metrics, final String name) {
+        if (Boolean.parseBoolean(getProperty("metrics.jmx", Boolean.TRUE.toString()))) {
+            metrics.registerMBean(name);
+        }
+        metrics.startLogging(Long.parseLong(getProperty("metrics.log_interval", "60000")));
+    }
+
+    protected void registerGauges(final VectorizerMetrics metrics) {
+        if (batcher != null) {
+            metrics.registerGauge("batcher.queue", batcher::getQueueSize);
+        }
+        if (fingerprintBatcher != null) {
+            metrics.registerGauge("fingerprint.queue", fingerprintBatcher::getQueueSize);
+        }
+        if (deferred != null) {
+            metrics.registerGauge("deferred.queue", deferred.getQueue()::size);
+        }
+        if (limiter != null) {
+            metrics.registerGauge("admission.limit", limiter::getLimit);
+            metrics.registerGauge("admission.in_flight", limiter::getInFlight);
+            metrics.registerGauge("admission.rejected", limiter::getRejectedCount);
+            metrics.registerGauge("admission.pending", pendingCount::sum);
+        }
+        if (nearDuplicates != null) {
+            metrics.registerGauge("dedup.hits", nearDuplicates::getHitCount);
+            metrics.registerGauge("dedup.reuse_rate", () -> Math.round(nearDuplicates.getReuseRate() * 10000.0) / 10000.0);
+        }
+    }
+
+    protected String getProperty(final String key, final String defaultValue) {
+        return ComponentUtil.getFessConfig().getSystemProperty(PROPERTY_PREFIX + key, defaultValue);
+    }
+
+    protected String getVarPath(final String name) {
+        return Paths.get(System.getProperty("fess.var.path", System.getProperty("java.io.tmpdir")), "vectorizer", name).toString();
+    }
+
     protected EngineType getEngineType() {
         return ComponentUtil.getSearchEngineClient().getEngineInfo().getType();
     }
 
-    protected void createFields(final int dimension) {
+    protected void createFields() {
+        final Map<String, CheckedConsumer<XContentBuilder, IOException>> fieldMappings = new LinkedHashMap<>();
         for (final String field : vectorizer.getFields()) {
-            for (final String lang : vectorizer.getLanguages()) {
-                createField(field + "_" + lang + fieldSuffix, dimension);
+            final int dimension = vectorizer.getDimension(field);
+            // only the languages of the model which vectorizes the field
+            for (final String lang : vectorizer.getVectorizer(field).getLanguages()) {
+                final String vectorField = field + "_" + lang + fieldSuffix;
+                fieldMappings.put(vectorField, builder -> addFieldMapping(builder, dimension));
+                if (fingerprintEnabled) {
+                    fieldMappings.put(vectorField + fingerprintSuffix, this::addFingerprintMapping);
+                }
             }
         }
+        // documents are also marked while the vectorizer is initializing
+        if (limiter != null || !initialization.isDone()) {
+            fieldMappings.put(pendingField, builder -> builder.field("type", "boolean"));
+        }
+        createFields(fieldMappings);
     }
 
-    protected void createField(final String field, final int dimension) {
+    /**
+     * Gets the mappings of all fields in one request, and puts the missing
+     * fields of each index in one request.
+     */
+    protected void createFields(final Map<String, CheckedConsumer<XContentBuilder, IOException>> fieldMappings) {
+        if (fieldMappings.isEmpty()) {
+            return;
+        }
         final FessConfig fessConfig = ComponentUtil.getFessConfig();
         final SearchEngineClient client = ComponentUtil.getSearchEngineClient();
         final String alias = fessConfig.getIndexDocumentUpdateIndex();
 
         final GetFieldMappingsResponse fieldMappingsResponse = client.admin().indices().prepareGetFieldMappings()//
                 .setIndices(alias)//
-                .setFields(field)//
+                .setFields(fieldMappings.keySet().toArray(n -> new String[n]))//
                 .execute().actionGet();
         final Map<String, Map<String, Map<String, FieldMappingMetadata>>> mappings = fieldMappingsResponse.mappings();
         mappings.keySet().stream().forEach(index -> {
-            final Map<String, Map<String, FieldMappingMetadata>> fieldMappings = mappings.get(index);
-            if (!fieldMappings.isEmpty()) {
+            final Set<String> missingFields = new LinkedHashSet<>(fieldMappings.keySet());
+            mappings.get(index).values().forEach(typeMappings -> missingFields.removeAll(typeMappings.keySet()));
+            if (missingFields.isEmpty()) {
                 if (logger.isDebugEnabled()) {
-                    logger.debug("{} field exists in {} index.", field, index);
+                    logger.debug("{} fields exist in {} index.", fieldMappings.size(), index);
                 }
                 return;
             }
@@ -97,42 +485,478 @@ public class VectorizingIngester extends Ingester {
             try {
                 final XContentBuilder mappingBuilder = XContentFactory.jsonBuilder()//
                         .startObject()//
-                        .startObject("properties")//
-                        .startObject(field)//
-                        .field("type", "knn_vector")//
-                        .field("dimension", dimension)//
-                        .endObject()//
-                        .endObject()//
+                        .startObject("properties");
+                for (final String field : missingFields) {
+                    mappingBuilder.startObject(field);
+                    fieldMappings.get(field).accept(mappingBuilder);
+                    mappingBuilder.endObject();
+                }
+                mappingBuilder.endObject()//
                         .endObject();
                 final String source = BytesReference.bytes(mappingBuilder).utf8ToString();
                 final AcknowledgedResponse response =
                         client.admin().indices().preparePutMapping(index).setSource(source, XContentType.JSON).execute().actionGet();
                 if (response.isAcknowledged()) {
-                    logger.info("{} field is created in {} index.", field, index);
+                    logger.info("{} fields are created in {} index: {}", missingFields.size(), index, missingFields);
                 } else {
-                    logger.warn("Failed to create {} field in {} index.", field, index);
+                    logger.warn("Failed to create {} fields in {} index.", missingFields.size(), index);
                 }
-            } catch (final IOException e) {
-                logger.warn("Failed to create {} field in {} index.", field, index, e);
+            } catch (final Exception e) {
+                logger.warn("Failed to create {} fields in {} index.", missingFields.size(), index, e);
             }
         });
     }
 
+    protected void addFieldMapping(final XContentBuilder builder, final int dimension) throws IOException {
+        if (pooling == PassagePooling.NESTED) {
+            builder.field("type", "nested")//
+                    .startObject("properties")//
+                    .startObject(nestedVectorField);
+            addVectorMapping(builder, dimension);
+            builder.endObject()//
+                    .endObject();
+        } else {
+            addVectorMapping(builder, dimension);
+        }
+    }
+
+    protected void addVectorMapping(final XContentBuilder builder, final int dimension) throws IOException {
+        builder.field("type", "knn_vector")//
+                .field("dimension", dimension);
+    }
+
+    protected void addFingerprintMapping(final XContentBuilder builder) throws IOException {
+        // only read back from the source
+        builder.field("type", "keyword")//
+                .field("index", false)//
+                .field("doc_values", false);
+    }
+
     @PreDestroy
     public void destroy() {
-        // nothing
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (nearDuplicates != null) {
+            logger.info("Near-duplicate reuse: lookups={}, hits={}, reuseRate={}", nearDuplicates.getLookupCount(),
+                    nearDuplicates.getHitCount(), nearDuplicates.getReuseRate());
+        }
+        closeComponents();
+    }
+
+    protected void closeComponents() {
+        if (deferred != null) {
+            deferred.close();
+            deferred = null;
+        }
+        if (fingerprintBatcher != null) {
+            fingerprintBatcher.close();
+            fingerprintBatcher = null;
+        }
+        if (batcher != null) {
+            batcher.close();
+            batcher = null;
+        }
+        if (vectorizer != null) {
+            vectorizer.close();
+            vectorizer = null;
+        }
     }
 
     @Override
     protected Map<String, Object> process(final Map<String, Object> target) {
+        if (!isReady()) {
+            // documents are not waited for while the vectorizer is initializing, and are vectorized later
+            markPending(target);
+            return target;
+        }
         if (vectorizer != null) {
-            vectorizer.getLanguage(target).ifPresent(lang -> vectorizer.vectorize(target).entrySet().stream().forEach(e -> {
-                target.put(e.getKey() + "_" + lang + fieldSuffix, e.getValue());
-            }));
+            vectorizer.getLanguage(target).ifPresent(lang -> {
+                Map<String, Object> input = fingerprintBatcher == null ? target : reuseVectors(target, lang);
+                if (input == null) {
+                    return;
+                }
+                final Map<String, Object> vectors = new HashMap<>();
+                final Map<String, Long> signatures = new HashMap<>();
+                if (nearDuplicates != null) {
+                    input = reuseNearDuplicates(input, lang, vectors, signatures);
+                }
+                if (input != null && (deferred == null || !deferred.enqueue(target, lang))) {
+                    final Map<String, Object> created =
+                            limiter == null ? vectorizeFields(input, lang) : vectorizeWithinBudget(target, input, lang);
+                    signatures.forEach((field, signature) -> {
+                        final Object vector = created.get(field);
+                        if (vector != null) {
+                            nearDuplicates.add(field + "_" + lang, signature, vector);
+                        }
+                    });
+                    vectors.putAll(created);
+                }
+                putVectors(target, vectors, lang);
+                putFingerprints(target, target, vectors.keySet(), lang);
+            });
         }
         return target;
     }
 
+    /**
+     * Vectorizes the fields if the limiter admits the request and the vectors
+     * are returned within the latency budget. Otherwise the document is indexed
+     * without vectors and marked as pending, so that the crawler does not wait
+     * for an overloaded vectorizer. A request over the budget is cancelled
+     * rather than left to complete for nothing. In the deferred mode, only
+     * documents that cannot be queued are vectorized here.
+     */
+    protected Map<String, Object> vectorizeWithinBudget(final Map<String, Object> target, final Map<String, Object> input,
+            final String lang) {
+        if (!limiter.tryAcquire()) {
+            markPending(target);
+            return Collections.emptyMap();
+        }
+        final long startTime = System.nanoTime();
+        final FutureTask<Map<String, Object>> task = new FutureTask<>(() -> vectorizeFields(input, lang)) {
+            @Override
+            protected void done() {
+                // released by the response or the cancellation, so that the limiter counts the requests in the server
+                boolean success;
+                try {
+                    get();
+                    success = true;
+                } catch (final Exception e) {
+                    success = false;
+                }
+                limiter.release(System.nanoTime() - startTime, success);
+            }
+        };
+        vectorizer.getAsyncExecutor().execute(task);
+        try {
+            return task.get(latencyBudget, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(true);
+        } catch (final TimeoutException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Vectors are not returned in {}ms.", latencyBudget);
+            }
+            task.cancel(true);
+        } catch (final ExecutionException e) {
+            logger.warn("Failed to vectorize.", e.getCause());
+        }
+        markPending(target);
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Marks the document without vectors, so that it can be found by the
+     * pending field and vectorized again later.
+     */
+    protected void markPending(final Map<String, Object> target) {
+        pendingCount.increment();
+        target.put(pendingField, Boolean.TRUE);
+    }
+
+    /**
+     * @return vectors, or lists of passage vectors, by field name
+     */
+    protected Map<String, Object> vectorizeFields(final Map<String, Object> target, final String lang) {
+        return splitter == null ? new HashMap<>(vectorize(target)) : vectorizePassages(target, lang);
+    }
+
+    protected List<Map<String, Object>> vectorizeFields(final List<Map<String, Object>> targets, final List<String> langs) {
+        final List<Map<String, Object>> results = new ArrayList<>(targets.size());
+        if (splitter == null) {
+            vectorizeAll(targets).forEach(vectors -> results.add(new HashMap<>(vectors)));
+        } else {
+            for (int i = 0; i < targets.size(); i++) {
+                results.add(vectorizePassages(targets.get(i), langs.get(i)));
+            }
+        }
+        return results;
+    }
+
+    protected void putVectors(final Map<String, Object> target, final Map<String, Object> vectors, final String lang) {
+        vectors.entrySet().stream().forEach(e -> {
+            target.put(e.getKey() + "_" + lang + fieldSuffix, e.getValue());
+        });
+    }
+
+    protected void putFingerprints(final Map<String, Object> target, final Map<String, Object> source, final Set<String> fields,
+            final String lang) {
+        if (!fingerprintEnabled) {
+            return;
+        }
+        for (final String field : fields) {
+            final String value = DocumentUtil.getValue(source, field, String.class);
+            if (StringUtil.isNotEmpty(value)) {
+                target.put(field + "_" + lang + fieldSuffix + fingerprintSuffix, fingerprint(value));
+            }
+        }
+    }
+
+    protected String fingerprint(final String value) {
+        return ContentHash.of(value, 0, value.length(), fingerprintSeed).toHex();
+    }
+
+    /**
+     * Copies the stored vectors of the fields whose fingerprint is unchanged
+     * into the target.
+     *
+     * @return the target without the reused fields, or null if all fields are reused
+     */
+    protected Map<String, Object> reuseVectors(final Map<String, Object> target, final String lang) {
+        final String docId = DocumentUtil.getValue(target, ComponentUtil.getFessConfig().getIndexFieldId(), String.class);
+        if (StringUtil.isBlank(docId)) {
+            return target;
+        }
+        final Map<String, Object> stored;
+        try {
+            stored = fingerprintBatcher.submit(docId).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return target;
+        } catch (final ExecutionException e) {
+            logger.warn("Failed to get stored vectors of {}", docId, e.getCause());
+            return target;
+        }
+        if (stored.isEmpty()) {
+            return target;
+        }
+
+        Map<String, Object> input = target;
+        int remaining = 0;
+        for (final String field : vectorizer.getFields()) {
+            final String value = DocumentUtil.getValue(target, field, String.class);
+            if (StringUtil.isEmpty(value)) {
+                continue;
+            }
+            final String vectorField = field + "_" + lang + fieldSuffix;
+            final Object vector = stored.get(vectorField);
+            final String fingerprint = fingerprint(value);
+            if (vector != null && fingerprint.equals(stored.get(vectorField + fingerprintSuffix))) {
+                target.put(vectorField, toVector(vector));
+                target.put(vectorField + fingerprintSuffix, fingerprint);
+                if (input == target) {
+                    input = new HashMap<>(target);
+                }
+                input.remove(field);
+            } else {
+                remaining++;
+            }
+        }
+        if (logger.isDebugEnabled() && input != target) {
+            logger.debug("Reused stored vectors of {}: remaining={}", docId, remaining);
+        }
+        return remaining == 0 ? null : input;
+    }
+
+    /**
+     * Puts the vectors of near-identical texts into the vectors, and the
+     * signatures of the other fields into the signatures.
+     *
+     * @return the input without the reused fields, or null if all fields are reused
+     */
+    protected Map<String, Object> reuseNearDuplicates(final Map<String, Object> input, final String lang, final Map<String, Object> vectors,
+            final Map<String, Long> signatures) {
+        Map<String, Object> remaining = input;
+        int count = 0;
+        for (final String field : vectorizer.getFields()) {
+            final String value = DocumentUtil.getValue(input, field, String.class);
+            if (StringUtil.isEmpty(value)) {
+                continue;
+            }
+            if (!nearDuplicates.accepts(value)) {
+                count++;
+                continue;
+            }
+            final long signature = NearDuplicateIndex.signature(value);
+            final Object vector = nearDuplicates.find(field + "_" + lang, signature);
+            if (vector == null) {
+                signatures.put(field, signature);
+                count++;
+                continue;
+            }
+            vectors.put(field, vector);
+            if (remaining == input) {
+                remaining = new HashMap<>(input);
+            }
+            remaining.remove(field);
+        }
+        if (logger.isDebugEnabled() && !vectors.isEmpty()) {
+            logger.debug("Reused vectors of near-duplicates: fields={}, reuseRate={}", vectors.keySet(), nearDuplicates.getReuseRate());
+        }
+        return count == 0 ? null : remaining;
+    }
+
+    protected Object toVector(final Object value) {
+        if (value instanceof List && !((List<?>) value).isEmpty() && ((List<?>) value).get(0) instanceof Number) {
+            final List<?> values = (List<?>) value;
+            final float[] vector = new float[values.size()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = ((Number) values.get(i)).floatValue();
+            }
+            return vector;
+        }
+        // nested passage vectors are indexed as they are
+        return value;
+    }
+
+    protected List<Map<String, Object>> getStoredVectors(final List<String> docIds) {
+        final List<String> includes = new ArrayList<>();
+        for (final String field : vectorizer.getFields()) {
+            includes.add(field + "_*" + fieldSuffix);
+            includes.add(field + "_*" + fieldSuffix + fingerprintSuffix);
+        }
+        final Map<String, Map<String, Object>> docs = getDocuments(docIds, includes.toArray(n -> new String[n]));
+        final List<Map<String, Object>> results = new ArrayList<>(docIds.size());
+        for (final String docId : docIds) {
+            results.add(docs.getOrDefault(docId, Collections.emptyMap()));
+        }
+        return results;
+    }
+
+    /**
+     * Gets the documents from the update index with a multi-get request.
+     *
+     * @return the sources of the found documents by ID
+     */
+    protected Map<String, Map<String, Object>> getDocuments(final List<String> docIds, final String[] includes) {
+        final FessConfig fessConfig = ComponentUtil.getFessConfig();
+        final SearchEngineClient client = ComponentUtil.getSearchEngineClient();
+        final String index = fessConfig.getIndexDocumentUpdateIndex();
+        final FetchSourceContext fetchSourceContext = new FetchSourceContext(true, includes, null);
+        final MultiGetRequestBuilder builder = client.prepareMultiGet();
+        docIds.forEach(id -> builder.add(new MultiGetRequest.Item(index, id).fetchSourceContext(fetchSourceContext)));
+        final MultiGetResponse response = builder.execute().actionGet();
+        final Map<String, Map<String, Object>> docs = new HashMap<>(docIds.size() * 2);
+        for (final MultiGetItemResponse item : response.getResponses()) {
+            if (item.isFailed()) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to get {}: {}", item.getId(), item.getFailure());
+                }
+            } else if (item.getResponse().isExists()) {
+                docs.put(item.getId(), item.getResponse().getSourceAsMap());
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Gets random documents from the search index to fit the projection.
+     */
+    protected List<Map<String, Object>> getSampleDocuments(final int size) {
+        final FessConfig fessConfig = ComponentUtil.getFessConfig();
+        final SearchEngineClient client = ComponentUtil.getSearchEngineClient();
+        final List<String> includes = new ArrayList<>();
+        Collections.addAll(includes, vectorizer.getFields());
+        includes.add("lang");
+        try {
+            final SearchResponse response = client.prepareSearch(fessConfig.getIndexDocumentSearchIndex())//
+                    .setQuery(QueryBuilders.functionScoreQuery(ScoreFunctionBuilders.randomFunction()))//
+                    .setFetchSource(includes.toArray(n -> new String[n]), null)//
+                    .setSize(size)//
+                    .execute().actionGet();
+            final List<Map<String, Object>> docs = new ArrayList<>(size);
+            for (final SearchHit hit : response.getHits()) {
+                docs.add(hit.getSourceAsMap());
+            }
+            return docs;
+        } catch (final Exception e) {
+            logger.warn("Failed to get sample documents.", e);
+            return Collections.emptyList();
+        }
+    }
+
+    protected Map<String, float[]> vectorize(final Map<String, Object> target) {
+        return vectorizeAll(Collections.singletonList(target)).get(0);
+    }
+
+    protected List<Map<String, float[]>> vectorizeAll(final List<Map<String, Object>> targets) {
+        if (batcher == null) {
+            if (targets.size() == 1) {
+                return Collections.singletonList(vectorizer.vectorize(targets.get(0)));
+            }
+            return vectorizer.vectorizeBatch(targets);
+        }
+        final List<CompletableFuture<Map<String, float[]>>> futures = new ArrayList<>(targets.size());
+        for (final Map<String, Object> target : targets) {
+            futures.add(batcher.submit(target));
+        }
+        final List<Map<String, float[]>> results = new ArrayList<>(targets.size());
+        for (final CompletableFuture<Map<String, float[]>> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while vectorizing.", e);
+                results.add(Collections.emptyMap());
+            } catch (final ExecutionException e) {
+                logger.warn("Failed to vectorize.", e.getCause());
+                results.add(Collections.emptyMap());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Vectorizes fields longer than the passage size passage by passage, and
+     * the other fields as a whole.
+     */
+    protected Map<String, Object> vectorizePassages(final Map<String, Object> target, final String lang) {
+        final Map<String, Object> input = new HashMap<>(target);
+        final Map<String, List<Map<String, Object>>> passageInputs = new LinkedHashMap<>();
+        for (final String field : vectorizer.getFields()) {
+            final String value = DocumentUtil.getValue(target, field, String.class);
+            if (value == null || value.length() <= splitter.getPassageSize()) {
+                continue;
+            }
+            input.remove(field);
+            final List<Map<String, Object>> passages = new ArrayList<>();
+            for (final String passage : splitter.split(value)) {
+                final Map<String, Object> passageInput = new HashMap<>(4);
+                passageInput.put("lang", lang);
+                passageInput.put(field, passage);
+                passages.add(passageInput);
+            }
+            passageInputs.put(field, passages);
+        }
+
+        final Map<String, Object> vectors = new HashMap<>();
+        if (passageInputs.size() < vectorizer.getFields().length) {
+            vectors.putAll(vectorize(input));
+        }
+        if (passageInputs.isEmpty()) {
+            return vectors;
+        }
+
+        final List<Map<String, Object>> inputs = new ArrayList<>();
+        passageInputs.values().forEach(inputs::addAll);
+        final List<Map<String, float[]>> results = vectorizeAll(inputs);
+        int offset = 0;
+        for (final Map.Entry<String, List<Map<String, Object>>> entry : passageInputs.entrySet()) {
+            final String field = entry.getKey();
+            final List<float[]> passageVectors = new ArrayList<>(entry.getValue().size());
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                final float[] vector = results.get(offset + i).get(field);
+                if (vector != null) {
+                    passageVectors.add(vector);
+                }
+            }
+            offset += entry.getValue().size();
+            if (passageVectors.isEmpty()) {
+                vectors.remove(field);
+            } else if (pooling == PassagePooling.NESTED) {
+                final List<Map<String, Object>> nested = new ArrayList<>(passageVectors.size());
+                for (final float[] vector : passageVectors) {
+                    nested.add(Collections.singletonMap(nestedVectorField, vector));
+                }
+                vectors.put(field, nested);
+            } else {
+                vectors.put(field, pooling.pool(passageVectors));
+            }
+        }
+        return vectors;
+    }
+
     public void setFieldSuffix(final String fieldSuffix) {
         this.fieldSuffix = fieldSuffix;
     }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class AdaptiveLimiterTest extends PlainTestCase {
+
+    private long now;
+
+    private AdaptiveLimiter newLimiter(int initialLimit, int minLimit, int maxLimit) {
+        return new AdaptiveLimiter(initialLimit, minLimit, maxLimit, 100L, 0.5) {
+            @Override
+            protected long currentTimeNanos() {
+                return now;
+            }
+        };
+    }
+
+    public void test_tryAcquire() {
+        AdaptiveLimiter limiter = newLimiter(2, 1, 10);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1L, limiter.getRejectedCount());
+        assertEquals(2, limiter.getInFlight());
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(10L), true);
+        assertEquals(1, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+    }
+
+    public void test_increase() {
+        AdaptiveLimiter limiter = newLimiter(4, 1, 5);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 4; j++) {
+                assertTrue(limiter.tryAcquire());
+            }
+            for (int j = 0; j < 4; j++) {
+                limiter.release(TimeUnit.MILLISECONDS.toNanos(10L), true);
+            }
+        }
+        assertEquals(5, limiter.getLimit());
+
+        // an idle limit is not raised
+        AdaptiveLimiter idle = newLimiter(8, 1, 100);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(idle.tryAcquire());
+            idle.release(TimeUnit.MILLISECONDS.toNanos(10L), true);
+        }
+        assertEquals(8, idle.getLimit());
+    }
+
+    public void test_decrease() {
+        now = TimeUnit.SECONDS.toNanos(10L);
+        AdaptiveLimiter limiter = newLimiter(16, 2, 32);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(500L), true);
+        assertEquals(8, limiter.getLimit());
+        // slow responses in the same window count once
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(500L), true);
+        assertEquals(8, limiter.getLimit());
+
+        now += TimeUnit.MILLISECONDS.toNanos(100L);
+        limiter.release(0L, false);
+        assertEquals(4, limiter.getLimit());
+        for (int i = 0; i < 4; i++) {
+            now += TimeUnit.MILLISECONDS.toNanos(100L);
+            limiter.tryAcquire();
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(500L), true);
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(1, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class BinaryVectorDecoderTest extends PlainTestCase {
+
+    // results x fields x dimension, null for a missing vector
+    private static ByteBuffer encode(int dtype, String[] fields, float[][][] vectors, int dimension) {
+        ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(BinaryVectorDecoder.MAGIC);
+        buffer.put((byte) BinaryVectorDecoder.VERSION);
+        buffer.put((byte) dtype);
+        buffer.putShort((short) 0);
+        buffer.putInt(vectors.length);
+        buffer.putInt(fields.length);
+        buffer.putInt(dimension);
+        for (String field : fields) {
+            byte[] name = field.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        for (float[][] result : vectors) {
+            for (float[] vector : result) {
+                buffer.put((byte) (vector == null ? 0 : 1));
+            }
+        }
+        for (float[][] result : vectors) {
+            for (float[] vector : result) {
+                if (vector != null) {
+                    for (float value : vector) {
+                        if (dtype == BinaryVectorDecoder.FLOAT16) {
+                            buffer.putShort(HalfFloat.fromFloat(value));
+                        } else {
+                            buffer.putFloat(value);
+                        }
+                    }
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static InputStream toStream(ByteBuffer buffer) {
+        return new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining());
+    }
+
+    public void test_decode_float32() throws IOException {
+        ByteBuffer buffer = encode(BinaryVectorDecoder.FLOAT32, new String[] { "title", "other", "content" },
+                new float[][][] { { { 1, 2, 3 }, { 9, 9, 9 }, { 4, 5, 6 } }, { null, null, { 0.1f, 0.2f, 0.3f } } }, 3);
+        byte[] head = new byte[4];
+        buffer.duplicate().get(head);
+        assertTrue(BinaryVectorDecoder.isBinary(head, head.length));
+
+        List<Map<String, float[]>> results = new BinaryVectorDecoder(new String[] { "content", "title" }).decode(toStream(buffer));
+        assertEquals(2, results.size());
+        assertEquals(3.0f, results.get(0).get("title")[2], 0.0f);
+        assertEquals(4.0f, results.get(0).get("content")[0], 0.0f);
+        assertFalse(results.get(0).containsKey("other"));
+        assertFalse(results.get(1).containsKey("title"));
+        assertEquals(0.2f, results.get(1).get("content")[1], 0.0f);
+    }
+
+    public void test_decode_float16() throws IOException {
+        ByteBuffer buffer = encode(BinaryVectorDecoder.FLOAT16, new String[] { "content" },
+                new float[][][] { { { 0.5f, -0.033f, 1000.25f, 0.0f } } }, 4);
+        float[] values = new BinaryVectorDecoder(new String[] { "content" }).decode(toStream(buffer)).get(0).get("content");
+        assertEquals(0.5f, values[0], 0.0f);
+        assertEquals(-0.033f, values[1], 0.0001f);
+        assertEquals(1000.0f, values[2], 0.5f);
+        assertEquals(0.0f, values[3], 0.0f);
+    }
+
+    public void test_decode_truncated() {
+        ByteBuffer buffer = encode(BinaryVectorDecoder.FLOAT32, new String[] { "content" }, new float[][][] { { { 1, 2, 3 } } }, 3);
+        buffer.limit(buffer.limit() - 4);
+        try {
+            new BinaryVectorDecoder(new String[] { "content" }).decode(toStream(buffer));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(BinaryVectorDecoder.isBinary("{\"re".getBytes(StandardCharsets.UTF_8), 4));
+    }
+
+    public void test_halfFloat() {
+        assertEquals(1.0f, HalfFloat.toFloat(HalfFloat.fromFloat(1.0f)), 0.0f);
+        assertEquals(-2.5f, HalfFloat.toFloat(HalfFloat.fromFloat(-2.5f)), 0.0f);
+        assertEquals(65504.0f, HalfFloat.toFloat(HalfFloat.fromFloat(65504.0f)), 0.0f);
+        assertTrue(Float.isInfinite(HalfFloat.toFloat(HalfFloat.fromFloat(1.0e6f))));
+        assertTrue(Float.isNaN(HalfFloat.toFloat(HalfFloat.fromFloat(Float.NaN))));
+        assertEquals(5.9604645e-8f, HalfFloat.toFloat((short) 1), 0.0f);
+        assertEquals(6.0e-5f, HalfFloat.round(6.0e-5f), 1.0e-7f);
+        for (int i = 0; i < 0x7c00; i++) {
+            short half = (short) i;
+            assertEquals(half, HalfFloat.fromFloat(HalfFloat.toFloat(half)));
+        }
+    }
+}
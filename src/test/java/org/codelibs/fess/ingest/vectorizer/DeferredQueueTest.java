@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class DeferredQueueTest extends PlainTestCase {
+
+    private static final long SEGMENT_SIZE = 64 * 1024;
+
+    private Path path;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        path = Files.createTempDirectory("deferredqueue");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = path.toFile().listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        path.toFile().delete();
+        super.tearDown();
+    }
+
+    private static DeferredQueue.Entry entry(int i) {
+        return new DeferredQueue.Entry("doc" + i, i % 2 == 0 ? "en" : "ja", ContentHash.of("text" + i), 1000L + i, i % 3);
+    }
+
+    public void test_addAndPoll() {
+        try (DeferredQueue queue = new DeferredQueue(path, SEGMENT_SIZE)) {
+            assertEquals(0, queue.poll(10).size());
+            for (int i = 0; i < 5; i++) {
+                queue.add(entry(i));
+            }
+            assertEquals(5, queue.size());
+            List<DeferredQueue.Entry> entries = queue.poll(3);
+            assertEquals(3, entries.size());
+            assertEquals("doc0", entries.get(0).getDocId());
+            assertEquals("ja", entries.get(1).getLang());
+            assertEquals(ContentHash.of("text2"), entries.get(2).getHash());
+            assertEquals(1002L, entries.get(2).getTimestamp());
+            assertEquals(2, entries.get(2).getAttempts());
+            assertEquals(2, queue.size());
+            assertEquals(2, queue.poll(10).size());
+            assertEquals(0, queue.size());
+        }
+    }
+
+    public void test_restart() {
+        long position;
+        try (DeferredQueue queue = new DeferredQueue(path, SEGMENT_SIZE)) {
+            for (int i = 0; i < 10; i++) {
+                queue.add(entry(i));
+            }
+            List<DeferredQueue.Entry> entries = queue.poll(6);
+            position = entries.get(3).getPosition();
+            queue.commit(position);
+        }
+        // uncommitted entries are read again
+        try (DeferredQueue queue = new DeferredQueue(path, SEGMENT_SIZE)) {
+            assertEquals(6, queue.size());
+            List<DeferredQueue.Entry> entries = queue.poll(100);
+            assertEquals(6, entries.size());
+            assertEquals("doc4", entries.get(0).getDocId());
+            queue.commit(entries.get(5).getPosition());
+            queue.add(entry(10));
+        }
+        try (DeferredQueue queue = new DeferredQueue(path, SEGMENT_SIZE)) {
+            List<DeferredQueue.Entry> entries = queue.poll(100);
+            assertEquals(1, entries.size());
+            assertEquals("doc10", entries.get(0).getDocId());
+        }
+    }
+
+    public void test_rollAndDelete() {
+        try (DeferredQueue queue = new DeferredQueue(path, SEGMENT_SIZE)) {
+            for (int i = 0; i < 5000; i++) {
+                queue.add(entry(i));
+            }
+            assertTrue(queue.getSegmentCount() > 2);
+            List<DeferredQueue.Entry> entries = queue.poll(5000);
+            assertEquals(5000, entries.size());
+            assertEquals("doc4999", entries.get(4999).getDocId());
+            queue.commit(entries.get(4999).getPosition());
+            assertEquals(1, queue.getSegmentCount());
+        }
+    }
+
+    public void test_truncateBrokenTail() throws Exception {
+        try (DeferredQueue queue = new DeferredQueue(path, SEGMENT_SIZE)) {
+            for (int i = 0; i < 3; i++) {
+                queue.add(entry(i));
+            }
+        }
+        Path segment = path.resolve("queue-0000000000.log");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        try (DeferredQueue queue = new DeferredQueue(path, SEGMENT_SIZE)) {
+            assertEquals(2, queue.size());
+            queue.add(entry(3));
+            List<DeferredQueue.Entry> entries = queue.poll(10);
+            assertEquals(3, entries.size());
+            assertEquals("doc3", entries.get(2).getDocId());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class EmbeddingCacheTest extends PlainTestCase {
+
+    private static EmbeddingCache.Key key(String text) {
+        return new EmbeddingCache.Key("content", "en", "model", ContentHash.of(text));
+    }
+
+    public void test_contentHash() {
+        assertEquals(ContentHash.of("this is a pen."), ContentHash.of("this is a pen."));
+        assertFalse(ContentHash.of("this is a pen.").equals(ContentHash.of("this is a pen!")));
+        assertFalse(ContentHash.of("").equals(ContentHash.of("a")));
+        assertEquals(ContentHash.of("xxabcdefghijxx", 2, 12, 0L), ContentHash.of("abcdefghij"));
+        assertEquals(32, ContentHash.of("これはペンです。").toHex().length());
+    }
+
+    public void test_getAndPut() {
+        EmbeddingCache cache = new EmbeddingCache(4 * 3 * 10, 3, true, EmbeddingCache.Policy.LRU);
+        assertEquals(10, cache.getCapacity());
+        assertNull(cache.get(key("a")));
+        cache.put(key("a"), new float[] { 1.0f, 2.0f, 3.0f });
+        float[] values = cache.get(key("a"));
+        assertEquals(3, values.length);
+        assertEquals(2.0f, values[1], 0.0f);
+        assertNull(cache.get(new EmbeddingCache.Key("title", "en", "model", ContentHash.of("a"))));
+        assertNull(cache.get(new EmbeddingCache.Key("content", "ja", "model", ContentHash.of("a"))));
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(3L, cache.getMissCount());
+    }
+
+    public void test_lru() {
+        EmbeddingCache cache = new EmbeddingCache(4 * 2 * 3, 2, false, EmbeddingCache.Policy.LRU);
+        cache.put(key("a"), new float[] { 1.0f, 1.0f });
+        cache.put(key("b"), new float[] { 2.0f, 2.0f });
+        cache.put(key("c"), new float[] { 3.0f, 3.0f });
+        assertNotNull(cache.get(key("a")));
+        cache.put(key("d"), new float[] { 4.0f, 4.0f });
+        assertEquals(3, cache.size());
+        assertNull(cache.get(key("b")));
+        assertEquals(1.0f, cache.get(key("a"))[0], 0.0f);
+        assertEquals(4.0f, cache.get(key("d"))[0], 0.0f);
+        assertEquals(1L, cache.getEvictionCount());
+    }
+
+    public void test_tinyLfu() {
+        EmbeddingCache cache = new EmbeddingCache(4 * 2 * 2, 2, true, EmbeddingCache.Policy.TINYLFU);
+        for (int i = 0; i < 5; i++) {
+            cache.get(key("a"));
+            cache.get(key("b"));
+        }
+        cache.put(key("a"), new float[] { 1.0f, 1.0f });
+        cache.put(key("b"), new float[] { 2.0f, 2.0f });
+        // a one-hit wonder does not replace popular entries
+        cache.get(key("c"));
+        cache.put(key("c"), new float[] { 3.0f, 3.0f });
+        assertNull(cache.get(key("c")));
+        assertNotNull(cache.get(key("a")));
+        assertNotNull(cache.get(key("b")));
+        assertEquals(1L, cache.getRejectionCount());
+    }
+
+    public void test_tooLarge() {
+        EmbeddingCache cache = new EmbeddingCache(1024, 2, true, EmbeddingCache.Policy.LRU);
+        cache.put(key("a"), new float[] { 1.0f, 2.0f, 3.0f });
+        assertNull(cache.get(key("a")));
+        cache.put(key("a"), new float[] { 1.0f });
+        assertEquals(1, cache.get(key("a")).length);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class EmbeddingStoreTest extends PlainTestCase {
+
+    private static final int DIMENSION = 4;
+
+    // header + 4 records
+    private static final long SEGMENT_SIZE = 64 + 4 * (20 + DIMENSION * 4);
+
+    private Path path;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        path = Files.createTempDirectory("vectorstore");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = path.toFile().listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        path.toFile().delete();
+        super.tearDown();
+    }
+
+    private static EmbeddingCache.Key key(String text) {
+        return new EmbeddingCache.Key("content", "en", "model", ContentHash.of(text));
+    }
+
+    private static float[] vector(float value) {
+        return new float[] { value, value + 1, value + 2, value + 3 };
+    }
+
+    public void test_putAndGet() {
+        try (EmbeddingStore store = new EmbeddingStore(path, DIMENSION, SEGMENT_SIZE, Long.MAX_VALUE, 0.5)) {
+            assertNull(store.get(key("a")));
+            store.put(key("a"), vector(1.0f));
+            store.put(key("b"), new float[] { 5.0f, 6.0f });
+            assertEquals(2.0f, store.get(key("a"))[1], 0.0f);
+            assertEquals(2, store.get(key("b")).length);
+            assertNull(store.get(new EmbeddingCache.Key("title", "en", "model", ContentHash.of("a"))));
+            assertEquals(2, store.size());
+            assertEquals(2L, store.getHitCount());
+            assertEquals(2L, store.getMissCount());
+        }
+    }
+
+    public void test_reopen() {
+        try (EmbeddingStore store = new EmbeddingStore(path, DIMENSION, SEGMENT_SIZE, Long.MAX_VALUE, 0.5)) {
+            for (int i = 0; i < 10; i++) {
+                store.put(key("text" + i), vector(i));
+            }
+            assertEquals(3, store.getSegmentCount());
+        }
+        try (EmbeddingStore store = new EmbeddingStore(path, DIMENSION, SEGMENT_SIZE, Long.MAX_VALUE, 0.5)) {
+            assertEquals(10, store.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 3.0f, store.get(key("text" + i))[3], 0.0f);
+            }
+            store.put(key("text10"), vector(10));
+            assertEquals(3, store.getSegmentCount());
+        }
+    }
+
+    public void test_maxSize() {
+        try (EmbeddingStore store = new EmbeddingStore(path, DIMENSION, SEGMENT_SIZE, SEGMENT_SIZE * 2, 0.5)) {
+            for (int i = 0; i < 12; i++) {
+                store.put(key("text" + i), vector(i));
+            }
+            assertEquals(2, store.getSegmentCount());
+            assertTrue(store.getDiskSize() <= SEGMENT_SIZE * 2);
+            assertNull(store.get(key("text0")));
+            assertNotNull(store.get(key("text11")));
+        }
+    }
+
+    public void test_compaction() {
+        try (EmbeddingStore store = new EmbeddingStore(path, DIMENSION, SEGMENT_SIZE, Long.MAX_VALUE, 0.5)) {
+            for (int i = 0; i < 4; i++) {
+                store.put(key("text" + i), vector(i));
+            }
+            // overwrite 3 of 4 records of the first segment
+            for (int i = 0; i < 3; i++) {
+                store.put(key("text" + i), vector(i * 10));
+            }
+            assertEquals(2, store.getSegmentCount());
+            // sealing the second segment compacts the first one
+            store.put(key("text4"), vector(4));
+            store.put(key("text5"), vector(5));
+            assertEquals(2, store.getSegmentCount());
+            assertEquals(6, store.size());
+            assertEquals(3.0f, store.get(key("text3"))[0], 0.0f);
+            assertEquals(20.0f, store.get(key("text2"))[0], 0.0f);
+        }
+        try (EmbeddingStore store = new EmbeddingStore(path, DIMENSION, SEGMENT_SIZE, Long.MAX_VALUE, 0.5)) {
+            assertEquals(6, store.size());
+            assertEquals(3.0f, store.get(key("text3"))[0], 0.0f);
+        }
+    }
+}
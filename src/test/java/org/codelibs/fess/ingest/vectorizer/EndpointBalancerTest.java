@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class EndpointBalancerTest extends PlainTestCase {
+
+    public void test_circuitBreaker() throws Exception {
+        VectorizerEndpoint endpoint = new VectorizerEndpoint("http://a", 2, 100L);
+        assertTrue(endpoint.tryAcquire());
+        endpoint.onFailure();
+        assertEquals(VectorizerEndpoint.State.CLOSED, endpoint.getState());
+        assertTrue(endpoint.tryAcquire());
+        endpoint.onFailure();
+        assertEquals(VectorizerEndpoint.State.OPEN, endpoint.getState());
+        assertFalse(endpoint.isAvailable());
+        assertFalse(endpoint.tryAcquire());
+
+        Thread.sleep(150L);
+        assertTrue(endpoint.isAvailable());
+        assertTrue(endpoint.tryAcquire());
+        assertEquals(VectorizerEndpoint.State.HALF_OPEN, endpoint.getState());
+        // only one probe at a time
+        assertFalse(endpoint.tryAcquire());
+        endpoint.onFailure();
+        assertEquals(VectorizerEndpoint.State.OPEN, endpoint.getState());
+
+        endpoint.onHealthCheck(true);
+        assertEquals(VectorizerEndpoint.State.HALF_OPEN, endpoint.getState());
+        assertTrue(endpoint.tryAcquire());
+        endpoint.onSuccess(1_000_000L);
+        assertEquals(VectorizerEndpoint.State.CLOSED, endpoint.getState());
+        assertEquals(0, endpoint.getOutstanding());
+        assertEquals(1.0, endpoint.getLatencyMillis(), 0.001);
+
+        endpoint.onHealthCheck(false);
+        assertEquals(VectorizerEndpoint.State.CLOSED, endpoint.getState());
+        endpoint.onHealthCheck(false);
+        assertEquals(VectorizerEndpoint.State.OPEN, endpoint.getState());
+    }
+
+    public void test_healthCheck_threshold() {
+        VectorizerEndpoint endpoint = new VectorizerEndpoint("http://a", 3, 60000L);
+        endpoint.onHealthCheck(false);
+        endpoint.onHealthCheck(false);
+        assertEquals(VectorizerEndpoint.State.CLOSED, endpoint.getState());
+        assertTrue(endpoint.isAvailable());
+        assertTrue(endpoint.tryAcquire());
+        endpoint.onSuccess(1_000_000L);
+
+        // consecutive failures of checks and requests open the breaker
+        endpoint.onHealthCheck(false);
+        endpoint.onHealthCheck(false);
+        assertTrue(endpoint.tryAcquire());
+        endpoint.onFailure();
+        assertEquals(VectorizerEndpoint.State.OPEN, endpoint.getState());
+        assertFalse(endpoint.isAvailable());
+    }
+
+    public void test_acquire_leastOutstanding() {
+        VectorizerEndpoint a = new VectorizerEndpoint("http://a", 1, 60000L);
+        VectorizerEndpoint b = new VectorizerEndpoint("http://b", 1, 60000L);
+        EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(a, b), EndpointBalancer.Routing.LEAST_OUTSTANDING);
+        VectorizerEndpoint first = balancer.acquire(Collections.emptySet());
+        VectorizerEndpoint second = balancer.acquire(Collections.emptySet());
+        assertNotSame(first, second);
+        first.onSuccess(1_000_000L);
+        assertSame(first, balancer.acquire(Collections.emptySet()));
+        assertEquals(1, a.getOutstanding());
+        assertEquals(1, b.getOutstanding());
+
+        assertSame(a, balancer.acquire(new HashSet<>(Arrays.asList(b))));
+        a.onFailure();
+        assertEquals(VectorizerEndpoint.State.OPEN, a.getState());
+        for (int i = 0; i < 4; i++) {
+            assertSame(b, balancer.acquire(Collections.emptySet()));
+        }
+        assertNull(balancer.acquire(new HashSet<>(Arrays.asList(b))));
+    }
+
+    public void test_acquire_latency() {
+        VectorizerEndpoint slow = new VectorizerEndpoint("http://slow", 1, 60000L);
+        VectorizerEndpoint fast = new VectorizerEndpoint("http://fast", 1, 60000L);
+        slow.tryAcquire();
+        slow.onSuccess(100_000_000L);
+        fast.tryAcquire();
+        fast.onSuccess(10_000_000L);
+        EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(slow, fast), EndpointBalancer.Routing.LATENCY);
+        // fast is preferred until it has many more requests in flight than slow
+        for (int i = 0; i < 10; i++) {
+            assertSame(fast, balancer.acquire(Collections.emptySet()));
+        }
+        assertSame(slow, balancer.acquire(Collections.emptySet()));
+    }
+
+    public void test_vectorize_failover() throws Exception {
+        AtomicInteger failures = new AtomicInteger();
+        HttpServer broken = startServer(exchange -> {
+            failures.incrementAndGet();
+            respond(exchange, 503, "{\"error\":\"unavailable\"}");
+        });
+        HttpServer working = startServer(exchange -> respond(exchange, 200, "{\"results\":[{\"content\":[1,2,3]}]}"));
+        Vectorizer vectorizer = null;
+        try {
+            vectorizer = Vectorizer.create()//
+                    .url(getUrl(broken) + "," + getUrl(working))//
+                    .dimension(3)//
+                    .wireFormat("json")//
+                    .healthCheckInterval(0L)//
+                    .circuitBreakerFailures(2)//
+                    .build();
+            assertEquals(2, vectorizer.getBalancer().getEndpoints().size());
+            Map<String, Object> input = new HashMap<>();
+            input.put("lang", "en");
+            input.put("content", "test");
+            for (int i = 0; i < 10; i++) {
+                assertEquals(3, vectorizer.vectorize(input).get("content").length);
+            }
+            // the broken server is skipped once its breaker is open
+            assertEquals(2, failures.get());
+            assertEquals(VectorizerEndpoint.State.OPEN, vectorizer.getBalancer().getEndpoints().get(0).getState());
+        } finally {
+            if (vectorizer != null) {
+                vectorizer.close();
+            }
+            broken.stop(0);
+            working.stop(0);
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private static HttpServer startServer(Handler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            if ("/".equals(exchange.getRequestURI().getPath())) {
+                respond(exchange, 200, "{\"languages\":[\"en\"]}");
+            } else {
+                handler.handle(exchange);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String getUrl(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+}
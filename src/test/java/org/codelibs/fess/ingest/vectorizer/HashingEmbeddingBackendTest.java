@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class HashingEmbeddingBackendTest extends PlainTestCase {
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    public void test_embed() {
+        HashingEmbeddingBackend backend = new HashingEmbeddingBackend(256, Set.of("en"), 2, 4, 8, 1L);
+        float[] a = backend.embed("Installation guide of the Fess search server");
+        float[] b = backend.embed("installation  GUIDE of the Fess search server!");
+        float[] c = backend.embed("Quarterly sales report for the accounting department");
+        assertEquals(256, a.length);
+        assertEquals(1.0, PassagePooling.norm(a), 1.0e-5);
+        assertTrue(cosine(a, b) > 0.9);
+        assertTrue(cosine(a, b) > cosine(a, c) + 0.3);
+        assertTrue(Arrays.equals(a, backend.embed("Installation guide of the Fess search server")));
+        assertFalse(Arrays.equals(a, new HashingEmbeddingBackend(256, Set.of("en"), 2, 4, 8, 2L).embed(
+                "Installation guide of the Fess search server")));
+
+        float[] ja1 = backend.embed("全文検索サーバーのインストール");
+        float[] ja2 = backend.embed("全文検索サーバーの設定");
+        float[] ja3 = backend.embed("経理部の四半期売上報告");
+        assertTrue(cosine(ja1, ja2) > cosine(ja1, ja3));
+
+        assertNull(backend.embed(""));
+        assertNull(backend.embed("   "));
+        assertNotNull(backend.embed("a"));
+    }
+
+    public void test_vectorize() {
+        HashingEmbeddingBackend backend = new HashingEmbeddingBackend(32, Set.of("en"), 1, 3, 4, 1L);
+        List<Map<String, float[]>> results =
+                backend.vectorize(List.of(Map.of("title", "a", "content", "b c"), Map.of("title", " ")), List.of("en", "en"));
+        assertEquals(2, results.size());
+        assertEquals(2, results.get(0).size());
+        assertTrue(results.get(1).isEmpty());
+    }
+
+    public void test_load() {
+        EmbeddingBackend backend = EmbeddingBackend.load("hashing", 16, name -> "languages".equals(name) ? "en, ja" : null);
+        assertEquals(Set.of("en", "ja"), backend.getLanguages());
+        assertEquals("hashing:2-4:8:1", backend.getModelId());
+        try {
+            EmbeddingBackend.load("unknown", 16, name -> null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void test_vectorizer() {
+        Vectorizer vectorizer = Vectorizer.create()//
+                .backend("hashing")//
+                .backendSettings(name -> "languages".equals(name) ? "en" : null)//
+                .fields("title", "content")//
+                .dimension(64)//
+                .cacheSize(1024 * 1024)//
+                .build();
+        try {
+            assertTrue(vectorizer.isActive());
+            assertEquals(Collections.singletonList("en"), Arrays.asList(vectorizer.getLanguages()));
+            Map<String, float[]> vectors = vectorizer.vectorize(Map.of("title", "Fess", "lang", "en"));
+            assertEquals(64, vectors.get("title").length);
+            assertFalse(vectors.containsKey("content"));
+            assertTrue(vectorizer.vectorize(Map.of("title", "Fess", "lang", "ja")).isEmpty());
+            assertTrue(Arrays.equals(vectors.get("title"), vectorizer.vectorize(Map.of("title", "Fess", "lang", "en")).get("title")));
+            assertEquals(1L, vectorizer.getCache().getHitCount());
+        } finally {
+            vectorizer.close();
+        }
+    }
+}
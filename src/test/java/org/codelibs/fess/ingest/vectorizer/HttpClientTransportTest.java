@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpClient;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpClientTransportTest extends PlainTestCase {
+
+    private HttpServer server;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            final int current = active.incrementAndGet();
+            maxActive.accumulateAndGet(current, Math::max);
+            try {
+                final byte[] body = exchange.getRequestBody().readAllBytes();
+                if ("/stalled".equals(exchange.getRequestURI().getPath())) {
+                    // the headers and a part of the body are sent in time
+                    exchange.sendResponseHeaders(200, 4);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write('{');
+                        out.flush();
+                        Thread.sleep(2000L);
+                        out.write("}\n\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                    return;
+                }
+                final long sleep = "/slow".equals(exchange.getRequestURI().getPath()) ? 2000L : 100L;
+                Thread.sleep(sleep);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                active.decrementAndGet();
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        super.tearDown();
+    }
+
+    private String getServerUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void test_post() throws IOException {
+        HttpClientTransport transport = new HttpClientTransport(HttpClient.Version.HTTP_1_1, 1000L, 5000L, 4);
+        try (VectorizerTransport.Response response =
+                transport.post(getServerUrl() + "/vectorize", Vectorizer.JSON_HEADERS, "{\"a\":1}".getBytes(StandardCharsets.UTF_8))) {
+            assertEquals(200, response.getHttpStatusCode());
+            assertEquals("application/json", response.getHeader("Content-Type"));
+            assertEquals("{\"a\":1}", response.getContentAsString());
+            // the slot is held until the response is closed
+            assertEquals(1, transport.getInFlight(getServerUrl()));
+        }
+        assertEquals(0, transport.getInFlight(getServerUrl()));
+    }
+
+    public void test_maxInFlight() throws Exception {
+        HttpClientTransport transport = new HttpClientTransport(HttpClient.Version.HTTP_1_1, 1000L, 5000L, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    try (VectorizerTransport.Response response = transport.get(getServerUrl() + "/ping", Vectorizer.JSON_HEADERS)) {
+                        return response.getHttpStatusCode();
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(200, future.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(maxActive.get() <= 2);
+    }
+
+    public void test_readTimeout() {
+        HttpClientTransport transport = new HttpClientTransport(HttpClient.Version.HTTP_1_1, 1000L, 200L, 2);
+        try (VectorizerTransport.Response response = transport.get(getServerUrl() + "/slow", Vectorizer.JSON_HEADERS)) {
+            fail();
+        } catch (final HttpTimeoutException | SocketTimeoutException e) {
+            // expected
+        } catch (final IOException e) {
+            fail(e.getMessage());
+        }
+        assertEquals(0, transport.getInFlight(getServerUrl()));
+    }
+
+    public void test_readTimeout_body() {
+        HttpClientTransport transport = new HttpClientTransport(HttpClient.Version.HTTP_1_1, 1000L, 300L, 2);
+        long start = System.nanoTime();
+        try (VectorizerTransport.Response response = transport.get(getServerUrl() + "/stalled", Vectorizer.JSON_HEADERS)) {
+            // the body is streamed, so it times out while it is read
+            assertEquals(200, response.getHttpStatusCode());
+            response.getContentAsString();
+            fail();
+        } catch (final HttpTimeoutException e) {
+            // expected
+        } catch (final IOException e) {
+            fail(e.getMessage());
+        }
+        assertTrue(System.nanoTime() - start < 1500_000_000L);
+        assertEquals(0, transport.getInFlight(getServerUrl()));
+    }
+
+    public void test_read_interrupted() throws Exception {
+        HttpClientTransport transport = new HttpClientTransport(HttpClient.Version.HTTP_1_1, 1000L, 5000L, 2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> future = executor.submit(() -> {
+                try (VectorizerTransport.Response response = transport.get(getServerUrl() + "/stalled", Vectorizer.JSON_HEADERS)) {
+                    response.getContentAsString();
+                    return false;
+                } catch (final InterruptedIOException e) {
+                    return Thread.currentThread().isInterrupted();
+                }
+            });
+            Thread.sleep(300L);
+            long start = System.nanoTime();
+            executor.shutdownNow();
+            assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start < 1000_000_000L);
+            assertTrue(future.get());
+            assertEquals(0, transport.getInFlight(getServerUrl()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
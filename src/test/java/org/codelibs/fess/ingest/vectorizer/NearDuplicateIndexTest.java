@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class NearDuplicateIndexTest extends PlainTestCase {
+
+    private static String page(String date) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            buf.append("Results of the quarterly report, section ").append(i).append(".\n");
+        }
+        return buf.append("Last modified: ").append(date).toString();
+    }
+
+    public void test_signature() {
+        long a = NearDuplicateIndex.signature(page("2022-01-01"));
+        long b = NearDuplicateIndex.signature(page("2022-01-02"));
+        long c = NearDuplicateIndex.signature("A completely different text about the installation of the search server.");
+        assertTrue(Long.bitCount(a ^ b) <= 3);
+        assertTrue(Long.bitCount(a ^ c) > 10);
+        assertEquals(NearDuplicateIndex.signature("Hello  World"), NearDuplicateIndex.signature("hello\nworld"));
+        assertEquals(NearDuplicateIndex.signature("ab"), NearDuplicateIndex.signature("ab"));
+        assertEquals(0L, NearDuplicateIndex.signature(""));
+    }
+
+    public void test_find() {
+        NearDuplicateIndex index = new NearDuplicateIndex(10, 3, 10);
+        assertFalse(index.accepts("short"));
+        assertTrue(index.accepts("long enough"));
+
+        long signature = 0x0123456789abcdefL;
+        index.add("content_en", signature, "v1");
+        assertEquals("v1", index.find("content_en", signature));
+        assertEquals("v1", index.find("content_en", signature ^ 1L << 3 ^ 1L << 40 ^ 1L << 63));
+        assertNull(index.find("content_en", signature ^ 0xfL));
+        assertNull(index.find("content_ja", signature));
+
+        // the nearest one wins
+        index.add("content_en", signature ^ 0x3L, "v2");
+        assertEquals("v2", index.find("content_en", signature ^ 0x7L));
+        assertEquals(5, index.getLookupCount());
+        assertEquals(3, index.getHitCount());
+        assertEquals(0.6, index.getReuseRate(), 1.0e-9);
+    }
+
+    public void test_eviction() {
+        NearDuplicateIndex index = new NearDuplicateIndex(2, 0, 0);
+        index.add("f", 1L, "v1");
+        index.add("f", 2L, "v2");
+        assertEquals("v1", index.find("f", 1L));
+        index.add("f", 3L, "v3");
+        assertEquals(2, index.size());
+        assertNull(index.find("f", 2L));
+        assertEquals("v1", index.find("f", 1L));
+        assertEquals("v3", index.find("f", 3L));
+        index.add("f", 3L, "v4");
+        assertEquals(2, index.size());
+        assertEquals("v4", index.find("f", 3L));
+        assertEquals(2, index.bands.size());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class PassageSplitterTest extends PlainTestCase {
+
+    private static List<String> split(PassageSplitter splitter, String text) {
+        List<String> list = new ArrayList<>();
+        splitter.split(text).forEach(list::add);
+        return list;
+    }
+
+    public void test_split() {
+        PassageSplitter splitter = new PassageSplitter(20, 0, 0);
+        assertEquals(Arrays.asList("short"), split(splitter, "  short "));
+        assertEquals(0, split(splitter, "   ").size());
+        assertEquals(Arrays.asList("aaaa bbbb cccc dddd", "eeee ffff"), split(splitter, "aaaa bbbb cccc dddd eeee ffff"));
+        assertEquals(Arrays.asList("これはテストです。", "次の文です。"), split(new PassageSplitter(12, 0, 0), "これはテストです。次の文です。"));
+        // no boundary
+        assertEquals(Arrays.asList("abcdefghij", "klmno"), split(new PassageSplitter(10, 0, 0), "abcdefghijklmno"));
+    }
+
+    public void test_split_overlap() {
+        PassageSplitter splitter = new PassageSplitter(20, 6, 0);
+        List<String> passages = split(splitter, "aaaa bbbb cccc dddd eeee ffff");
+        assertEquals("aaaa bbbb cccc dddd", passages.get(0));
+        assertEquals("dddd eeee ffff", passages.get(1));
+        assertEquals(2, passages.size());
+    }
+
+    public void test_split_maxPassages() {
+        PassageSplitter splitter = new PassageSplitter(5, 0, 2);
+        assertEquals(Arrays.asList("aaaa", "bbbb"), split(splitter, "aaaa bbbb cccc dddd"));
+        try {
+            new PassageSplitter(10, 10, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void test_pool() {
+        List<float[]> vectors = Arrays.asList(new float[] { 1, 0 }, new float[] { 0, 1 });
+        float[] mean = PassagePooling.MEAN.pool(vectors);
+        assertEquals((float) Math.sqrt(0.5), mean[0], 1.0e-6f);
+        assertEquals((float) Math.sqrt(0.5), mean[1], 1.0e-6f);
+        float[] max = PassagePooling.MAX.pool(Arrays.asList(new float[] { 1, -3 }, new float[] { 2, -4 }));
+        assertEquals(2.0f, max[0], 0.0f);
+        assertEquals(-3.0f, max[1], 0.0f);
+        float[] unnormalized = PassagePooling.MEAN.pool(Arrays.asList(new float[] { 2, 4 }, new float[] { 4, 0 }));
+        assertEquals(3.0f, unnormalized[0], 0.0f);
+        assertEquals(2.0f, unnormalized[1], 0.0f);
+        assertNull(PassagePooling.MEAN.pool(new ArrayList<>()));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class QueryVectorizerTest extends PlainTestCase {
+
+    private final List<String> texts = Collections.synchronizedList(new ArrayList<>());
+
+    // sleeps of the requests in order, and no sleep for the rest
+    private final List<Long> sleeps = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private VectorizingIngester ingester;
+
+    private QueryVectorizer queryVectorizer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ingester = new VectorizingIngester();
+        ingester.vectorizer = new Vectorizer() {
+            @Override
+            protected List<Map<String, float[]>> vectorizeBatch(List<Map<String, Object>> inputs, boolean raw, boolean coalescing) {
+                int index = requests.getAndIncrement();
+                String text = (String) inputs.get(0).get("content");
+                texts.add(text);
+                if (index < sleeps.size()) {
+                    try {
+                        Thread.sleep(sleeps.get(index));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return Collections.singletonList(Map.of("content", new float[] { text.length(), index }));
+            }
+        };
+        ingester.vectorizer.fields = new String[] { "content" };
+        ingester.vectorizer.supportedLanguages = Set.of("en");
+        queryVectorizer = new QueryVectorizer();
+        queryVectorizer.setIngester(ingester);
+        queryVectorizer.setCacheSize(2);
+    }
+
+    public void test_vectorize_cache() {
+        float[] vector = queryVectorizer.vectorize("  Hello \t WORLD ", "en");
+        assertEquals(16.0f, vector[0], 0.0f);
+        assertEquals("  Hello \t WORLD ", texts.get(0));
+        assertSame(vector, queryVectorizer.vectorize("hello world", "en"));
+        assertSame(vector, queryVectorizer.vectorize("ｈｅｌｌｏ　ｗｏｒｌｄ", "en"));
+        assertEquals(1, requests.get());
+        assertEquals(2L, queryVectorizer.cacheHits.sum());
+
+        // the least recently used query is evicted
+        queryVectorizer.vectorize("a", "en");
+        queryVectorizer.vectorize("hello world", "en");
+        queryVectorizer.vectorize("b", "en");
+        queryVectorizer.vectorize("a", "en");
+        assertEquals(4, requests.get());
+        queryVectorizer.vectorize("hello world", "en");
+        assertEquals(5, requests.get());
+    }
+
+    public void test_vectorize_unsupported() {
+        assertNull(queryVectorizer.vectorize("hello", "xx"));
+        assertNull(queryVectorizer.vectorize(" ", "en"));
+        assertNull(queryVectorizer.vectorize("hello", null));
+        assertEquals(0, requests.get());
+
+        ingester.initialization = new CompletableFuture<>();
+        assertNull(queryVectorizer.vectorize("hello", "en"));
+        assertEquals(0, requests.get());
+    }
+
+    public void test_vectorize_timeout() {
+        queryVectorizer.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(100L);
+        sleeps.add(500L);
+        assertNull(queryVectorizer.vectorize("slow", "en"));
+        assertEquals(1L, queryVectorizer.timeouts.sum());
+        // nothing is cached for a timed out query
+        assertNotNull(queryVectorizer.vectorize("slow", "en"));
+        assertEquals(2, requests.get());
+    }
+
+    public void test_vectorize_hedge() {
+        queryVectorizer.hedgeMinSamples = 0L;
+        queryVectorizer.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(50L);
+        sleeps.add(2000L);
+        long start = System.nanoTime();
+        float[] vector = queryVectorizer.vectorize("hedged", "en");
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000L));
+        // the vector of the second request
+        assertEquals(1.0f, vector[1], 0.0f);
+        assertEquals(1L, queryVectorizer.hedges.sum());
+        assertEquals(2, requests.get());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class RoutingVectorizerTest extends PlainTestCase {
+
+    private static Vectorizer hashing(String field, int dimension, String languages) {
+        return Vectorizer.create()//
+                .backend("hashing")//
+                .backendSettings(name -> "languages".equals(name) ? languages : null)//
+                .fields(field)//
+                .dimension(dimension)//
+                .build();
+    }
+
+    public void test_vectorize() {
+        List<RoutingVectorizer.Route> routes = new ArrayList<>();
+        routes.add(new RoutingVectorizer.Route(hashing("title", 32, "en"), 1, 0L, 1));
+        routes.add(new RoutingVectorizer.Route(hashing("content", 64, "en,ja"), 4, 10L, 1));
+        RoutingVectorizer vectorizer = new RoutingVectorizer(routes);
+        try {
+            assertTrue(vectorizer.isActive());
+            assertEquals(Set.of("title", "content"), Set.of(vectorizer.getFields()));
+            assertEquals(Set.of("en", "ja"), Set.of(vectorizer.getLanguages()));
+            assertEquals(32, vectorizer.getDimension("title"));
+            assertEquals(64, vectorizer.getDimension("content"));
+            assertSame(routes.get(0).getVectorizer(), vectorizer.getVectorizer("title"));
+            try {
+                vectorizer.getVectorizer("url");
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertTrue(vectorizer.modelId.contains("title=hashing"));
+
+            List<Map<String, float[]>> results = vectorizer.vectorizeBatch(List.of(//
+                    Map.of("title", "Fess", "content", "Full text search server", "lang", "en"), //
+                    Map.of("title", "Fess", "content", "全文検索サーバー", "lang", "ja"), //
+                    Map.of("title", "Fess", "lang", "de")));
+            assertEquals(3, results.size());
+            assertEquals(32, results.get(0).get("title").length);
+            assertEquals(64, results.get(0).get("content").length);
+            assertFalse(results.get(1).containsKey("title"));
+            assertEquals(64, results.get(1).get("content").length);
+            assertTrue(results.get(2).isEmpty());
+            assertTrue(Arrays.equals(results.get(0).get("content"),
+                    vectorizer.vectorize(Map.of("content", "Full text search server", "lang", "en")).get("content")));
+        } finally {
+            vectorizer.close();
+        }
+    }
+
+    public void test_vectorize_failedRoute() {
+        Vectorizer failing = new Vectorizer() {
+            @Override
+            public List<Map<String, float[]>> vectorizeBatch(List<Map<String, Object>> inputs) {
+                throw new IllegalStateException("unavailable");
+            }
+        };
+        failing.fields = new String[] { "title" };
+        failing.modelId = "failing";
+        List<RoutingVectorizer.Route> routes = new ArrayList<>();
+        routes.add(new RoutingVectorizer.Route(failing, 1, 0L, 1));
+        routes.add(new RoutingVectorizer.Route(hashing("content", 16, "en"), 1, 0L, 1));
+        RoutingVectorizer vectorizer = new RoutingVectorizer(routes);
+        try {
+            Map<String, float[]> vectors = vectorizer.vectorize(Map.of("title", "Fess", "content", "search", "lang", "en"));
+            assertFalse(vectors.containsKey("title"));
+            assertEquals(16, vectors.get("content").length);
+        } finally {
+            vectorizer.close();
+        }
+
+        // a single route fails in the same way
+        RoutingVectorizer single = new RoutingVectorizer(List.of(new RoutingVectorizer.Route(failing, 4, 10L, 1)));
+        try {
+            List<Map<String, float[]>> results = single.vectorizeBatch(List.of(Map.of("title", "Fess", "lang", "en")));
+            assertEquals(1, results.size());
+            assertTrue(results.get(0).isEmpty());
+        } finally {
+            single.close();
+        }
+    }
+
+    public void test_duplicateField() {
+        Vectorizer first = hashing("content", 16, "en");
+        Vectorizer second = hashing("content", 32, "en");
+        try {
+            new RoutingVectorizer(List.of(new RoutingVectorizer.Route(first, 1, 0L, 1), new RoutingVectorizer.Route(second, 1, 0L, 1)));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+}
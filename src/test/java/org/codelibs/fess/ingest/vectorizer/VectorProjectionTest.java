@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class VectorProjectionTest extends PlainTestCase {
+
+    private static float[] randomVector(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static double distance(float[] a, float[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += (a[i] - b[i]) * (a[i] - b[i]);
+        }
+        return Math.sqrt(sum);
+    }
+
+    public void test_dot() {
+        Random random = new Random(1);
+        for (int length = 0; length < 11; length++) {
+            float[] a = randomVector(random, length + 3);
+            float[] b = randomVector(random, length);
+            double expected = 0.0;
+            for (int i = 0; i < length; i++) {
+                expected += a[i + 3] * b[i];
+            }
+            assertEquals(expected, VectorProjection.dot(a, 3, b, length), 1.0e-5);
+        }
+    }
+
+    public void test_random() {
+        Random random = new Random(1);
+        VectorProjection projection = VectorProjection.random(256, 64, 7L);
+        assertEquals(256, projection.getInputDimension());
+        assertEquals(64, projection.getOutputDimension());
+        assertEquals(projection.getId(), VectorProjection.random(256, 64, 7L).getId());
+        assertFalse(projection.getId().equals(VectorProjection.random(256, 64, 8L).getId()));
+
+        float[] a = randomVector(random, 256);
+        float[] b = randomVector(random, 256);
+        double ratio = distance(projection.project(a), projection.project(b)) / distance(a, b);
+        assertTrue(String.valueOf(ratio), ratio > 0.7 && ratio < 1.3);
+
+        float[] unit = a.clone();
+        double norm = PassagePooling.norm(unit);
+        for (int i = 0; i < unit.length; i++) {
+            unit[i] /= norm;
+        }
+        assertEquals(1.0, PassagePooling.norm(projection.project(unit)), 1.0e-5);
+
+        try {
+            projection.project(new float[3]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void test_pca() {
+        // points in a 3-dimensional subspace of a 32-dimensional space, with an offset
+        Random random = new Random(1);
+        float[][] basis = new float[3][];
+        for (int i = 0; i < basis.length; i++) {
+            basis[i] = randomVector(random, 32);
+        }
+        float[] offset = randomVector(random, 32);
+        List<float[]> samples = new ArrayList<>();
+        for (int n = 0; n < 200; n++) {
+            float[] vector = offset.clone();
+            for (float[] axis : basis) {
+                double weight = random.nextGaussian();
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] += weight * axis[i];
+                }
+            }
+            samples.add(vector);
+        }
+        VectorProjection projection = VectorProjection.pca(samples, 3, 20, 1L);
+        for (int n = 0; n < 20; n++) {
+            float[] a = samples.get(n);
+            float[] b = samples.get(n + 100);
+            assertEquals(distance(a, b), distance(projection.project(a), projection.project(b)), 1.0e-3 * distance(a, b));
+        }
+    }
+
+    public void test_saveAndLoad() throws IOException {
+        Path dir = Files.createTempDirectory("projection");
+        try {
+            Random random = new Random(1);
+            List<float[]> samples = new ArrayList<>();
+            for (int n = 0; n < 50; n++) {
+                samples.add(randomVector(random, 16));
+            }
+            VectorProjection projection = VectorProjection.pca(samples, 4, 5, 1L);
+            Path path = dir.resolve("sub").resolve("projection.bin");
+            projection.save(path);
+            VectorProjection loaded = VectorProjection.load(path);
+            assertEquals(projection.getId(), loaded.getId());
+            float[] vector = randomVector(random, 16);
+            float[] expected = projection.project(vector);
+            float[] actual = loaded.project(vector);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], 0.0f);
+            }
+
+            Files.write(path, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            try {
+                VectorProjection.load(path);
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void test_fitProjection_fallback() throws IOException {
+        Path dir = Files.createTempDirectory("projection");
+        try {
+            Random random = new Random(1);
+            Vectorizer vectorizer = new Vectorizer() {
+                @Override
+                protected List<Map<String, float[]>> vectorizeBatch(List<Map<String, Object>> inputs, boolean raw) {
+                    List<Map<String, float[]>> results = new ArrayList<>();
+                    for (int i = 0; i < inputs.size(); i++) {
+                        results.add(Collections.singletonMap("content", randomVector(random, 8)));
+                    }
+                    return results;
+                }
+            };
+            vectorizer.dimension = 8;
+            vectorizer.projectionDimension = 4;
+            vectorizer.projectionSeed = 1L;
+            vectorizer.projectionPath = dir.resolve("projection.bin");
+            vectorizer.modelId = "test";
+
+            vectorizer.fitProjection(Collections.emptyList());
+            assertFalse(vectorizer.isProjectionFitted());
+            assertNotNull(vectorizer.projection);
+            assertFalse(Files.exists(vectorizer.projectionPath));
+            String fallbackId = vectorizer.modelId;
+
+            List<Map<String, Object>> samples = new ArrayList<>();
+            for (int n = 0; n < 2; n++) {
+                samples.add(new HashMap<>());
+            }
+            vectorizer.fitProjection(samples);
+            assertFalse(vectorizer.isProjectionFitted());
+            assertEquals(fallbackId, vectorizer.modelId);
+
+            for (int n = 0; n < 30; n++) {
+                samples.add(new HashMap<>());
+            }
+            vectorizer.fitProjection(samples);
+            assertTrue(vectorizer.isProjectionFitted());
+            assertTrue(Files.exists(vectorizer.projectionPath));
+            assertEquals("test#" + VectorProjection.load(vectorizer.projectionPath).getId(), vectorizer.modelId);
+        } finally {
+            Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+}
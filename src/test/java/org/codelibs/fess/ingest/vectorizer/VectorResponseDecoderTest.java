@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class VectorResponseDecoderTest extends PlainTestCase {
+
+    private static List<Map<String, float[]>> decode(VectorResponseDecoder decoder, String json) throws IOException {
+        return decoder.decode(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void test_decode() throws IOException {
+        VectorResponseDecoder decoder = new VectorResponseDecoder(new String[] { "title", "content" }, 3, 16);
+        List<Map<String, float[]>> results = decode(decoder, "{\"model\":\"test\",\"info\":{\"a\":[1,{\"b\":\"]}\"}]},"
+                + "\"results\" : [ {\"content\":[0.5, -1.25e-2 ,3E2],\"lang\":\"en\",\"title\":[1,2,3]}, {\"content\":[],\"other\":[1,2]} ],"
+                + "\"time\":0.123,\"ok\":true,\"none\":null}");
+        assertEquals(2, results.size());
+        float[] content = results.get(0).get("content");
+        assertEquals(3, content.length);
+        assertEquals(0.5f, content[0], 0.0f);
+        assertEquals(-0.0125f, content[1], 0.0f);
+        assertEquals(300.0f, content[2], 0.0f);
+        assertEquals(2.0f, results.get(0).get("title")[1], 0.0f);
+        assertEquals(0, results.get(1).get("content").length);
+        assertFalse(results.get(1).containsKey("title"));
+        assertFalse(results.get(1).containsKey("other"));
+    }
+
+    public void test_decode_noResults() throws IOException {
+        VectorResponseDecoder decoder = new VectorResponseDecoder(new String[] { "content" }, 3);
+        assertNull(decode(decoder, "{}"));
+        assertNull(decode(decoder, "{\"error\":\"failed\"}"));
+        assertEquals(0, decode(decoder, "{\"results\":[]}").size());
+    }
+
+    public void test_decode_growVector() throws IOException {
+        VectorResponseDecoder decoder = new VectorResponseDecoder(new String[] { "content" }, 2);
+        float[] values = decode(decoder, "{\"results\":[{\"content\":[1,2,3,4,5]}]}").get(0).get("content");
+        assertEquals(5, values.length);
+        assertEquals(5.0f, values[4], 0.0f);
+    }
+
+    public void test_decode_numbers() throws IOException {
+        Random random = new Random(1);
+        VectorResponseDecoder decoder = new VectorResponseDecoder(new String[] { "content" }, 768, 64);
+        float[] expected = new float[768];
+        StringBuilder buf = new StringBuilder("{\"results\":[{\"content\":[");
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (float) (random.nextGaussian() * Math.pow(10, random.nextInt(10) - 5));
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(i % 2 == 0 ? Float.toString(expected[i]) : Double.toString(expected[i]));
+        }
+        buf.append("]}]}");
+        float[] values = decode(decoder, buf.toString()).get(0).get("content");
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], values[i], Math.ulp(expected[i]));
+        }
+    }
+
+    public void test_decode_nonFinite() throws IOException {
+        VectorResponseDecoder decoder = new VectorResponseDecoder(new String[] { "content" }, 5);
+        float[] values = decode(decoder, "{\"results\":[{\"content\":[NaN,Infinity,-Infinity,null,1],\"score\":-Infinity}]}").get(0)
+                .get("content");
+        assertTrue(Float.isNaN(values[0]));
+        assertEquals(Float.POSITIVE_INFINITY, values[1]);
+        assertEquals(Float.NEGATIVE_INFINITY, values[2]);
+        assertTrue(Float.isNaN(values[3]));
+        assertEquals(1.0f, values[4]);
+        try {
+            decode(decoder, "{\"results\":[{\"content\":[Inf]}]}");
+            fail();
+        } catch (IOException e) {
+            assertEquals("Unexpected literal: Inf", e.getMessage());
+        }
+    }
+
+    public void test_decode_invalid() {
+        VectorResponseDecoder decoder = new VectorResponseDecoder(new String[] { "content" }, 3);
+        try {
+            decode(decoder, "{\"results\":[{\"content\":[1,2");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            decode(decoder, "[]");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class VectorizerCoalesceTest extends PlainTestCase {
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    // number of requests to fail
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private Vectorizer newVectorizer() {
+        Vectorizer vectorizer = new Vectorizer() {
+            @Override
+            protected List<Map<String, float[]>> requestVectors(byte[] body) {
+                requests.incrementAndGet();
+                bodies.add(new String(body, StandardCharsets.UTF_8));
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (failures.getAndDecrement() > 0) {
+                    return null;
+                }
+                try {
+                    @SuppressWarnings("unchecked")
+                    List<Map<String, Object>> data = (List<Map<String, Object>>) parseJson(new ByteArrayInputStream(body)).get("data");
+                    List<Map<String, float[]>> results = new ArrayList<>();
+                    for (Map<String, Object> texts : data) {
+                        Map<String, float[]> result = new HashMap<>();
+                        texts.forEach((field, value) -> {
+                            if (!"lang".equals(field)) {
+                                result.put(field, new float[] { value.toString().length(), 1.0f });
+                            }
+                        });
+                        results.add(result);
+                    }
+                    return results;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        vectorizer.fields = new String[] { "title", "content" };
+        vectorizer.dimension = 2;
+        vectorizer.modelId = "test";
+        vectorizer.supportedLanguages = Set.of("en");
+        vectorizer.inFlightVectors = new ConcurrentHashMap<>();
+        return vectorizer;
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && requests.get() < count; i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(count, requests.get());
+    }
+
+    public void test_sameFields() {
+        latch.countDown();
+        Vectorizer vectorizer = newVectorizer();
+        Map<String, float[]> vectors = vectorizer.vectorize(Map.of("title", "Fess", "content", "Fess", "lang", "en"));
+        assertEquals(1, requests.get());
+        assertFalse(bodies.get(0).contains("content"));
+        assertEquals(4.0f, vectors.get("title")[0], 0.0f);
+        assertSame(vectors.get("title"), vectors.get("content"));
+        assertEquals(1L, vectorizer.getCoalescedCount());
+    }
+
+    public void test_inFlight() throws Exception {
+        Vectorizer vectorizer = newVectorizer();
+        CompletableFuture<Map<String, float[]>> first =
+                CompletableFuture.supplyAsync(() -> vectorizer.vectorize(Map.of("content", "shared text", "lang", "en")));
+        awaitRequests(1);
+        CompletableFuture<Map<String, float[]>> second =
+                CompletableFuture.supplyAsync(() -> vectorizer.vectorize(Map.of("title", "other", "content", "shared text", "lang", "en")));
+        awaitRequests(2);
+        assertFalse(bodies.get(1).contains("shared text"));
+        latch.countDown();
+        assertEquals(11.0f, first.get().get("content")[0], 0.0f);
+        assertEquals(11.0f, second.get().get("content")[0], 0.0f);
+        assertEquals(5.0f, second.get().get("title")[0], 0.0f);
+        assertEquals(1L, vectorizer.getCoalescedCount());
+        assertTrue(vectorizer.inFlightVectors.isEmpty());
+    }
+
+    public void test_inFlight_failed() throws Exception {
+        failures.set(2);
+        Vectorizer vectorizer = newVectorizer();
+        CompletableFuture<Map<String, float[]>> first =
+                CompletableFuture.supplyAsync(() -> vectorizer.vectorize(Map.of("content", "shared text", "lang", "en")));
+        awaitRequests(1);
+        CompletableFuture<Map<String, float[]>> second =
+                CompletableFuture.supplyAsync(() -> vectorizer.vectorize(Map.of("content", "shared text", "lang", "en")));
+        for (int i = 0; i < 200 && vectorizer.getCoalescedCount() == 0L; i++) {
+            Thread.sleep(10L);
+        }
+        latch.countDown();
+        assertTrue(first.get().isEmpty());
+        assertTrue(second.get().isEmpty());
+        // the waiter requested the text itself
+        assertEquals(2, requests.get());
+        assertTrue(vectorizer.inFlightVectors.isEmpty());
+    }
+
+    public void test_inFlight_ownerFailed() throws Exception {
+        failures.set(1);
+        Vectorizer vectorizer = newVectorizer();
+        CompletableFuture<Map<String, float[]>> first =
+                CompletableFuture.supplyAsync(() -> vectorizer.vectorize(Map.of("content", "shared text", "lang", "en")));
+        awaitRequests(1);
+        CompletableFuture<Map<String, float[]>> second =
+                CompletableFuture.supplyAsync(() -> vectorizer.vectorize(Map.of("content", "shared text", "lang", "en")));
+        for (int i = 0; i < 200 && vectorizer.getCoalescedCount() == 0L; i++) {
+            Thread.sleep(10L);
+        }
+        latch.countDown();
+        assertTrue(first.get().isEmpty());
+        // the vector which the owner did not get is requested by the waiter
+        assertEquals(11.0f, second.get().get("content")[0], 0.0f);
+        assertEquals(2, requests.get());
+        assertTrue(bodies.get(1).contains("shared text"));
+        assertTrue(vectorizer.inFlightVectors.isEmpty());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class VectorizerMetricsTest extends PlainTestCase {
+
+    public void test_histogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getPercentile(50.0));
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000L, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 0.0);
+        long p50 = histogram.getPercentile(50.0);
+        assertTrue(String.valueOf(p50), p50 >= 500000L && p50 <= 500000L * 107 / 100);
+        long p99 = histogram.getPercentile(99.0);
+        assertTrue(String.valueOf(p99), p99 >= 990000L && p99 <= 1000000L);
+        assertEquals(1000000L, histogram.getPercentile(100.0));
+    }
+
+    public void test_buckets() {
+        long[] values = { 0L, 1L, 15L, 16L, 17L, 31L, 32L, 1000L, 123456789L, Long.MAX_VALUE };
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.lowerBoundOf(index) <= value);
+            if (value < Long.MAX_VALUE / 2) {
+                assertTrue(LatencyHistogram.lowerBoundOf(index + 1) > value);
+            }
+        }
+        assertTrue(LatencyHistogram.indexOf(Long.MAX_VALUE) < new LatencyHistogram().counts.length());
+    }
+
+    public void test_snapshot() throws IOException {
+        VectorizerMetrics metrics = new VectorizerMetrics();
+        metrics.recordBuild(2000000L, 4);
+        metrics.recordSent(100);
+        metrics.recordNetwork(5000000L);
+        metrics.recordDecode(1000000L);
+        metrics.recordUnsupportedLanguage();
+        metrics.recordError("503");
+        metrics.recordError("503");
+        metrics.registerGauge("queue", () -> 7);
+        try (InputStream in = metrics.countReceived(new ByteArrayInputStream(new byte[300]))) {
+            in.read();
+            in.readAllBytes();
+        }
+
+        Map<String, Number> values = metrics.snapshot();
+        assertEquals(1L, values.get("requests"));
+        assertEquals(100L, values.get("bytes.sent"));
+        assertEquals(300L, values.get("bytes.received"));
+        assertEquals(1L, values.get("documents.unsupported_lang"));
+        assertEquals(2L, values.get("errors.503"));
+        assertEquals(7, values.get("queue"));
+        assertEquals(4.0, values.get("batch.size.mean"));
+        long network = values.get("time.network.p50_us").longValue();
+        assertTrue(String.valueOf(network), network >= 5000L && network < 5400L);
+    }
+
+    public void test_mbean() throws Exception {
+        VectorizerMetrics metrics = new VectorizerMetrics();
+        metrics.recordError("io");
+        metrics.registerMBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.codelibs.fess.ingest.vectorizer:type=VectorizerMetrics,name=\"test\"");
+        try {
+            assertEquals(1L, server.getAttribute(name, "errors.io"));
+            assertEquals(0L, server.getAttribute(name, "requests"));
+            assertTrue(server.getMBeanInfo(name).getAttributes().length > 10);
+        } finally {
+            metrics.close();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
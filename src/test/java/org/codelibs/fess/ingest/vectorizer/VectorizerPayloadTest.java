@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012-2022 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.ingest.vectorizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.dbflute.utflute.core.PlainTestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class VectorizerPayloadTest extends PlainTestCase {
+
+    private HttpServer server;
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<String> encodings = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<String> acceptEncodings = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            if ("/".equals(exchange.getRequestURI().getPath())) {
+                exchange.getRequestBody().readAllBytes();
+                respond(exchange, "{\"languages\":[\"en\"],\"model\":\"test\",\"max_input_length\":4}", false);
+                return;
+            }
+            final String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            encodings.add(String.valueOf(encoding));
+            try (InputStream in = "gzip".equals(encoding) ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+                requests.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            final String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            acceptEncodings.add(String.valueOf(accept));
+            respond(exchange, "{\"results\":[{\"content\":[1,2,3]}]}", accept != null && accept.contains("gzip"));
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        super.tearDown();
+    }
+
+    private static void respond(HttpExchange exchange, String body, boolean gzip) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (gzip) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+                gzipOut.write(bytes);
+            }
+            bytes = out.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private Vectorizer.Builder newBuilder() {
+        return Vectorizer.create()//
+                .url("http://127.0.0.1:" + server.getAddress().getPort())//
+                .dimension(3)//
+                .wireFormat("json")//
+                .healthCheckInterval(0L);
+    }
+
+    public void test_truncate() {
+        Vectorizer vectorizer = new Vectorizer();
+        assertEquals("abcdefghij", vectorizer.truncate("abcdefghij"));
+        vectorizer.maxInputChars = 4;
+        assertEquals("abcd", vectorizer.truncate("abcdefghij"));
+        assertEquals("abc", vectorizer.truncate("abc"));
+        vectorizer.truncation = Vectorizer.Truncation.TAIL;
+        assertEquals("ghij", vectorizer.truncate("abcdefghij"));
+        vectorizer.truncation = Vectorizer.Truncation.HEAD_TAIL;
+        assertEquals("ab\nj", vectorizer.truncate("abcdefghij"));
+        assertEquals(3L, vectorizer.getTruncatedCount());
+
+        // surrogate pairs are not split
+        vectorizer.truncation = Vectorizer.Truncation.HEAD;
+        assertEquals("abc", vectorizer.truncate("abc😀def"));
+        vectorizer.truncation = Vectorizer.Truncation.TAIL;
+        assertEquals("def", vectorizer.truncate("abc😀def"));
+    }
+
+    public void test_vectorize_truncated() {
+        Vectorizer vectorizer = newBuilder().charsPerToken(2.0).build();
+        try {
+            assertEquals(3, vectorizer.vectorize(Map.of("content", "0123456789abcdef", "lang", "en")).get("content").length);
+            assertTrue(requests.get(0), requests.get(0).contains("\"content\":\"01234567\""));
+            assertEquals("null", encodings.get(0));
+        } finally {
+            vectorizer.close();
+        }
+
+        // the setting wins over the server
+        vectorizer = newBuilder().maxInputLength(1).charsPerToken(2.0).truncation("tail").build();
+        try {
+            vectorizer.vectorize(Map.of("content", "0123456789abcdef", "lang", "en"));
+            assertTrue(requests.get(1), requests.get(1).contains("\"content\":\"ef\""));
+        } finally {
+            vectorizer.close();
+        }
+    }
+
+    public void test_vectorize_compressed() {
+        Vectorizer vectorizer = newBuilder().maxInputLength(1000).compressionThreshold(10).responseCompression(true).build();
+        try {
+            Map<String, float[]> vectors = vectorizer.vectorize(Map.of("content", "compressed content", "lang", "en"));
+            assertEquals(2.0f, vectors.get("content")[1], 0.0f);
+            assertEquals("gzip", encodings.get(0));
+            assertEquals("gzip", acceptEncodings.get(0));
+            assertTrue(requests.get(0).contains("compressed content"));
+            assertEquals(Set.of("en"), Set.of(vectorizer.getLanguages()));
+        } finally {
+            vectorizer.close();
+        }
+
+        // counted as sent on the wire
+        vectorizer = newBuilder().maxInputLength(1000).compressionThreshold(10).build();
+        try {
+            vectorizer.vectorize(Map.of("content", "compressed content ".repeat(20), "lang", "en"));
+            assertEquals("gzip", encodings.get(1));
+            assertTrue(vectorizer.getMetrics().getBytesSent() < requests.get(1).length());
+        } finally {
+            vectorizer.close();
+        }
+
+        // curl sends the body as a string
+        vectorizer = newBuilder().maxInputLength(1000).transport("curl").compressionThreshold(10).responseCompression(true).build();
+        try {
+            assertEquals(2.0f, vectorizer.vectorize(Map.of("content", "compressed content", "lang", "en")).get("content")[1], 0.0f);
+            assertEquals("null", encodings.get(2));
+            assertTrue(requests.get(2).contains("compressed content"));
+            assertEquals(requests.get(2).length(), vectorizer.getMetrics().getBytesSent());
+        } finally {
+            vectorizer.close();
+        }
+    }
+}
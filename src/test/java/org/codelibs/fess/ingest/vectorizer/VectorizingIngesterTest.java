@@ -15,18 +15,46 @@
  */
 package org.codelibs.fess.ingest.vectorizer;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.codelibs.fess.mylasta.direction.FessConfig;
 import org.codelibs.fess.util.ComponentUtil;
 import org.dbflute.utflute.lastaflute.LastaFluteTestCase;
+import org.opensearch.common.CheckedConsumer;
+import org.opensearch.common.xcontent.XContentBuilder;
+
+import com.sun.net.httpserver.HttpServer;
 
 public class VectorizingIngesterTest extends LastaFluteTestCase {
 
     private VectorizingIngester ingester;
 
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
     @Override
     protected String prepareConfigFile() {
         return "test_app.xml";
@@ -54,9 +82,22 @@ public class VectorizingIngesterTest extends LastaFluteTestCase {
         ingester.vectorizer = new Vectorizer() {
             public Map<String, float[]> vectorize(Map<String, Object> input) {
                 Map<String, float[]> map = new HashMap<>();
-                map.put("content", new float[10]);
+                for (String field : new String[] { "title", "content" }) {
+                    if (input.containsKey(field)) {
+                        map.put(field, new float[10]);
+                    }
+                }
                 return map;
             }
+
+            public List<Map<String, float[]>> vectorizeBatch(List<Map<String, Object>> inputs) {
+                batchSizes.add(inputs.size());
+                List<Map<String, float[]>> list = new ArrayList<>();
+                for (Map<String, Object> input : inputs) {
+                    list.add(vectorize(input));
+                }
+                return list;
+            }
         };
         ingester.vectorizer.supportedLanguages = new HashSet<>();
         ingester.vectorizer.supportedLanguages.add("en");
@@ -65,6 +106,7 @@ public class VectorizingIngesterTest extends LastaFluteTestCase {
 
     @Override
     public void tearDown() throws Exception {
+        ingester.destroy();
         ComponentUtil.setFessConfig(null);
         super.tearDown();
     }
@@ -98,4 +140,540 @@ public class VectorizingIngesterTest extends LastaFluteTestCase {
         assertFalse(output.containsKey("content_en_vector"));
         assertFalse(output.containsKey("content_ja_vector"));
     }
+
+    public void test_process_initializing() {
+        ingester.initialization = new CompletableFuture<>();
+        Map<String, Object> input = new HashMap<>();
+        input.put("lang", "en");
+        input.put("content", "test");
+        assertFalse(ingester.isReady());
+        Map<String, Object> output = ingester.process(new HashMap<>(input));
+        assertFalse(output.containsKey("content_en_vector"));
+        assertEquals(Boolean.TRUE, output.get("vector_pending"));
+
+        ingester.initialization.complete(null);
+        assertTrue(ingester.isReady());
+        output = ingester.process(new HashMap<>(input));
+        assertTrue(output.containsKey("content_en_vector"));
+        assertFalse(output.containsKey("vector_pending"));
+
+        ingester.initialization = new CompletableFuture<>();
+        ingester.initialization.completeExceptionally(new IllegalStateException("failed"));
+        assertFalse(ingester.isReady());
+        output = ingester.process(new HashMap<>(input));
+        assertFalse(output.containsKey("content_en_vector"));
+        assertEquals(Boolean.TRUE, output.get("vector_pending"));
+        assertEquals(2L, ingester.pendingCount.sum());
+    }
+
+    public void test_initialize_retry() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        VectorizingIngester retrying = new VectorizingIngester() {
+            protected void initialize() {
+                if (attempts.incrementAndGet() < 3) {
+                    throw new IllegalStateException("unavailable");
+                }
+            }
+        };
+        retrying.scheduler = Executors.newSingleThreadScheduledExecutor();
+        retrying.initializationRetryDelay = 10L;
+        retrying.initializationMaxRetryDelay = 20L;
+        try {
+            retrying.initialization = new CompletableFuture<>();
+            retrying.scheduleInitialization(0L);
+            retrying.initialization.get(10L, TimeUnit.SECONDS);
+            assertTrue(retrying.isReady());
+            assertEquals(3, attempts.get());
+
+            // a configuration error is not retried
+            attempts.set(0);
+            List<String> closed = Collections.synchronizedList(new ArrayList<>());
+            VectorizingIngester misconfigured = new VectorizingIngester() {
+                protected void initialize() {
+                    attempts.incrementAndGet();
+                    vectorizer = new Vectorizer() {
+                        public void close() {
+                            closed.add("vectorizer");
+                        }
+                    };
+                    throw new IllegalArgumentException("invalid");
+                }
+            };
+            misconfigured.scheduler = Executors.newSingleThreadScheduledExecutor();
+            misconfigured.initialization = new CompletableFuture<>();
+            misconfigured.scheduleInitialization(0L);
+            try {
+                misconfigured.initialization.get(10L, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+            assertFalse(misconfigured.isReady());
+            assertEquals(1, attempts.get());
+            // nothing is left running
+            assertEquals(List.of("vectorizer"), closed);
+            assertNull(misconfigured.vectorizer);
+            assertTrue(misconfigured.scheduler.awaitTermination(10L, TimeUnit.SECONDS));
+        } finally {
+            retrying.destroy();
+        }
+    }
+
+    public void test_process_budget() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        Vectorizer base = ingester.vectorizer;
+        ingester.vectorizer = new Vectorizer() {
+            public Map<String, float[]> vectorize(Map<String, Object> input) {
+                if ("slow".equals(input.get("content"))) {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return base.vectorize(input);
+            }
+        };
+        ingester.vectorizer.supportedLanguages = Set.of("en");
+        ingester.limiter = new AdaptiveLimiter(1, 1, 1, 1000L, 0.5);
+        ingester.latencyBudget = 100L;
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("lang", "en");
+        input.put("content", "test");
+        Map<String, Object> output = ingester.process(new HashMap<>(input));
+        assertTrue(output.containsKey("content_en_vector"));
+        assertFalse(output.containsKey("vector_pending"));
+        // released after the result is returned
+        for (int i = 0; i < 100 && ingester.limiter.getInFlight() > 0; i++) {
+            Thread.sleep(10L);
+        }
+
+        input.put("content", "slow");
+        output = ingester.process(new HashMap<>(input));
+        assertFalse(output.containsKey("content_en_vector"));
+        assertEquals(Boolean.TRUE, output.get("vector_pending"));
+
+        // the slow request is cancelled, so it does not hold the limit
+        assertEquals(0, ingester.limiter.getInFlight());
+        input.put("content", "test");
+        assertTrue(ingester.process(new HashMap<>(input)).containsKey("content_en_vector"));
+        assertEquals(0L, ingester.limiter.getRejectedCount());
+        assertEquals(1L, ingester.pendingCount.sum());
+        latch.countDown();
+    }
+
+    public void test_process_budget_breaker() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            String body = "{\"languages\":[\"en\"],\"model\":\"test\"}";
+            if (!"/".equals(exchange.getRequestURI().getPath())) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                body = "{\"results\":[{\"content\":[1,2,3]}]}";
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+        ingester.vectorizer = Vectorizer.create()//
+                .url(url + "," + url.replace("127.0.0.1", "localhost"))//
+                .fields("content")//
+                .dimension(3)//
+                .wireFormat("json")//
+                .circuitBreakerFailures(1)//
+                .healthCheckInterval(0L)//
+                .build();
+        ingester.limiter = new AdaptiveLimiter(1, 1, 1, 1000L, 0.5);
+        ingester.latencyBudget = 100L;
+        try {
+            Map<String, Object> input = new HashMap<>();
+            input.put("lang", "en");
+            input.put("content", "slow");
+            Map<String, Object> output = ingester.process(input);
+            assertFalse(output.containsKey("content_en_vector"));
+            assertEquals(Boolean.TRUE, output.get("vector_pending"));
+            List<VectorizerEndpoint> endpoints = ingester.vectorizer.getBalancer().getEndpoints();
+            for (int i = 0; i < 100 && endpoints.stream().anyMatch(e -> e.getOutstanding() > 0); i++) {
+                Thread.sleep(10L);
+            }
+
+            // the cancelled request neither opens the breakers nor fails over
+            for (VectorizerEndpoint endpoint : endpoints) {
+                assertEquals(VectorizerEndpoint.State.CLOSED, endpoint.getState());
+                assertEquals(0, endpoint.getOutstanding());
+            }
+            assertEquals(0L, ingester.vectorizer.getMetrics().getErrorCount("io"));
+        } finally {
+            latch.countDown();
+            server.stop(0);
+        }
+    }
+
+    public void test_refreshLanguages() {
+        List<String> createdFields = new ArrayList<>();
+        VectorizingIngester refreshing = new VectorizingIngester() {
+            @Override
+            protected void createFields(Map<String, CheckedConsumer<XContentBuilder, IOException>> fieldMappings) {
+                createdFields.addAll(fieldMappings.keySet());
+            }
+        };
+        refreshing.vectorizer = new Vectorizer() {
+            @Override
+            public boolean refreshLanguages() {
+                if (supportedLanguages.contains("de")) {
+                    return false;
+                }
+                supportedLanguages = new HashSet<>(Arrays.asList("en", "de"));
+                return true;
+            }
+        };
+        refreshing.vectorizer.fields = new String[] { "content" };
+        refreshing.vectorizer.supportedLanguages = Set.of("en");
+        refreshing.refreshLanguages();
+        assertEquals(Set.of("content_en_vector", "content_de_vector"), new HashSet<>(createdFields));
+        createdFields.clear();
+        refreshing.refreshLanguages();
+        assertTrue(createdFields.isEmpty());
+    }
+
+    public void test_createFields_routes() {
+        List<String> createdFields = new ArrayList<>();
+        VectorizingIngester routing = new VectorizingIngester() {
+            @Override
+            protected void createFields(Map<String, CheckedConsumer<XContentBuilder, IOException>> fieldMappings) {
+                createdFields.addAll(fieldMappings.keySet());
+            }
+        };
+        Vectorizer title = new Vectorizer();
+        title.fields = new String[] { "title" };
+        title.supportedLanguages = Set.of("en");
+        title.modelId = "title";
+        Vectorizer content = new Vectorizer();
+        content.fields = new String[] { "content" };
+        content.supportedLanguages = Set.of("en", "ja");
+        content.modelId = "content";
+        routing.vectorizer = new RoutingVectorizer(
+                List.of(new RoutingVectorizer.Route(title, 1, 0L, 1), new RoutingVectorizer.Route(content, 1, 0L, 1)));
+        try {
+            routing.createFields();
+            assertEquals(Set.of("title_en_vector", "content_en_vector", "content_ja_vector"), new HashSet<>(createdFields));
+        } finally {
+            routing.destroy();
+        }
+    }
+
+    public void test_process_batch() throws Exception {
+        ingester.batcher = new MicroBatcher<>("test", 4, 1000L, 1, ingester.vectorizer::vectorizeBatch);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Map<String, Object>>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final String lang = i % 2 == 0 ? "en" : "ja";
+                futures.add(executor.submit(() -> {
+                    Map<String, Object> input = new HashMap<>();
+                    input.put("lang", lang);
+                    input.put("content", "test");
+                    return ingester.process(input);
+                }));
+            }
+            for (Future<Map<String, Object>> future : futures) {
+                Map<String, Object> output = future.get();
+                String lang = (String) output.get("lang");
+                assertEquals(10, ((float[]) output.get("content_" + lang + "_vector")).length);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(8, batchSizes.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(batchSizes.stream().allMatch(n -> n <= 4));
+        assertTrue(batchSizes.size() < 8);
+    }
+
+    public void test_process_chunk() {
+        ingester.vectorizer = new Vectorizer() {
+            public Map<String, float[]> vectorize(Map<String, Object> input) {
+                Map<String, float[]> map = new HashMap<>();
+                for (String field : fields) {
+                    Object value = input.get(field);
+                    if (value != null) {
+                        // the first element is the length of the text
+                        map.put(field, new float[] { value.toString().length(), 1 });
+                    }
+                }
+                return map;
+            }
+
+            public List<Map<String, float[]>> vectorizeBatch(List<Map<String, Object>> inputs) {
+                batchSizes.add(inputs.size());
+                List<Map<String, float[]>> list = new ArrayList<>();
+                for (Map<String, Object> input : inputs) {
+                    list.add(vectorize(input));
+                }
+                return list;
+            }
+        };
+        ingester.vectorizer.fields = new String[] { "title", "content" };
+        ingester.vectorizer.supportedLanguages = new HashSet<>(Arrays.asList("en"));
+        ingester.splitter = new PassageSplitter(10, 0, 0);
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("lang", "en");
+        input.put("title", "title");
+        input.put("content", "aaaa bbbb cccccccc dd");
+        Map<String, Object> output = ingester.process(input);
+        assertEquals(5.0f, ((float[]) output.get("title_en_vector"))[0], 0.0f);
+        // passages are "aaaa bbbb", "cccccccc" and "dd"
+        assertEquals((9 + 8 + 2) / 3.0f, ((float[]) output.get("content_en_vector"))[0], 0.0001f);
+        assertEquals(Arrays.asList(3), batchSizes);
+
+        ingester.pooling = PassagePooling.MAX;
+        output = ingester.process(input);
+        assertEquals(9.0f, ((float[]) output.get("content_en_vector"))[0], 0.0f);
+
+        ingester.pooling = PassagePooling.NESTED;
+        output = ingester.process(input);
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> nested = (List<Map<String, Object>>) output.get("content_en_vector");
+        assertEquals(3, nested.size());
+        assertEquals(8.0f, ((float[]) nested.get(1).get("vector"))[0], 0.0f);
+        assertEquals(5.0f, ((float[]) output.get("title_en_vector"))[0], 0.0f);
+    }
+
+    public void test_process_deferred() throws Exception {
+        Path path = Files.createTempDirectory("deferred");
+        Map<String, Map<String, Object>> index = new ConcurrentHashMap<>();
+        Map<String, Map<String, Object>> updates = new ConcurrentHashMap<>();
+        ingester.vectorizer.fields = new String[] { "content" };
+        ingester.deferred = new DeferredVectorizer(ingester, new DeferredQueue(path, 1024 * 1024), 10, 2, 0L, 1) {
+            protected Map<String, Map<String, Object>> fetchDocuments(List<String> ids) {
+                Map<String, Map<String, Object>> docs = new HashMap<>();
+                ids.stream().filter(index::containsKey).forEach(id -> docs.put(id, new HashMap<>(index.get(id))));
+                return docs;
+            }
+
+            protected Set<String> updateDocuments(Map<String, Map<String, Object>> docs) {
+                updates.putAll(docs);
+                return Collections.emptySet();
+            }
+        };
+        ingester.deferred.executor = Executors.newFixedThreadPool(2);
+        try {
+            for (String id : new String[] { "doc1", "doc2", "doc3", null }) {
+                Map<String, Object> input = new HashMap<>();
+                input.put("_id", id);
+                input.put("lang", "en");
+                input.put("content", "test");
+                Map<String, Object> output = ingester.process(input);
+                if (id == null) {
+                    // vectorized inline without an ID
+                    assertTrue(output.containsKey("content_en_vector"));
+                } else {
+                    assertFalse(output.containsKey("content_en_vector"));
+                    if (!"doc3".equals(id)) {
+                        index.put(id, output);
+                    }
+                }
+            }
+            index.get("doc2").put("content", "changed");
+
+            DeferredQueue queue = ingester.deferred.getQueue();
+            assertEquals(3, queue.size());
+            assertEquals(1, ingester.deferred.process(queue.poll(10)));
+            assertEquals(10, ((float[]) updates.get("doc1").get("content_en_vector")).length);
+            assertFalse(updates.containsKey("doc2"));
+            // doc3 is not indexed yet, so it is queued again
+            List<DeferredQueue.Entry> entries = queue.poll(10);
+            assertEquals(1, entries.size());
+            assertEquals("doc3", entries.get(0).getDocId());
+            assertEquals(1, entries.get(0).getAttempts());
+            assertEquals(0, ingester.deferred.process(entries));
+            assertEquals(0, queue.size());
+        } finally {
+            ingester.destroy();
+            ingester.deferred = null;
+            for (File file : path.toFile().listFiles()) {
+                file.delete();
+            }
+            path.toFile().delete();
+        }
+    }
+
+    public void test_process_deferred_failure() throws Exception {
+        Path path = Files.createTempDirectory("deferred");
+        ingester.vectorizer.fields = new String[] { "content" };
+        DeferredVectorizer deferred = new DeferredVectorizer(ingester, new DeferredQueue(path, 1024 * 1024), 10, 1, 0L, 1) {
+            protected Map<String, Map<String, Object>> fetchDocuments(List<String> ids) {
+                Map<String, Map<String, Object>> docs = new HashMap<>();
+                ids.forEach(id -> docs.put(id, new HashMap<>(Map.of("content", "test", "lang", "en"))));
+                return docs;
+            }
+
+            protected List<Map<String, Object>> vectorize(List<Map<String, Object>> targets, List<String> langs) {
+                throw new CompletionException(new IllegalStateException("unavailable"));
+            }
+        };
+        try {
+            Map<String, Object> input = new HashMap<>();
+            input.put("_id", "doc1");
+            input.put("content", "test");
+            assertTrue(deferred.enqueue(input, "en"));
+
+            DeferredQueue queue = deferred.getQueue();
+            assertEquals(0, deferred.process(queue.poll(10)));
+            // queued again as a retry
+            List<DeferredQueue.Entry> entries = queue.poll(10);
+            assertEquals(1, entries.size());
+            assertEquals(1, entries.get(0).getAttempts());
+            // and given up after the maximum number of retries
+            assertEquals(0, deferred.process(entries));
+            assertEquals(0, queue.size());
+        } finally {
+            deferred.close();
+            for (File file : path.toFile().listFiles()) {
+                file.delete();
+            }
+            path.toFile().delete();
+        }
+    }
+
+    public void test_process_fingerprint() {
+        Map<String, Map<String, Object>> index = new ConcurrentHashMap<>();
+        List<Integer> lookups = Collections.synchronizedList(new ArrayList<>());
+        ingester.vectorizer.fields = new String[] { "title", "content" };
+        ingester.fingerprintEnabled = true;
+        ingester.fingerprintSeed = 1L;
+        ingester.fingerprintBatcher = new MicroBatcher<>("test", 10, 10L, 1, ids -> {
+            lookups.add(ids.size());
+            List<Map<String, Object>> docs = new ArrayList<>();
+            ids.forEach(id -> docs.add(index.getOrDefault(id, Collections.emptyMap())));
+            return docs;
+        });
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("_id", "doc1");
+        input.put("lang", "en");
+        input.put("content", "test");
+        Map<String, Object> output = ingester.process(new HashMap<>(input));
+        assertEquals(10, ((float[]) output.get("content_en_vector")).length);
+        String fingerprint = (String) output.get("content_en_vector_fp");
+        assertEquals(32, fingerprint.length());
+
+        // stored vectors come back from the source as lists
+        Map<String, Object> stored = new HashMap<>();
+        stored.put("content_en_vector", Arrays.asList(0.5, 0.25, 1.0));
+        stored.put("content_en_vector_fp", fingerprint);
+        index.put("doc1", stored);
+        output = ingester.process(new HashMap<>(input));
+        float[] vector = (float[]) output.get("content_en_vector");
+        assertEquals(3, vector.length);
+        assertEquals(0.25f, vector[1], 0.0f);
+        assertEquals(fingerprint, output.get("content_en_vector_fp"));
+
+        // only the changed field is vectorized
+        input.put("title", "title");
+        output = ingester.process(new HashMap<>(input));
+        assertEquals(3, ((float[]) output.get("content_en_vector")).length);
+        assertTrue(output.containsKey("title_en_vector_fp"));
+
+        input.put("content", "changed");
+        output = ingester.process(new HashMap<>(input));
+        assertEquals(10, ((float[]) output.get("content_en_vector")).length);
+        assertFalse(fingerprint.equals(output.get("content_en_vector_fp")));
+        assertEquals(4, lookups.size());
+    }
+
+    public void test_fitProjection_fingerprint() {
+        Map<String, Object> stored = new HashMap<>();
+        Vectorizer base = ingester.vectorizer;
+        ingester = new VectorizingIngester() {
+            @Override
+            protected String getProperty(String key, String defaultValue) {
+                return defaultValue;
+            }
+
+            @Override
+            protected List<Map<String, Object>> getSampleDocuments(int size) {
+                return Collections.emptyList();
+            }
+        };
+        ingester.vectorizer = new Vectorizer() {
+            public List<Map<String, float[]>> vectorizeBatch(List<Map<String, Object>> inputs) {
+                return base.vectorizeBatch(inputs);
+            }
+
+            public boolean isProjectionFitted() {
+                return modelId.endsWith("#pca");
+            }
+
+            public void fitProjection(List<Map<String, Object>> samples) {
+                modelId = "model#pca";
+            }
+        };
+        ingester.vectorizer.modelId = "model#random";
+        ingester.vectorizer.fields = new String[] { "content" };
+        ingester.vectorizer.supportedLanguages = Set.of("en");
+        ingester.fingerprintEnabled = true;
+        ingester.updateFingerprintSeed();
+        ingester.fingerprintBatcher = new MicroBatcher<>("test", 10, 10L, 1, ids -> Collections.singletonList(stored));
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("_id", "doc1");
+        input.put("lang", "en");
+        input.put("content", "test");
+        stored.put("content_en_vector", Arrays.asList(0.5, 0.25, 1.0));
+        stored.put("content_en_vector_fp", ingester.process(new HashMap<>(input)).get("content_en_vector_fp"));
+        assertEquals(3, ((float[]) ingester.process(new HashMap<>(input)).get("content_en_vector")).length);
+
+        // the vectors of the random projection are not reused after PCA is fitted
+        ingester.fitProjection();
+        Map<String, Object> output = ingester.process(new HashMap<>(input));
+        assertEquals(10, ((float[]) output.get("content_en_vector")).length);
+        assertFalse(stored.get("content_en_vector_fp").equals(output.get("content_en_vector_fp")));
+    }
+
+    public void test_process_dedup() {
+        ingester.vectorizer.fields = new String[] { "title", "content" };
+        ingester.nearDuplicates = new NearDuplicateIndex(10, 3, 20);
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            buf.append("This page lists the items of the catalog number ").append(i).append(". ");
+        }
+        String content = buf.toString();
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("lang", "en");
+        input.put("title", "short");
+        input.put("content", content + "Updated: 2022-01-01");
+        Map<String, Object> output = ingester.process(input);
+        float[] vector = (float[]) output.get("content_en_vector");
+        assertEquals(10, vector.length);
+        assertEquals(1, ingester.nearDuplicates.size());
+
+        // the title is too short to be compared, so only the content is reused
+        input = new HashMap<>();
+        input.put("lang", "en");
+        input.put("title", "short");
+        input.put("content", content + "Updated: 2022-01-02");
+        output = ingester.process(input);
+        assertSame(vector, output.get("content_en_vector"));
+        assertEquals(10, ((float[]) output.get("title_en_vector")).length);
+
+        input = new HashMap<>();
+        input.put("lang", "ja");
+        input.put("content", content + "Updated: 2022-01-02");
+        output = ingester.process(input);
+        assertNotSame(vector, output.get("content_ja_vector"));
+        assertEquals(1.0 / 3, ingester.nearDuplicates.getReuseRate(), 1.0e-9);
+    }
 }